@@ -0,0 +1,141 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.util.ArrayList;
+
+
+/**
+ * {@link Backlog} keeps a copy of the most recent frames a {@link Socket} has
+ * sent, in a ring of a fixed number of frames, so that they can be sent again
+ * after the connection is resumed.
+ *
+ * Frames are dropped once the other side acknowledges them, or once the ring
+ * is full and a newer frame needs the room.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+final class Backlog
+{
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final byte[][] frames;
+
+    /**
+     * The index of the oldest frame kept.
+     */
+    private long first = 0;
+
+    /**
+     * The index of the next frame to be added.
+     */
+    private long next = 0;
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get the most frames that are kept.
+     *
+     * @return {@link int} the number of frames.
+     */
+    int capacity()
+    {
+        return frames.length;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    /**
+     * Create a backlog.
+     *
+     * @param capacity The most frames to keep.
+     * @param next The index of the next frame to be sent.
+     */
+    Backlog(int capacity, long next)
+    {
+        this.frames = new byte[capacity][];
+
+        this.first = next;
+
+        this.next = next;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Protected Methods                        \*/
+    /*\**********************************************************************\*/
+    /**
+     * Keep a frame that was just sent.
+     *
+     * @param index The index of the frame.
+     * @param frame The bytes of the frame, or null if the frame could not be
+     * kept, which means the connection can not be resumed from before it.
+     */
+    synchronized void add(long index, byte[] frame)
+    {
+        if (index != next)
+        {
+            first = index;
+        }
+
+        next = index + 1;
+
+        if (next - first > frames.length)
+        {
+            first = next - frames.length;
+        }
+
+        frames[(int)(index % frames.length)] = frame;
+    }
+
+    /**
+     * Drop the frames that the other side has received.
+     *
+     * @param index The index of the next frame the other side expects.
+     */
+    synchronized void release(long index)
+    {
+        while (first < index && first < next)
+        {
+            frames[(int)(first++ % frames.length)] = null;
+        }
+    }
+
+    /**
+     * Get the frames from an index onwards.
+     *
+     * @param index The index of the next frame the other side expects.
+     * @return {@link ArrayList} the frames in order, or null if some of them
+     * are no longer kept.
+     */
+    synchronized ArrayList<byte[]> from(long index)
+    {
+        if (index < first || index > next)
+        {
+            return null;
+        }
+
+        ArrayList<byte[]> list = new ArrayList<byte[]>((int)(next - index));
+
+        for (long i = index; i < next; i++)
+        {
+            byte[] frame = frames[(int)(i % frames.length)];
+
+            if (frame == null)
+            {
+                return null;
+            }
+
+            list.add(frame);
+        }
+
+        return list;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+
+/**
+ * A {@link Broadcast} is a packet that is written to many sockets, but only
+ * serialized once.
+ *
+ * The body of the packet is written into memory the first time a socket
+ * asks for it, and every socket after that copies those bytes into its
+ * frame, behind its own head, index and packet index. Compact frames write
+ * their sizes as varints, so the body is kept once for each way of writing
+ * it.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+final class Broadcast
+    extends Packet
+{
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final Packet packet;
+
+    /**
+     * The body of the packet as written by a plain stream, or null until a
+     * socket has asked for it.
+     */
+    private volatile byte[] plain;
+
+    /**
+     * The body of the packet as written by a compact stream, or null until
+     * a socket has asked for it.
+     */
+    private volatile byte[] compact;
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    @Override
+    public int getPacketIndex()
+    {
+        return packet.getPacketIndex();
+    }
+
+    /**
+     * Get the body of the packet, serializing it if this is the first time
+     * it has been asked for in this form. Once it has been serialized, the
+     * body is read without locking.
+     *
+     * @param compact If the body is for a compact frame.
+     * @return {@link byte[]} the body, without the packet index.
+     * @throws IOException
+     */
+    byte[] getBody(boolean compact) throws IOException
+    {
+        byte[] body = compact ? this.compact : plain;
+
+        return body != null ? body : serialize(compact);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    /**
+     * Create a broadcast of a packet.
+     *
+     * @param packet The packet to write to every socket.
+     */
+    Broadcast(Packet packet)
+    {
+        this.packet = packet;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Serializes the body of the packet in one form, unless another thread
+     * already has.
+     *
+     * @param compact If the body is for a compact frame.
+     * @return {@link byte[]} the body, without the packet index.
+     * @throws IOException
+     */
+    private synchronized byte[] serialize(boolean compact) throws IOException
+    {
+        byte[] body = compact ? this.compact : plain;
+
+        if (body == null)
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            SocketOutputStream output = new SocketOutputStream(bytes);
+
+            output.setCompact(compact);
+
+            packet.write(output);
+
+            output.flush();
+
+            body = bytes.toByteArray();
+
+            if (compact)
+            {
+                this.compact = body;
+            }
+            else
+            {
+                plain = body;
+            }
+        }
+
+        return body;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Protected Methods                        \*/
+    /*\**********************************************************************\*/
+    /**
+     * A broadcast is only written by a {@link Socket}, which copies its body
+     * straight into the send buffer.
+     *
+     * @throws IOException
+     */
+    @Override
+    protected void write() throws IOException
+    {
+        throw new IOException("A broadcast can only be written to a socket.");
+    }
+
+    /**
+     * A broadcast is never received, the packet it carries is.
+     *
+     * @throws IOException
+     */
+    @Override
+    protected void read() throws IOException
+    {
+        throw new IOException("A broadcast can not be read.");
+    }
+}
@@ -0,0 +1,573 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+
+
+/**
+ * {@link BufferInputStream} reads from a {@link ByteBuffer} that is filled in
+ * large chunks from a channel or stream, so that frames can be decoded from
+ * memory instead of with many small reads against the socket.
+ *
+ * The buffer is kept in read mode between calls to {@link fill()}, and grows
+ * whenever it is full and more data is needed to finish a frame.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+class BufferInputStream
+    extends InputStream
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    private static final int CAPACITY = 8192;
+
+    /**
+     * The largest buffer that will be allocated, which is a little under
+     * the largest array some virtual machines allow.
+     */
+    private static final int LIMIT = Integer.MAX_VALUE - 8;
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private ByteBuffer buffer;
+
+    /**
+     * The channel that a file region is streamed from, or null if the region
+     * must already be in the buffer.
+     */
+    private ReadableByteChannel source;
+
+    /**
+     * The number of bytes of the current file region not yet read.
+     */
+    private long pending = 0;
+
+    /**
+     * The number of times the buffer has been filled.
+     */
+    private int fills = 0;
+
+    /**
+     * The position in the buffer that a read ran short of, since the buffer
+     * was last marked, or 0.
+     */
+    private long needed = 0;
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get the amount of bytes that have been received but not yet read.
+     *
+     * @return {@link int} the amount of bytes available for reading.
+     */
+    @Override
+    public int available()
+    {
+        return buffer.remaining();
+    }
+
+    /**
+     * Get the number of bytes of the current file region that have not been
+     * read.
+     *
+     * @return {@link long} the number of bytes.
+     */
+    public long pending()
+    {
+        return pending;
+    }
+
+    /**
+     * Get the position of the next byte to be read within the buffer. The
+     * position only stays valid until the buffer is filled again.
+     *
+     * @return {@link int} the position.
+     */
+    public int position()
+    {
+        return buffer.position();
+    }
+
+    /**
+     * Get the position in the buffer that the last read to run out of bytes
+     * needed to reach, since the buffer was last marked. Taken relative to
+     * the mark, it is how many bytes must be received before the same reads
+     * can succeed.
+     *
+     * @return {@link long} the position, or 0 if no read has run short.
+     */
+    public long needed()
+    {
+        return needed;
+    }
+
+    /**
+     * Get the number of times the buffer has been filled, which tells if
+     * positions taken before are still valid.
+     *
+     * @return {@link int} the number of fills.
+     */
+    public int fills()
+    {
+        return fills;
+    }
+
+    /**
+     * Marking is always supported, since the data is held in memory.
+     *
+     * @return {@link boolean} true.
+     */
+    @Override
+    public boolean markSupported()
+    {
+        return true;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    public BufferInputStream()
+    {
+        buffer = ByteBuffer.allocate(CAPACITY);
+
+        buffer.flip();
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Doubles the size of the buffer, up to {@link LIMIT}. The buffer must be
+     * in write mode.
+     *
+     * @throws IOException if the buffer is already as large as it can be.
+     */
+    private void grow() throws IOException
+    {
+        if (buffer.capacity() >= LIMIT)
+        {
+            throw new IOException("The buffer can not grow past " + LIMIT + " bytes.");
+        }
+
+        ByteBuffer next = ByteBuffer.allocate((int)Math.min(LIMIT, buffer.capacity() * 2L));
+
+        buffer.flip();
+
+        next.put(buffer);
+
+        buffer = next;
+    }
+
+    /**
+     * Records that a read needs more bytes than the buffer holds.
+     *
+     * @param count The number of bytes the read needs from the current
+     * position.
+     * @return {@link EOFException} the exception to throw.
+     */
+    private EOFException underflow(long count)
+    {
+        needed = Math.max(needed, buffer.position() + count);
+
+        return new EOFException();
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Reads as many bytes as the channel has ready into the buffer, keeping
+     * any bytes that have not been read yet.
+     *
+     * @param channel The channel to read from.
+     * @return {@link int} the number of bytes read, or -1 at end of stream.
+     * @throws IOException
+     */
+    public int fill(ReadableByteChannel channel) throws IOException
+    {
+        fills++;
+
+        buffer.compact();
+
+        try
+        {
+            if (!buffer.hasRemaining())
+            {
+                grow();
+            }
+
+            return channel.read(buffer);
+        }
+        finally
+        {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Reads as many bytes as the stream gives in one read into the buffer,
+     * keeping any bytes that have not been read yet.
+     *
+     * @param stream The stream to read from.
+     * @return {@link int} the number of bytes read, or -1 at end of stream.
+     * @throws IOException
+     */
+    public int fill(InputStream stream) throws IOException
+    {
+        fills++;
+
+        buffer.compact();
+
+        try
+        {
+            if (!buffer.hasRemaining())
+            {
+                grow();
+            }
+
+            int count = stream.read(
+                buffer.array(),
+                buffer.arrayOffset() + buffer.position(),
+                buffer.remaining()
+            );
+
+            if (count > 0)
+            {
+                buffer.position(buffer.position() + count);
+            }
+
+            return count;
+        }
+        finally
+        {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Starts or ends a frame with a file region. While it lasts, bytes that
+     * are needed past the end of the buffer are read from the source.
+     *
+     * @param source The channel to stream the region from, or null if the
+     * whole frame is buffered.
+     * @param count The size of the region.
+     */
+    public void stream(ReadableByteChannel source, long count)
+    {
+        this.source = source;
+
+        this.pending = count;
+    }
+
+    /**
+     * Checks that the buffer holds some number of bytes, without reading
+     * them.
+     *
+     * @param count The number of bytes needed.
+     * @throws EOFException if the buffer holds fewer bytes.
+     */
+    public void expect(long count) throws EOFException
+    {
+        if (buffer.remaining() < count)
+        {
+            throw underflow(count);
+        }
+    }
+
+    /**
+     * Reads a long ahead of the current position, without reading it.
+     *
+     * @param offset The number of bytes ahead of the current position.
+     * @return {@link long} the value.
+     */
+    public long peekLong(int offset)
+    {
+        return buffer.getLong(buffer.position() + offset);
+    }
+
+    /**
+     * Fills the buffer from the source until it holds some number of bytes.
+     *
+     * @param count The number of bytes needed.
+     * @throws IOException
+     */
+    public void require(int count) throws IOException
+    {
+        while (buffer.remaining() < count)
+        {
+            if (source == null)
+            {
+                throw underflow(count);
+            }
+
+            if (fill(source) < 0)
+            {
+                throw new IOException("The connection closed during a file region.");
+            }
+        }
+    }
+
+    /**
+     * Reads some bytes and throws them away, streaming them from the source
+     * if they are not in the buffer.
+     *
+     * @param count The number of bytes to throw away.
+     * @throws IOException
+     */
+    public void discard(long count) throws IOException
+    {
+        while (count > 0)
+        {
+            require(1);
+
+            count -= skip(count);
+        }
+
+        pending = 0;
+    }
+
+    /**
+     * Checks that a file region can be read, which is when it is streamed
+     * from the source or is already in the buffer.
+     *
+     * @param count The size of the region.
+     * @throws EOFException if the region must be buffered and is not yet.
+     */
+    public void expectRegion(long count) throws EOFException
+    {
+        if (source == null)
+        {
+            expect(count);
+        }
+    }
+
+    /**
+     * Reads bytes into a file. Bytes that are already in the buffer are
+     * written from it, and the rest are transferred straight from the source
+     * with {@link FileChannel#transferFrom}, without passing through the
+     * buffer.
+     *
+     * @param target The file to write to.
+     * @param position The position in the file to write at.
+     * @param count The number of bytes to read.
+     * @throws IOException
+     */
+    public void transfer(FileChannel target, long position, long count) throws IOException
+    {
+        expectRegion(count);
+
+        ByteBuffer slice = buffer.duplicate();
+
+        slice.limit(slice.position() + (int)Math.min(count, slice.remaining()));
+
+        buffer.position(slice.limit());
+
+        count -= slice.remaining();
+
+        pending -= slice.remaining();
+
+        while (slice.hasRemaining())
+        {
+            position += target.write(slice, position);
+        }
+
+        while (count > 0)
+        {
+            long n = target.transferFrom(source, position, count);
+
+            if (n == 0)
+            {
+                throw new IOException("The connection closed during a file region.");
+            }
+
+            position += n;
+
+            count -= n;
+
+            pending -= n;
+        }
+    }
+
+    /**
+     * Reads bytes from the buffer into another buffer.
+     *
+     * @param target The buffer to read into, which must have room for them.
+     * @param length The number of bytes.
+     * @throws IOException
+     */
+    public void read(ByteBuffer target, int length) throws IOException
+    {
+        if (buffer.remaining() < length)
+        {
+            throw underflow(length);
+        }
+
+        ByteBuffer slice = buffer.duplicate();
+
+        slice.limit(slice.position() + length);
+
+        target.put(slice);
+
+        buffer.position(slice.limit());
+    }
+
+    /**
+     * Reads a string that was written in UTF-8, decoding it straight from
+     * the buffer.
+     *
+     * @param length The number of bytes of the string.
+     * @return {@link String} the string.
+     * @throws IOException
+     */
+    public String readUtf8(int length) throws IOException
+    {
+        if (buffer.remaining() < length)
+        {
+            throw underflow(length);
+        }
+
+        String value = new String(
+            buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8
+        );
+
+        buffer.position(buffer.position() + length);
+
+        return value;
+    }
+
+    /**
+     * Gives bytes from the buffer to an inflater as its input, and skips
+     * them. The inflater must be done with them before the buffer is filled
+     * again.
+     *
+     * @param inflater The inflater.
+     * @param count The number of bytes.
+     * @throws IOException
+     */
+    public void feed(Inflater inflater, int count) throws IOException
+    {
+        if (buffer.remaining() < count)
+        {
+            throw underflow(count);
+        }
+
+        inflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+
+        buffer.position(buffer.position() + count);
+    }
+
+    /**
+     * Empties the buffer, and makes it hold a number of bytes that the caller
+     * writes into the returned array, from its start.
+     *
+     * @param length The number of bytes.
+     * @return {@link byte[]} the array to write the bytes into.
+     */
+    public byte[] load(int length)
+    {
+        if (buffer.capacity() < length)
+        {
+            buffer = ByteBuffer.allocate(length);
+        }
+
+        buffer.clear();
+
+        buffer.limit(length);
+
+        fills++;
+
+        return buffer.array();
+    }
+
+    /**
+     * Copies the bytes that were read since a position.
+     *
+     * @param position A position taken since the buffer was last filled.
+     * @param target The buffer to copy into, which must have room for them.
+     */
+    public void copy(int position, ByteBuffer target)
+    {
+        ByteBuffer slice = buffer.duplicate();
+
+        slice.limit(slice.position());
+
+        slice.position(position);
+
+        target.put(slice);
+    }
+
+    @Override
+    public int read()
+    {
+        if (!buffer.hasRemaining())
+        {
+            underflow(1);
+
+            return -1;
+        }
+
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length)
+    {
+        if (length == 0)
+        {
+            return 0;
+        }
+
+        if (!buffer.hasRemaining())
+        {
+            underflow(length);
+
+            return -1;
+        }
+
+        length = Math.min(length, buffer.remaining());
+
+        buffer.get(bytes, offset, length);
+
+        return length;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+        int count = (int)Math.min(n, buffer.remaining());
+
+        buffer.position(buffer.position() + count);
+
+        return count;
+    }
+
+    @Override
+    public void mark(int limit)
+    {
+        buffer.mark();
+
+        needed = 0;
+    }
+
+    @Override
+    public void reset()
+    {
+        buffer.reset();
+    }
+}
@@ -0,0 +1,798 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+
+/**
+ * {@link BufferOutputStream} holds whole frames in memory until it is flushed,
+ * so that a frame never goes out half written, and so that a length can be
+ * filled in once the rest of the frame has been written.
+ *
+ * Frames are written into a chain of direct buffers taken from the
+ * {@link BufferPool}, which is handed to the channel in one gathering write
+ * and then returned to the pool.
+ *
+ * A region of a file can be placed between the buffers. It is never copied
+ * into memory, and is sent with {@link FileChannel#transferTo} when the
+ * stream is flushed. Positions count the bytes of every region, even though
+ * they are not held in the buffers.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+class BufferOutputStream
+    extends OutputStream
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    /**
+     * The largest array kept for copying the buffers to a sink that is not a
+     * channel. Larger flushes use an array of their own.
+     */
+    private static final int SCRATCH = 65536;
+
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Gets the number of bytes a string takes in UTF-8, as written by
+     * {@link writeUtf8(String)}.
+     *
+     * @param value The string.
+     * @return {@link int} the number of bytes.
+     */
+    public static int Utf8Length(String value)
+    {
+        int length = value.length();
+
+        int bytes = length;
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = value.charAt(i);
+
+            if (c < 0x80)
+            {
+                continue;
+            }
+
+            if (c < 0x800)
+            {
+                bytes++;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                bytes += 2;
+
+                i++;
+            }
+            else if (!Character.isSurrogate(c))
+            {
+                bytes += 2;
+            }
+        }
+
+        return bytes;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final OutputStream sink;
+
+    /**
+     * The buffers written so far. Every buffer but the last is full, unless
+     * a file region follows it.
+     */
+    private final ArrayList<ByteBuffer> chain = new ArrayList<ByteBuffer>();
+
+    private ByteBuffer current;
+
+    private int count = 0;
+
+    /**
+     * The file regions placed between the buffers, in order.
+     */
+    private final ArrayList<Region> regions = new ArrayList<Region>();
+
+    /**
+     * The number of bytes held in file regions.
+     */
+    private long transferred = 0;
+
+    /**
+     * Used to copy the buffers to a sink that is not a channel, so that they
+     * are written with a single call.
+     */
+    private byte[] scratch;
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get the number of bytes waiting to be flushed, including those in file
+     * regions.
+     *
+     * @return {@link long} the number of bytes.
+     */
+    public long size()
+    {
+        return count + transferred;
+    }
+
+    /**
+     * Get the number of file regions waiting to be flushed.
+     *
+     * @return {@link int} the number of regions.
+     */
+    public int getRegionCount()
+    {
+        return regions.size();
+    }
+
+    /**
+     * Get the position of the last file region.
+     *
+     * @return {@link long} the position the region starts at, or -1 if there
+     * are no regions.
+     */
+    public long getRegionPosition()
+    {
+        return regions.isEmpty() ? -1 : regions.get(regions.size() - 1).at;
+    }
+
+    /**
+     * Get if nothing has been written since the last file region.
+     *
+     * @return {@link boolean} true if the stream ends with a file region.
+     */
+    public boolean endsWithRegion()
+    {
+        return !regions.isEmpty() && regions.get(regions.size() - 1).chunk == chain.size();
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    /**
+     * Create a buffer in front of a sink. If the sink is a
+     * {@link ChannelOutputStream}, the buffers are written to its channel
+     * without being copied.
+     *
+     * @param sink The stream to flush to.
+     */
+    public BufferOutputStream(OutputStream sink)
+    {
+        this.sink = sink;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Adds a buffer to the chain, growing the size of the buffers as the
+     * chain gets longer.
+     */
+    private void next()
+    {
+        current = BufferPool.Acquire(count);
+
+        chain.add(current);
+    }
+
+    /**
+     * Converts a position into a position within the buffers, by leaving out
+     * the regions before it.
+     *
+     * @param position The position, which must not be inside a region.
+     * @return {@link int} the position within the buffers.
+     */
+    private int buffered(long position)
+    {
+        for (Region region : regions)
+        {
+            if (region.at >= position)
+            {
+                break;
+            }
+
+            position -= region.count;
+        }
+
+        return (int)position;
+    }
+
+    /**
+     * Writes the buffers between two points in the chain.
+     *
+     * @param buffers The flipped buffers.
+     * @param from The first buffer to write.
+     * @param to The buffer after the last one to write.
+     * @throws IOException
+     */
+    private void write(ByteBuffer[] buffers, int from, int to) throws IOException
+    {
+        if (sink instanceof ChannelOutputStream)
+        {
+            ((ChannelOutputStream)sink).write(buffers, from, to - from);
+
+            return;
+        }
+
+        int total = 0;
+
+        for (int i = from; i < to; i++)
+        {
+            total += buffers[i].remaining();
+        }
+
+        if (total == 0)
+        {
+            return;
+        }
+
+        byte[] bytes = scratch(total);
+
+        int n = 0;
+
+        for (int i = from; i < to; i++)
+        {
+            int remaining = buffers[i].remaining();
+
+            buffers[i].get(bytes, n, remaining);
+
+            n += remaining;
+        }
+
+        sink.write(bytes, 0, total);
+    }
+
+    /**
+     * Gets an array to copy bytes into for a sink that is not a channel.
+     *
+     * @param size The number of bytes.
+     * @return {@link byte[]} an array of at least that size, which is kept
+     * for the next copy unless it is larger than {@link SCRATCH}.
+     */
+    private byte[] scratch(int size)
+    {
+        if (scratch != null && scratch.length >= size)
+        {
+            return scratch;
+        }
+
+        byte[] bytes = new byte[Math.max(size, scratch == null ? 0 : scratch.length)];
+
+        if (bytes.length <= SCRATCH)
+        {
+            scratch = bytes;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Writes a file region, with {@link FileChannel#transferTo} if the sink is
+     * a channel, or by copying it through a buffer otherwise.
+     *
+     * @param region The region to write.
+     * @throws IOException
+     */
+    private void write(Region region) throws IOException
+    {
+        if (sink instanceof ChannelOutputStream)
+        {
+            ((ChannelOutputStream)sink).transfer(
+                region.file, region.position, region.count
+            );
+
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(scratch(SCRATCH));
+
+        long position = region.position;
+
+        long end = region.position + region.count;
+
+        while (position < end)
+        {
+            buffer.clear();
+
+            buffer.limit((int)Math.min(buffer.capacity(), end - position));
+
+            int n = region.file.read(buffer, position);
+
+            if (n < 0)
+            {
+                throw new EOFException("The file ended before its region.");
+            }
+
+            position += n;
+
+            sink.write(buffer.array(), 0, n);
+        }
+    }
+
+    /**
+     * Discards everything in the buffers after a position.
+     *
+     * @param position The number of bytes to keep in the buffers.
+     */
+    private void cut(int position)
+    {
+        if (position >= count)
+        {
+            return;
+        }
+
+        int kept = 0;
+
+        int i = 0;
+
+        while (i < chain.size() && kept + chain.get(i).position() <= position)
+        {
+            kept += chain.get(i++).position();
+        }
+
+        if (i < chain.size())
+        {
+            chain.get(i).position(position - kept);
+
+            i++;
+        }
+
+        while (chain.size() > i)
+        {
+            BufferPool.Release(chain.remove(chain.size() - 1));
+        }
+
+        current = chain.isEmpty() ? null : chain.get(chain.size() - 1);
+
+        count = position;
+    }
+
+    /**
+     * Overwrites a byte that has already been written.
+     *
+     * @param position The position of the byte within the buffers.
+     * @param value The value to write.
+     */
+    private void put(int position, byte value)
+    {
+        for (ByteBuffer buffer : chain)
+        {
+            if (position < buffer.position())
+            {
+                buffer.put(position, value);
+
+                return;
+            }
+
+            position -= buffer.position();
+        }
+
+        throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * Writes the character of a string at an index in UTF-8, along with the
+     * character after it if they are a surrogate pair.
+     *
+     * @param value The string.
+     * @param index The index of a character that is not ASCII.
+     * @return {@link int} the index of the next character.
+     */
+    private int writeUtf8(String value, int index)
+    {
+        char c = value.charAt(index++);
+
+        if (c < 0x800)
+        {
+            write(0xc0 | c >> 6);
+
+            write(0x80 | c & 0x3f);
+        }
+        else if (Character.isHighSurrogate(c) && index < value.length() && Character.isLowSurrogate(value.charAt(index)))
+        {
+            int point = Character.toCodePoint(c, value.charAt(index++));
+
+            write(0xf0 | point >> 18);
+
+            write(0x80 | point >> 12 & 0x3f);
+
+            write(0x80 | point >> 6 & 0x3f);
+
+            write(0x80 | point & 0x3f);
+        }
+        else if (Character.isSurrogate(c))
+        {
+            write('?');
+        }
+        else
+        {
+            write(0xe0 | c >> 12);
+
+            write(0x80 | c >> 6 & 0x3f);
+
+            write(0x80 | c & 0x3f);
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns every buffer to the pool.
+     */
+    private void clear()
+    {
+        for (ByteBuffer buffer : chain)
+        {
+            BufferPool.Release(buffer);
+        }
+
+        chain.clear();
+
+        regions.clear();
+
+        current = null;
+
+        count = 0;
+
+        transferred = 0;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    @Override
+    public void write(int value)
+    {
+        if (current == null || !current.hasRemaining())
+        {
+            next();
+        }
+
+        current.put((byte)value);
+
+        count++;
+    }
+
+    @Override
+    public void write(byte[] value, int offset, int length)
+    {
+        while (length > 0)
+        {
+            if (current == null || !current.hasRemaining())
+            {
+                next();
+            }
+
+            int n = Math.min(length, current.remaining());
+
+            current.put(value, offset, n);
+
+            offset += n;
+
+            length -= n;
+
+            count += n;
+        }
+    }
+
+    /**
+     * Writes a string in UTF-8 straight into the buffers. Runs of ASCII are
+     * copied a character to a byte, and a surrogate without its pair is
+     * written as '?', as {@link String#getBytes} would.
+     *
+     * @param value The string to write.
+     */
+    public void writeUtf8(String value)
+    {
+        int length = value.length();
+
+        int i = 0;
+
+        while (i < length)
+        {
+            if (current == null || !current.hasRemaining())
+            {
+                next();
+            }
+
+            int start = i;
+
+            int end = Math.min(length, i + current.remaining());
+
+            char c;
+
+            while (i < end && (c = value.charAt(i)) < 0x80)
+            {
+                current.put((byte)c);
+
+                i++;
+            }
+
+            count += i - start;
+
+            if (i < end)
+            {
+                i = writeUtf8(value, i);
+            }
+        }
+    }
+
+    /**
+     * Places a region of a file after the bytes written so far. The file is
+     * read when the stream is flushed, so it must stay open and unchanged
+     * until then.
+     *
+     * @param file The file to send from.
+     * @param position The position in the file to start at.
+     * @param count The number of bytes to send.
+     */
+    public void transfer(FileChannel file, long position, long count)
+    {
+        regions.add(new Region(file, position, count, chain.size(), size()));
+
+        transferred += count;
+
+        current = null;
+    }
+
+    /**
+     * Overwrites a byte that has already been written.
+     *
+     * @param position The position the byte was written at.
+     * @param value The value to write.
+     */
+    public void putByte(long position, byte value)
+    {
+        put(buffered(position), value);
+    }
+
+    /**
+     * Overwrites an int that has already been written.
+     *
+     * @param position The position the int was written at.
+     * @param value The value to write.
+     */
+    public void putInt(long position, int value)
+    {
+        int at = buffered(position);
+
+        for (int shift = 24; shift >= 0; shift -= 8)
+        {
+            put(at++, (byte)(value >>> shift));
+        }
+    }
+
+    /**
+     * Removes bytes that have already been written, and moves the bytes
+     * after them back. This is only done if they are all in the last buffer,
+     * with no file region after them.
+     *
+     * @param position The position of the first byte to remove.
+     * @param length The number of bytes to remove.
+     * @return {@link boolean} true if the bytes were removed.
+     */
+    public boolean remove(long position, int length)
+    {
+        if (current == null || getRegionPosition() >= position)
+        {
+            return false;
+        }
+
+        int at = buffered(position) - (count - current.position());
+
+        if (at < 0 || at + length > current.position())
+        {
+            return false;
+        }
+
+        ByteBuffer tail = current.duplicate();
+
+        tail.limit(current.position());
+
+        tail.position(at);
+
+        tail = tail.slice();
+
+        tail.position(length);
+
+        tail.compact();
+
+        current.position(current.position() - length);
+
+        count -= length;
+
+        return true;
+    }
+
+    /**
+     * Discards everything written after a position.
+     *
+     * @param position The number of bytes to keep.
+     */
+    public void truncate(long position)
+    {
+        if (position >= size())
+        {
+            return;
+        }
+
+        while (!regions.isEmpty() && regions.get(regions.size() - 1).at >= position)
+        {
+            transferred -= regions.remove(regions.size() - 1).count;
+        }
+
+        cut(buffered(position));
+
+        if (!regions.isEmpty() && regions.get(regions.size() - 1).chunk == chain.size())
+        {
+            current = null;
+        }
+    }
+
+    /**
+     * Copies the bytes after a position, including those of file regions,
+     * until a buffer is full.
+     *
+     * @param position The position to start at.
+     * @param target The buffer to copy into.
+     * @throws IOException
+     */
+    public void copy(long position, ByteBuffer target) throws IOException
+    {
+        long at = 0;
+
+        int r = 0;
+
+        for (int i = 0; i <= chain.size() && target.hasRemaining(); i++)
+        {
+            while (r < regions.size() && regions.get(r).chunk == i)
+            {
+                Region region = regions.get(r++);
+
+                long from = Math.max(position, at);
+
+                while (from < at + region.count && target.hasRemaining())
+                {
+                    ByteBuffer slice = target.duplicate();
+
+                    slice.limit(slice.position() + (int)Math.min(slice.remaining(), at + region.count - from));
+
+                    int n = region.file.read(slice, region.position + from - at);
+
+                    if (n < 0)
+                    {
+                        throw new EOFException("The file ended before its region.");
+                    }
+
+                    target.position(target.position() + n);
+
+                    from += n;
+                }
+
+                at += region.count;
+            }
+
+            if (i < chain.size())
+            {
+                ByteBuffer buffer = chain.get(i);
+
+                if (position < at + buffer.position())
+                {
+                    ByteBuffer slice = buffer.duplicate();
+
+                    slice.flip();
+
+                    slice.position((int)Math.max(0, position - at));
+
+                    slice.limit(Math.min(slice.limit(), slice.position() + target.remaining()));
+
+                    target.put(slice);
+                }
+
+                at += buffer.position();
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the connection, then returns the buffers
+     * to the pool.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        try
+        {
+            ByteBuffer[] buffers = chain.toArray(new ByteBuffer[chain.size()]);
+
+            for (ByteBuffer buffer : buffers)
+            {
+                buffer.flip();
+            }
+
+            int first = 0;
+
+            for (Region region : regions)
+            {
+                write(buffers, first, region.chunk);
+
+                write(region);
+
+                first = region.chunk;
+            }
+
+            write(buffers, first, buffers.length);
+
+            sink.flush();
+        }
+        finally
+        {
+            clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        clear();
+
+        sink.close();
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Classes                                  \*/
+    /*\**********************************************************************\*/
+    /**
+     * A region of a file, and where it goes between the buffers.
+     */
+    private static class Region
+    {
+        private final FileChannel file;
+
+        private final long position;
+
+        private final long count;
+
+        /**
+         * The index of the buffer that follows the region.
+         */
+        private final int chunk;
+
+        /**
+         * The position of the region in the stream.
+         */
+        private final long at;
+
+        private Region(FileChannel file, long position, long count, int chunk, long at)
+        {
+            this.file = file;
+
+            this.position = position;
+
+            this.count = count;
+
+            this.chunk = chunk;
+
+            this.at = at;
+        }
+    }
+}
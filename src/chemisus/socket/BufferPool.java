@@ -0,0 +1,119 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * {@link BufferPool} shares direct {@link ByteBuffer}s between every socket,
+ * so that frames can be encoded straight into native memory, and so that an
+ * idle socket does not hold on to any buffers of its own.
+ *
+ * Buffers come in a few size classes. Larger frames are written into a chain
+ * of buffers rather than into one large buffer.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+final class BufferPool
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    /**
+     * The sizes of the buffers in each class, smallest first.
+     */
+    private static final int[] SIZES = {4096, 16384, 65536};
+
+    /**
+     * The most buffers of each class kept for reuse.
+     */
+    private static final int RETAIN = 256;
+
+    /*\**********************************************************************\*/
+    /*\                             Static Fields                            \*/
+    /*\**********************************************************************\*/
+    private static final ArrayBlockingQueue<ByteBuffer>[] Free = Queues(SIZES.length);
+
+    static
+    {
+        for (int i = 0; i < SIZES.length; i++)
+        {
+            Free[i] = new ArrayBlockingQueue<ByteBuffer>(RETAIN);
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Create the array of free lists, one for each size class.
+     *
+     * @param count The number of size classes.
+     * @return {@link ArrayBlockingQueue[]} the empty array.
+     */
+    @SuppressWarnings("unchecked")
+    private static ArrayBlockingQueue<ByteBuffer>[] Queues(int count)
+    {
+        return (ArrayBlockingQueue<ByteBuffer>[])new ArrayBlockingQueue<?>[count];
+    }
+
+    /**
+     * Take a cleared buffer of the smallest class that holds a size, or of
+     * the largest class if none does.
+     *
+     * @param size The number of bytes wanted.
+     * @return {@link ByteBuffer} the buffer.
+     */
+    static ByteBuffer Acquire(int size)
+    {
+        int i = 0;
+
+        while (i < SIZES.length - 1 && SIZES[i] < size)
+        {
+            i++;
+        }
+
+        ByteBuffer buffer = Free[i].poll();
+
+        if (buffer == null)
+        {
+            buffer = ByteBuffer.allocateDirect(SIZES[i]);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to its class.
+     *
+     * @param buffer The buffer, which must not be used afterwards.
+     */
+    static void Release(ByteBuffer buffer)
+    {
+        for (int i = 0; i < SIZES.length; i++)
+        {
+            if (SIZES[i] == buffer.capacity())
+            {
+                buffer.clear();
+
+                Free[i].offer(buffer);
+
+                return;
+            }
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    private BufferPool()
+    {
+    }
+}
@@ -0,0 +1,407 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A {@link Capture} records the frames that {@link Socket}s send and receive
+ * into an append-only, memory-mapped file, so that traffic can be replayed
+ * later with {@link Replay}.
+ *
+ * <pre>
+ * Capture capture = new Capture(Paths.get("traffic.cap"));
+ *
+ * session.setCapture(capture);
+ * </pre>
+ *
+ * One capture may be shared by many sockets. Recording a frame reserves its
+ * space in the file by adding to a counter, then copies the frame into the
+ * mapped memory, without locking, and the operating system writes the pages
+ * out in the background. The file is mapped in overlapping segments, and
+ * the next segment is mapped by the first frame recorded into the one
+ * before, so that sockets are not held up while the file grows. Closing the
+ * capture waits for the frames being copied. If the file can not be grown,
+ * recording stops and the error is logged; the sockets are not affected.
+ *
+ * <p>The file starts with a magic number, a format version, and the time the
+ * capture was created in milliseconds. Each record is then the length of the
+ * frame, the stream the socket was given, whether the frame was received or
+ * sent, the index of the frame, the nanoseconds since the capture was
+ * created, then the bytes of the frame itself. A record with a length of 0
+ * ends the file.</p>
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class Capture
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    /**
+     * Marks a frame that was received.
+     */
+    public static final byte IN = 0;
+
+    /**
+     * Marks a frame that was sent.
+     */
+    public static final byte OUT = 1;
+
+    static final int MAGIC = 0x43484350;
+
+    static final int VERSION = 1;
+
+    /**
+     * The number of bytes before the first record.
+     */
+    static final int HEADER = 16;
+
+    /**
+     * The number of bytes of a record before the frame.
+     */
+    static final int RECORD = 25;
+
+    /**
+     * The number of bytes mapped at a time.
+     */
+    private static final int SEGMENT = 64 * 1024 * 1024;
+
+    /**
+     * The distance between the starts of two segments. Segments overlap by
+     * half, so that a record no longer than this always fits whole in the
+     * segment that its start falls in the first half of.
+     */
+    private static final int STRIDE = SEGMENT / 2;
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final FileChannel channel;
+
+    private final long origin = System.nanoTime();
+
+    /**
+     * The latest segment that a record has been reserved in.
+     */
+    private volatile Segment segment;
+
+    /**
+     * The number of bytes reserved in the file.
+     */
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicInteger streams = new AtomicInteger();
+
+    private volatile boolean closed = false;
+
+    /**
+     * The number of frames that have been reserved, but not yet copied.
+     */
+    private final LongAdder writers = new LongAdder();
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get the number of bytes recorded so far.
+     *
+     * @return {@link long} the number of bytes.
+     */
+    public long size()
+    {
+        return written.get();
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    /**
+     * Create a capture, replacing the file if it already exists.
+     *
+     * @param path The file to record into.
+     * @throws IOException
+     */
+    public Capture(Path path) throws IOException
+    {
+        channel = FileChannel.open(
+            path,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        );
+
+        segment = new Segment(channel, 0);
+
+        segment.buffer.putInt(0, MAGIC);
+
+        segment.buffer.putInt(4, VERSION);
+
+        segment.buffer.putLong(8, System.currentTimeMillis());
+
+        written.set(HEADER);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Finds the mapped memory that a record is written into, mapping it if
+     * no segment holds it yet.
+     *
+     * @param latest The latest segment, read before the record was
+     * reserved, so that it does not start after the record.
+     * @param start The position of the record in the file.
+     * @param size The number of bytes of the record, and of the end of the
+     * file that may follow it.
+     * @return {@link ByteBuffer} a buffer whose position is the start of the
+     * record.
+     * @throws IOException if the file could not be grown.
+     */
+    private ByteBuffer locate(Segment latest, long start, long size) throws IOException
+    {
+        if (size > STRIDE)
+        {
+            return channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        }
+
+        long index = start / STRIDE;
+
+        Segment found = latest;
+
+        while (found.index < index)
+        {
+            found = found.next(channel);
+        }
+
+        if (found != latest && segment.index < found.index)
+        {
+            segment = found;
+        }
+
+        found.next(channel);
+
+        ByteBuffer buffer = found.buffer.duplicate();
+
+        buffer.position((int)(start - found.index * STRIDE));
+
+        return buffer;
+    }
+
+    /**
+     * Stops recording after the file could not be grown.
+     *
+     * @param ex Why the file could not be grown.
+     */
+    private void fail(IOException ex)
+    {
+        Logger.getLogger(Capture.class.getName()).log(
+            Level.SEVERE, "The capture could not be grown, and was stopped.", ex
+        );
+
+        closed = true;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Protected Methods                        \*/
+    /*\**********************************************************************\*/
+    /**
+     * Give a socket its own stream number within the capture.
+     *
+     * @return {@link int} the stream number.
+     */
+    int register()
+    {
+        return streams.incrementAndGet();
+    }
+
+    /**
+     * Write the head of a record, and reserve the space for its frame. Many
+     * sockets may do this at once, without waiting for each other.
+     *
+     * @param stream The stream of the socket.
+     * @param direction Either {@link IN} or {@link OUT}.
+     * @param index The index of the frame.
+     * @param length The number of bytes in the frame.
+     * @return {@link ByteBuffer} the space to copy the frame into, or null if
+     * the capture is closed. Unless it is null, {@link release()} must be
+     * called once the frame has been copied.
+     */
+    ByteBuffer reserve(int stream, byte direction, long index, int length)
+    {
+        writers.increment();
+
+        if (closed)
+        {
+            release();
+
+            return null;
+        }
+
+        Segment latest = segment;
+
+        int size = RECORD + length;
+
+        long start = written.getAndAdd(size);
+
+        ByteBuffer record;
+
+        try
+        {
+            record = locate(latest, start, size + 4L);
+        }
+        catch (IOException ex)
+        {
+            fail(ex);
+
+            release();
+
+            return null;
+        }
+
+        record.putInt(length);
+
+        record.putInt(stream);
+
+        record.put(direction);
+
+        record.putLong(index);
+
+        record.putLong(System.nanoTime() - origin);
+
+        record.limit(record.position() + length);
+
+        return record.slice();
+    }
+
+    /**
+     * Tell the capture that a frame has been copied into the space that
+     * {@link reserve(int, byte, long, int)} gave for it.
+     */
+    void release()
+    {
+        writers.decrement();
+
+        if (closed)
+        {
+            synchronized (this)
+            {
+                notifyAll();
+            }
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Stop recording, and cut the file down to the records written, once the
+     * frames being copied have been.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException
+    {
+        if (!channel.isOpen())
+        {
+            return;
+        }
+
+        closed = true;
+
+        boolean interrupted = false;
+
+        while (writers.sum() > 0)
+        {
+            try
+            {
+                wait(10);
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        segment.buffer.force();
+
+        channel.truncate(written.get() + 4);
+
+        channel.close();
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Classes                                  \*/
+    /*\**********************************************************************\*/
+    /**
+     * A mapped part of the file, starting at a multiple of {@link STRIDE}.
+     */
+    private static class Segment
+    {
+        private final long index;
+
+        private final MappedByteBuffer buffer;
+
+        private volatile Segment next;
+
+        private Segment(FileChannel channel, long index) throws IOException
+        {
+            this.index = index;
+
+            this.buffer = channel.map(
+                FileChannel.MapMode.READ_WRITE, index * STRIDE, SEGMENT
+            );
+        }
+
+        /**
+         * Gets the segment after this one, mapping it if no one has yet.
+         *
+         * @param channel The file.
+         * @return {@link Segment} the next segment.
+         * @throws IOException if the file could not be grown.
+         */
+        private Segment next(FileChannel channel) throws IOException
+        {
+            Segment next = this.next;
+
+            if (next == null)
+            {
+                synchronized (this)
+                {
+                    next = this.next;
+
+                    if (next == null)
+                    {
+                        next = new Segment(channel, index + 1);
+
+                        this.next = next;
+                    }
+                }
+            }
+
+            return next;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A {@link Channel} is one of many independent streams of packets carried by
+ * a single {@link Socket}.
+ *
+ * <pre>
+ * Channel bulk = session.openChannel(1);
+ *
+ * Channel chat = session.openChannel(2);
+ *
+ * chat.addCallback((channel, packet) -&gt; show((ChatPacket)packet));
+ *
+ * bulk.write(new ChunkPacket(data));
+ *
+ * chat.write(new ChatPacket("hello"));
+ * </pre>
+ *
+ * Packets written to a channel are split into fragments of at most
+ * {@link FRAGMENT} bytes, and the channels with packets waiting take turns
+ * sending a fragment each, so a large packet on one channel only delays a
+ * small packet on another by a fragment or two. Packets arrive in the order
+ * they were written to their channel, but not in any order with the packets
+ * of other channels, or with those written to the socket itself.
+ *
+ * Both sides must open a channel before using it, and one side must have
+ * called {@link Socket#negotiate()}; packets received on a channel that is
+ * not open, or before the sides agreed on a version, are skipped. Received
+ * packets are handed to the callbacks of the channel on the thread that
+ * receives for the socket, and are released once the callbacks return.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class Channel
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    /**
+     * The most bytes of a packet sent in one fragment.
+     */
+    public static final int FRAGMENT = 16384;
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final Socket socket;
+
+    private final int id;
+
+    private final ConcurrentLinkedQueue<Callback> callbacks = new ConcurrentLinkedQueue<Callback>();
+
+    /**
+     * The packets waiting to be sent, as bytes. Only used while holding the
+     * lock of the socket's {@link Multiplexer}.
+     */
+    private final ArrayDeque<Message> outgoing = new ArrayDeque<Message>();
+
+    /**
+     * If the channel is waiting for its turn to send.
+     */
+    boolean queued = false;
+
+    /**
+     * The fragments of the packet being received. Only used by the thread
+     * that receives for the socket.
+     */
+    private byte[] assembly;
+
+    private int assembled = 0;
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get the id of the channel, which is the same on both sides.
+     *
+     * @return {@link int} the id.
+     */
+    public int getId()
+    {
+        return id;
+    }
+
+    /**
+     * Get the socket that carries the channel.
+     *
+     * @return {@link Socket} the socket.
+     */
+    public Socket getSocket()
+    {
+        return socket;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    Channel(Socket socket, int id)
+    {
+        this.socket = socket;
+
+        this.id = id;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Decodes a packet from its bytes, and hands it to the callbacks.
+     *
+     * @param bytes The bytes of the packet.
+     * @param length The number of bytes.
+     * @throws IOException
+     */
+    private void decode(byte[] bytes, int length) throws IOException
+    {
+        SocketInputStream input = new SocketInputStream(new ByteArrayInputStream(bytes, 0, length));
+
+        input.setMaxPayload(socket.getMaxPayload());
+
+        int index = input.readIntValue();
+
+        Packet packet = socket.instance(index);
+
+        if (packet == null)
+        {
+            Logger.getLogger(Channel.class.getName()).log(
+                Level.WARNING, "Packet {0} does not exist, skipped.", index
+            );
+
+            return;
+        }
+
+        packet.read(input);
+
+        OnReceive(packet);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Protected Methods                        \*/
+    /*\**********************************************************************\*/
+    /**
+     * Gets if the channel has a packet waiting to be sent. Must hold the lock
+     * of the multiplexer.
+     *
+     * @return {@link boolean} true if there is a fragment to send.
+     */
+    boolean isPending()
+    {
+        return !outgoing.isEmpty();
+    }
+
+    /**
+     * Queues the bytes of a packet to be sent. Must hold the lock of the
+     * multiplexer.
+     *
+     * @param message The packet.
+     */
+    void add(Message message)
+    {
+        outgoing.add(message);
+    }
+
+    /**
+     * Takes the next fragment to send. Must hold the lock of the
+     * multiplexer.
+     *
+     * @return {@link Message} the packet the fragment belongs to, with the
+     * fragment as the part last taken.
+     */
+    Message next()
+    {
+        Message message = outgoing.peek();
+
+        message.offset += message.length;
+
+        message.length = Math.min(FRAGMENT, message.bytes.length - message.offset);
+
+        if (message.isLast())
+        {
+            outgoing.poll();
+        }
+
+        return message;
+    }
+
+    /**
+     * Called with each fragment received on this channel.
+     *
+     * @param last If the fragment completes its packet.
+     * @param bytes The bytes of the fragment.
+     * @throws IOException if the packet is larger than the socket allows.
+     */
+    void received(boolean last, byte[] bytes) throws IOException
+    {
+        if (assembled == 0 && last)
+        {
+            decode(bytes, bytes.length);
+
+            return;
+        }
+
+        if ((long)assembled + bytes.length > socket.getMaxFrameSize())
+        {
+            assembly = null;
+
+            assembled = 0;
+
+            throw new IOException("A packet on channel " + id + " is larger than the largest frame.");
+        }
+
+        if (assembly == null || assembly.length < assembled + bytes.length)
+        {
+            assembly = Arrays.copyOf(
+                assembly == null ? new byte[0] : assembly,
+                Math.max(assembled + bytes.length, assembly == null ? FRAGMENT * 2 : assembly.length * 2)
+            );
+        }
+
+        System.arraycopy(bytes, 0, assembly, assembled, bytes.length);
+
+        assembled += bytes.length;
+
+        if (last)
+        {
+            int length = assembled;
+
+            assembled = 0;
+
+            try
+            {
+                decode(assembly, length);
+            }
+            finally
+            {
+                if (assembly.length > FRAGMENT * 4)
+                {
+                    assembly = null;
+                }
+            }
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Add an object to the callback list.
+     *
+     * @param callback The object that will be added to the callbacks list.
+     * @return {@link boolean} true if the object was added.
+     */
+    public boolean addCallback(Callback callback)
+    {
+        return callbacks.add(callback);
+    }
+
+    /**
+     * Remove an object from the callback list.
+     *
+     * @param callback The object that will be removed from the callbacks
+     * list.
+     * @return {@link boolean} true if the object was removed.
+     */
+    public boolean removeCallback(Callback callback)
+    {
+        return callbacks.remove(callback);
+    }
+
+    /**
+     * Write a {@link Packet} to the channel without waiting for it to be
+     * sent.
+     *
+     * The packet is encoded before this returns, so it may be changed or
+     * released right away.
+     *
+     * @param packet The packet to write.
+     * @return {@link CompletableFuture} a future that completes once the last
+     * fragment of the packet has been flushed, or completes exceptionally if
+     * it could not be.
+     * @throws IOException if the packet could not be encoded.
+     */
+    public CompletableFuture<Void> write(Packet packet) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        SocketOutputStream output = new SocketOutputStream(bytes);
+
+        output.writeInt(packet.getPacketIndex());
+
+        packet.write(output);
+
+        Message message = new Message(bytes.toByteArray());
+
+        socket.multiplexer().send(this, message);
+
+        return message.future;
+    }
+
+    /**
+     * Stop receiving on the channel. Packets already written to it are still
+     * sent.
+     */
+    public void close()
+    {
+        socket.multiplexer().close(this);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Event Triggers                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Hands a received packet to the callbacks, then releases it.
+     */
+    void OnReceive(Packet packet)
+    {
+        try
+        {
+            for (Callback callback : callbacks)
+            {
+                callback.onReceived(this, packet);
+            }
+        }
+        finally
+        {
+            packet.release();
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Classes                                  \*/
+    /*\**********************************************************************\*/
+    public interface Callback
+    {
+        public void onReceived(Channel channel, Packet packet);
+    }
+
+    /**
+     * The bytes of a packet being sent, and how much of it has been sent.
+     */
+    static final class Message
+    {
+        final byte[] bytes;
+
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        /**
+         * The position of the fragment last taken.
+         */
+        int offset = 0;
+
+        /**
+         * The size of the fragment last taken.
+         */
+        int length = 0;
+
+        Message(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Get if the fragment last taken is the end of the packet.
+         *
+         * @return {@link boolean} true if it is the last fragment.
+         */
+        boolean isLast()
+        {
+            return offset + length == bytes.length;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * {@link ChannelOutputStream} writes to a {@link SocketChannel}. If the channel
+ * is non-blocking, it waits for the channel to become writable whenever the
+ * kernel buffer is full. This keeps {@link Socket#write(Packet)} blocking
+ * when the socket is driven by a {@link Reactor}, on any thread but the
+ * reactor's own, whose writes are handed to the socket's writer instead.
+ *
+ * The selector used to wait is opened the first time it is needed, and is
+ * closed with the stream.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+class ChannelOutputStream
+    extends OutputStream
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    private static final long TIMEOUT = 1000;
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final SocketChannel channel;
+
+    /**
+     * A private selector used only to wait for writability, so that the
+     * reactor's selector is never blocked by a writer.
+     */
+    private Selector selector;
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    public ChannelOutputStream(SocketChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Waits until the channel can accept more bytes.
+     *
+     * @throws IOException
+     */
+    private void await() throws IOException
+    {
+        if (selector == null)
+        {
+            selector = Selector.open();
+
+            channel.register(selector, SelectionKey.OP_WRITE);
+        }
+
+        while (selector.select(TIMEOUT) == 0)
+        {
+            if (!channel.isOpen())
+            {
+                throw new ClosedChannelException();
+            }
+        }
+
+        selector.selectedKeys().clear();
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    @Override
+    public void write(int value) throws IOException
+    {
+        write(new byte[] {(byte)value}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] value, int offset, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(value, offset, length);
+
+        while (buffer.hasRemaining())
+        {
+            if (channel.write(buffer) == 0)
+            {
+                await();
+            }
+        }
+    }
+
+    /**
+     * Writes several buffers with as few gathering writes as the channel
+     * allows.
+     *
+     * @param buffers The buffers to write, which are fully written on return.
+     * @throws IOException
+     */
+    public void write(ByteBuffer[] buffers) throws IOException
+    {
+        write(buffers, 0, buffers.length);
+    }
+
+    /**
+     * Writes some of several buffers with as few gathering writes as the
+     * channel allows.
+     *
+     * @param buffers The buffers to write from.
+     * @param offset The first buffer to write.
+     * @param length The number of buffers to write.
+     * @throws IOException
+     */
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException
+    {
+        int end = offset + length;
+
+        while (offset < end)
+        {
+            if (!buffers[offset].hasRemaining())
+            {
+                offset++;
+            }
+            else if (channel.write(buffers, offset, end - offset) == 0)
+            {
+                await();
+            }
+        }
+    }
+
+    /**
+     * Sends a region of a file with {@link FileChannel#transferTo}, which
+     * lets the kernel copy the file to the socket without passing it through
+     * the heap.
+     *
+     * @param file The file to send from.
+     * @param position The position in the file to start at.
+     * @param count The number of bytes to send.
+     * @throws IOException
+     */
+    public void transfer(FileChannel file, long position, long count) throws IOException
+    {
+        while (count > 0)
+        {
+            long n = file.transferTo(position, count, channel);
+
+            if (n > 0)
+            {
+                position += n;
+
+                count -= n;
+            }
+            else if (position >= file.size())
+            {
+                throw new EOFException("The file ended before its region.");
+            }
+            else if (!channel.isBlocking())
+            {
+                await();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (selector != null)
+        {
+            selector.close();
+
+            selector = null;
+        }
+
+        channel.close();
+    }
+}
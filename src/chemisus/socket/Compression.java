@@ -0,0 +1,417 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+
+/**
+ * A {@link Compression} tells a {@link Socket} to deflate the packets it
+ * sends once they are large enough to be worth it.
+ *
+ * <pre>
+ * byte[] dictionary = Compression.Train(Paths.get("traffic.cap"), 16384);
+ *
+ * socket.setCompression(new Compression(256, Deflater.BEST_SPEED, dictionary));
+ * </pre>
+ *
+ * Each packet is compressed on its own, so that frames can still be skipped
+ * and sent again after a resume. Small packets share little with themselves,
+ * which is what a preset dictionary is for: it holds the strings the traffic
+ * usually repeats, such as field names and common values, and both sides
+ * start every packet as if they had already seen it. Sides with different
+ * dictionaries still compress, just without one.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class Compression
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    /**
+     * The default size, in bytes, below which packets are sent as they are.
+     */
+    public static final int THRESHOLD = 256;
+
+    /**
+     * The number of bytes compared at a time while training a dictionary.
+     */
+    private static final int GRAM = 8;
+
+    /**
+     * The number of bytes of a piece of a sample that may be put into a
+     * dictionary.
+     */
+    private static final int SEGMENT = 64;
+
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Build a preset dictionary from samples of the packets that are sent.
+     *
+     * The pieces of the samples whose bytes appear in the most samples are
+     * kept, without repeating what an earlier piece already holds, and the
+     * most common pieces are put last, where they are cheapest to refer to.
+     *
+     * @param samples The samples, such as the payloads of recent packets.
+     * @param size The most bytes the dictionary should hold.
+     * @return {@link byte[]} the dictionary, which is empty if the samples
+     * have nothing in common.
+     */
+    public static byte[] Train(Collection<byte[]> samples, int size)
+    {
+        HashMap<Long, int[]> counts = new HashMap<Long, int[]>();
+
+        for (byte[] sample : samples)
+        {
+            HashSet<Long> seen = new HashSet<Long>();
+
+            for (int i = 0; i + GRAM <= sample.length; i++)
+            {
+                Long gram = gram(sample, i);
+
+                if (seen.add(gram))
+                {
+                    int[] count = counts.get(gram);
+
+                    if (count == null)
+                    {
+                        counts.put(gram, new int[] {1});
+                    }
+                    else
+                    {
+                        count[0]++;
+                    }
+                }
+            }
+        }
+
+        PriorityQueue<Segment> queue = new PriorityQueue<Segment>();
+
+        for (byte[] sample : samples)
+        {
+            for (int start = 0; start + GRAM <= sample.length; start += SEGMENT / 2)
+            {
+                Segment segment = new Segment(sample, start, Math.min(sample.length, start + SEGMENT));
+
+                if (segment.score(counts) > 0)
+                {
+                    queue.add(segment);
+                }
+            }
+        }
+
+        ArrayList<Segment> chosen = new ArrayList<Segment>();
+
+        int total = 0;
+
+        while (total < size && !queue.isEmpty())
+        {
+            Segment segment = queue.poll();
+
+            int score = segment.score;
+
+            if (segment.score(counts) < score)
+            {
+                if (segment.score > 0)
+                {
+                    queue.add(segment);
+                }
+
+                continue;
+            }
+
+            chosen.add(segment);
+
+            total += segment.end - segment.start;
+
+            for (int i = segment.start; i + GRAM <= segment.end; i++)
+            {
+                counts.remove(gram(segment.sample, i));
+            }
+        }
+
+        byte[] dictionary = new byte[Math.min(total, size)];
+
+        int position = dictionary.length;
+
+        for (Segment segment : chosen)
+        {
+            int length = Math.min(position, segment.end - segment.start);
+
+            position -= length;
+
+            System.arraycopy(segment.sample, segment.end - length, dictionary, position, length);
+        }
+
+        return dictionary;
+    }
+
+    /**
+     * Build a preset dictionary from the frames recorded by a
+     * {@link Capture}, in either direction.
+     *
+     * @param path The capture file.
+     * @param size The most bytes the dictionary should hold.
+     * @return {@link byte[]} the dictionary.
+     * @throws IOException
+     */
+    public static byte[] Train(Path path, int size) throws IOException
+    {
+        ArrayList<byte[]> samples = new ArrayList<byte[]>();
+
+        DataInputStream input = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(path), 65536)
+        );
+
+        try
+        {
+            if (input.readInt() != Capture.MAGIC || input.readInt() != Capture.VERSION)
+            {
+                throw new IOException(path + " is not a capture.");
+            }
+
+            input.readLong();
+
+            while (true)
+            {
+                int length;
+
+                try
+                {
+                    length = input.readInt();
+                }
+                catch (EOFException ex)
+                {
+                    break;
+                }
+
+                if (length <= 0)
+                {
+                    break;
+                }
+
+                input.skipBytes(Capture.RECORD - 4);
+
+                byte[] frame = new byte[length];
+
+                input.readFully(frame);
+
+                samples.add(frame);
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+
+        return Train(samples, size);
+    }
+
+    /**
+     * Reads the bytes at a position of a sample as one number.
+     *
+     * @param sample The sample.
+     * @param position The position of the first byte.
+     * @return {@link Long} the bytes.
+     */
+    private static Long gram(byte[] sample, int position)
+    {
+        long gram = 0;
+
+        for (int i = 0; i < GRAM; i++)
+        {
+            gram = gram << 8 | sample[position + i] & 0xff;
+        }
+
+        return gram;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final int threshold;
+
+    private final int level;
+
+    private final byte[] dictionary;
+
+    /**
+     * The Adler-32 checksum of the dictionary, which is how deflate names
+     * it, or 0 if there is none.
+     */
+    private final int id;
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get the size below which packets are sent as they are.
+     *
+     * @return {@link int} the number of bytes.
+     */
+    public int getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * Get the deflate level packets are compressed with.
+     *
+     * @return {@link int} the level, from 0 to 9.
+     */
+    public int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * Get the preset dictionary.
+     *
+     * @return {@link byte[]} the dictionary, or null.
+     */
+    public byte[] getDictionary()
+    {
+        return dictionary;
+    }
+
+    /**
+     * Get the Adler-32 checksum of the preset dictionary.
+     *
+     * @return {@link int} the checksum, or 0 if there is no dictionary.
+     */
+    public int getDictionaryId()
+    {
+        return id;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    /**
+     * Compress packets of at least {@link THRESHOLD} bytes, for speed.
+     */
+    public Compression()
+    {
+        this(THRESHOLD);
+    }
+
+    /**
+     * Compress packets of at least a size, for speed.
+     *
+     * @param threshold The size below which packets are sent as they are.
+     */
+    public Compression(int threshold)
+    {
+        this(threshold, Deflater.BEST_SPEED, null);
+    }
+
+    /**
+     * Compress packets of at least a size.
+     *
+     * @param threshold The size below which packets are sent as they are.
+     * @param level The deflate level, from {@link Deflater#BEST_SPEED} to
+     * {@link Deflater#BEST_COMPRESSION}.
+     * @param dictionary The preset dictionary, or null.
+     */
+    public Compression(int threshold, int level, byte[] dictionary)
+    {
+        this.threshold = threshold;
+
+        this.level = level;
+
+        if (dictionary != null && dictionary.length > 0)
+        {
+            Adler32 adler = new Adler32();
+
+            adler.update(dictionary);
+
+            this.dictionary = dictionary.clone();
+
+            this.id = (int)adler.getValue();
+        }
+        else
+        {
+            this.dictionary = null;
+
+            this.id = 0;
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Classes                                  \*/
+    /*\**********************************************************************\*/
+    /**
+     * A piece of a sample that may be put into a dictionary, ordered with
+     * the best scoring first.
+     */
+    private static final class Segment
+        implements Comparable<Segment>
+    {
+        private final byte[] sample;
+
+        private final int start;
+
+        private final int end;
+
+        private int score;
+
+        Segment(byte[] sample, int start, int end)
+        {
+            this.sample = sample;
+
+            this.start = start;
+
+            this.end = end;
+        }
+
+        /**
+         * Scores the piece by how many samples share its bytes, counting
+         * only the bytes shared by more than one sample.
+         *
+         * @param counts The number of samples each group of bytes is in.
+         * @return {@link int} the score.
+         */
+        int score(HashMap<Long, int[]> counts)
+        {
+            score = 0;
+
+            for (int i = start; i + GRAM <= end; i++)
+            {
+                int[] count = counts.get(gram(sample, i));
+
+                if (count != null && count[0] > 1)
+                {
+                    score += count[0];
+                }
+            }
+
+            return score;
+        }
+
+        @Override
+        public int compareTo(Segment other)
+        {
+            return Integer.compare(other.score, score);
+        }
+    }
+}
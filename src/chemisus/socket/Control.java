@@ -0,0 +1,454 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A {@link Control} packet is exchanged between two {@link Socket}s to manage
+ * the connection itself. Control packets use negative packet indexes, and are
+ * handled by the socket instead of being returned from
+ * {@link Socket#read()}.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+abstract class Control
+    extends Packet
+{
+    /*\**********************************************************************\*/
+    /*\                             Protected Methods                        \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get if the packet is numbered along with the other packets of the
+     * socket. Packets that are not numbered are never sent again after a
+     * connection is resumed, and can be sent while a connection is being
+     * resumed.
+     *
+     * @return {@link boolean} true if the packet is numbered.
+     */
+    boolean isSequenced()
+    {
+        return true;
+    }
+
+    /**
+     * Apply the packet to the socket that received it.
+     *
+     * @param socket The socket that received the packet.
+     * @return {@link boolean} true if the socket should keep decoding the
+     * frames after this one.
+     * @throws IOException
+     */
+    abstract boolean handle(Socket socket) throws IOException;
+
+    /*\**********************************************************************\*/
+    /*\                             Classes                                  \*/
+    /*\**********************************************************************\*/
+    /**
+     * Announces the highest frame version that a socket can read.
+     */
+    static class Hello
+        extends Control
+    {
+        static final int INDEX = -1;
+
+        private int version;
+
+        Hello()
+        {
+        }
+
+        Hello(int version)
+        {
+            this.version = version;
+        }
+
+        @Override
+        public int getPacketIndex()
+        {
+            return INDEX;
+        }
+
+        @Override
+        protected void write() throws IOException
+        {
+            writeInt(version);
+        }
+
+        @Override
+        protected void read() throws IOException
+        {
+            version = readIntValue();
+        }
+
+        @Override
+        boolean handle(Socket socket) throws IOException
+        {
+            socket.greeted(version);
+
+            return true;
+        }
+    }
+
+    /**
+     * Announces or resumes a resumable connection.
+     */
+    static class Resume
+        extends Control
+    {
+        static final int INDEX = -2;
+
+        /**
+         * Gives the other side the token to resume with, and how many frames
+         * are kept for it.
+         */
+        static final byte ANNOUNCE = 0;
+
+        /**
+         * Asks to resume the socket holding a token over a new connection,
+         * from the index of the next frame expected.
+         */
+        static final byte RESUME = 1;
+
+        /**
+         * Answers a resume, with the index of the next frame expected.
+         */
+        static final byte RESUMED = 2;
+
+        private byte kind;
+
+        private long token;
+
+        private long index;
+
+        Resume()
+        {
+        }
+
+        Resume(byte kind, long token, long index)
+        {
+            this.kind = kind;
+
+            this.token = token;
+
+            this.index = index;
+        }
+
+        @Override
+        public int getPacketIndex()
+        {
+            return INDEX;
+        }
+
+        @Override
+        boolean isSequenced()
+        {
+            return false;
+        }
+
+        @Override
+        protected void write() throws IOException
+        {
+            writeByte(kind);
+
+            writeLong(token);
+
+            writeLong(index);
+        }
+
+        @Override
+        protected void read() throws IOException
+        {
+            kind = readByteValue();
+
+            token = readLongValue();
+
+            index = readLongValue();
+        }
+
+        @Override
+        boolean handle(Socket socket) throws IOException
+        {
+            switch (kind)
+            {
+                case ANNOUNCE:
+                    socket.announced(token, (int)index);
+
+                    return true;
+
+                case RESUME:
+                    return socket.resuming(token, index);
+
+                case RESUMED:
+                    return socket.resumed(token, index);
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Tells the other side which frames have been received, so that it can
+     * stop keeping them.
+     */
+    static class Ack
+        extends Control
+    {
+        static final int INDEX = -3;
+
+        private long index;
+
+        Ack()
+        {
+        }
+
+        Ack(long index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public int getPacketIndex()
+        {
+            return INDEX;
+        }
+
+        @Override
+        boolean isSequenced()
+        {
+            return false;
+        }
+
+        @Override
+        protected void write() throws IOException
+        {
+            writeLong(index);
+        }
+
+        @Override
+        protected void read() throws IOException
+        {
+            index = readLongValue();
+        }
+
+        @Override
+        boolean handle(Socket socket) throws IOException
+        {
+            socket.acknowledged(index);
+
+            return true;
+        }
+    }
+
+    /**
+     * Offers to receive compressed packets, naming the preset dictionary
+     * they may be compressed with.
+     */
+    static class Deflate
+        extends Control
+    {
+        static final int INDEX = -4;
+
+        private int dictionary;
+
+        Deflate()
+        {
+        }
+
+        Deflate(int dictionary)
+        {
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public int getPacketIndex()
+        {
+            return INDEX;
+        }
+
+        @Override
+        protected void write() throws IOException
+        {
+            writeInt(dictionary);
+        }
+
+        @Override
+        protected void read() throws IOException
+        {
+            dictionary = readIntValue();
+        }
+
+        @Override
+        boolean handle(Socket socket) throws IOException
+        {
+            socket.deflating(dictionary);
+
+            return true;
+        }
+    }
+
+    /**
+     * Carries part of a packet written to a {@link Channel}.
+     */
+    static class Fragment
+        extends Control
+    {
+        static final int INDEX = -5;
+
+        private int channel;
+
+        private boolean last;
+
+        private byte[] bytes;
+
+        private int offset;
+
+        private int length;
+
+        Fragment()
+        {
+        }
+
+        Fragment(int channel, boolean last, byte[] bytes, int offset, int length)
+        {
+            this.channel = channel;
+
+            this.last = last;
+
+            this.bytes = bytes;
+
+            this.offset = offset;
+
+            this.length = length;
+        }
+
+        /**
+         * Get if this is the last part of its packet.
+         *
+         * @return {@link boolean} true if the packet is complete.
+         */
+        boolean isLast()
+        {
+            return last;
+        }
+
+        @Override
+        public int getPacketIndex()
+        {
+            return INDEX;
+        }
+
+        @Override
+        protected void write() throws IOException
+        {
+            writeVarInt(channel);
+
+            writeBoolean(last);
+
+            writeBytes(bytes, offset, length);
+        }
+
+        @Override
+        protected void read() throws IOException
+        {
+            channel = readVarIntValue();
+
+            last = readBooleanValue();
+
+            bytes = readBytes();
+
+            offset = 0;
+
+            length = bytes.length;
+        }
+
+        @Override
+        boolean handle(Socket socket) throws IOException
+        {
+            if (!socket.negotiated())
+            {
+                Logger.getLogger(Control.class.getName()).log(
+                    Level.WARNING, "Ignored a channel fragment received before negotiating."
+                );
+
+                return true;
+            }
+
+            socket.fragment(channel, last, bytes);
+
+            return true;
+        }
+    }
+
+    /**
+     * Subscribes the socket that receives it to a topic or pattern, or
+     * unsubscribes it. See {@link Topics}.
+     */
+    static class Subscribe
+        extends Control
+    {
+        static final int INDEX = -6;
+
+        private String pattern;
+
+        private boolean subscribe;
+
+        Subscribe()
+        {
+        }
+
+        Subscribe(String pattern, boolean subscribe)
+        {
+            this.pattern = pattern;
+
+            this.subscribe = subscribe;
+        }
+
+        @Override
+        public int getPacketIndex()
+        {
+            return INDEX;
+        }
+
+        @Override
+        protected void write() throws IOException
+        {
+            writeString(pattern);
+
+            writeBoolean(subscribe);
+        }
+
+        @Override
+        protected void read() throws IOException
+        {
+            pattern = readString();
+
+            subscribe = readBooleanValue();
+        }
+
+        @Override
+        boolean handle(Socket socket) throws IOException
+        {
+            if (!socket.negotiated())
+            {
+                Logger.getLogger(Control.class.getName()).log(
+                    Level.WARNING, "Ignored a subscription received before negotiating."
+                );
+
+                return true;
+            }
+
+            socket.subscribed(pattern, subscribe);
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * The {@link Dispatcher} class runs the callbacks of many {@link Session}s
+ * on a fixed number of worker threads, instead of on the threads that
+ * receive for them.
+ *
+ * Each worker has its own queue, called a stripe, and each session is given
+ * one stripe as it is attached, round robin. A session's events are always
+ * run on its stripe, in the order they were received, while the events of
+ * sessions on other stripes run in parallel. The receiving thread only
+ * queues each packet, then goes straight back to the connection, so a slow
+ * callback no longer stops its session from receiving.
+ *
+ * <pre>
+ * Dispatcher dispatcher = new Dispatcher(8);
+ * dispatcher.start();
+ * session.setDispatcher(dispatcher);
+ * session.start();
+ * </pre>
+ *
+ * The queues are not bounded, so callbacks that can not keep up with what
+ * is received will use more and more memory.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class Dispatcher
+{
+    /*\**********************************************************************\*/
+    /*\                             Static Fields                            \*/
+    /*\**********************************************************************\*/
+    /**
+     * The factory that worker threads are created with. Each thread will be
+     * named `dispatcher-N`.
+     */
+    private static final ThreadFactory Factory = Threads.Platform("dispatcher");
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final Stripe[] stripes;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private volatile boolean running = false;
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Gets if the dispatcher is running or not.
+     *
+     * @return {@link boolean}
+     * <table>
+     *  <tr>
+     *      <td><i>true</i></td>
+     *      <td>The dispatcher is running.</td>
+     *  </tr>
+     *  <tr>
+     *      <td><i>false</i></td>
+     *      <td>The dispatcher is not running.</td>
+     *  </tr>
+     * </table>
+     */
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Get the number of stripes, which is the number of worker threads.
+     *
+     * @return {@link int} the number of stripes.
+     */
+    public int getStripeCount()
+    {
+        return stripes.length;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    /**
+     * Create a dispatcher with one stripe per available processor.
+     */
+    public Dispatcher()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a dispatcher.
+     *
+     * @param count The number of stripes.
+     */
+    public Dispatcher(int count)
+    {
+        stripes = new Stripe[Math.max(1, count)];
+
+        for (int i = 0; i < stripes.length; i++)
+        {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Protected Methods                        \*/
+    /*\**********************************************************************\*/
+    /**
+     * Picks the stripe for a session, round robin.
+     *
+     * @return {@link Stripe} the stripe to run the session's events on.
+     */
+    Stripe assign()
+    {
+        return stripes[(next.getAndIncrement() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Start the worker threads.
+     */
+    public synchronized void start()
+    {
+        if (!isRunning())
+        {
+            running = true;
+
+            for (Stripe stripe : stripes)
+            {
+                stripe.open();
+            }
+        }
+    }
+
+    /**
+     * Stop the worker threads, once they have run every event already
+     * queued. Events of sessions that are still attached are run on the
+     * receiving threads from then on, each after the events queued before
+     * it.
+     */
+    public synchronized void stop()
+    {
+        if (isRunning())
+        {
+            running = false;
+
+            for (Stripe stripe : stripes)
+            {
+                stripe.close();
+            }
+
+            for (Stripe stripe : stripes)
+            {
+                try
+                {
+                    if (stripe.thread != Thread.currentThread())
+                    {
+                        stripe.thread.join();
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    Logger.getLogger(Dispatcher.class.getName()).log(
+                        Level.SEVERE, null, ex
+                    );
+                }
+            }
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Classes                                  \*/
+    /*\**********************************************************************\*/
+    /**
+     * A worker thread, and the queue of events it runs in order.
+     */
+    static class Stripe
+        implements Runnable
+    {
+        /**
+         * Queued after the last event, to stop the worker.
+         */
+        private static final Runnable STOP = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+
+        private Thread thread;
+
+        /**
+         * If the worker is taking events. Only changed while holding the
+         * lock of the stripe, so that no event is queued after
+         * {@link STOP}.
+         */
+        private boolean open = false;
+
+        private synchronized void open()
+        {
+            open = true;
+
+            thread = Factory.newThread(this);
+
+            thread.start();
+        }
+
+        private synchronized void close()
+        {
+            open = false;
+
+            tasks.add(STOP);
+        }
+
+        /**
+         * Waits for a worker that has been closed to run the events that
+         * were queued before it was, so that events run on other threads do
+         * not overtake them.
+         *
+         * @param worker The worker, or null if there never was one.
+         */
+        private static void finish(Thread worker)
+        {
+            if (worker == null || worker == Thread.currentThread())
+            {
+                return;
+            }
+
+            boolean interrupted = false;
+
+            while (worker.isAlive())
+            {
+                try
+                {
+                    worker.join();
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Runs an event on the worker, after the events queued before it,
+         * or right away if the dispatcher is not running. Once the
+         * dispatcher has stopped, an event waits for the worker to run the
+         * events still queued before it runs.
+         *
+         * @param task The event to run.
+         */
+        void execute(Runnable task)
+        {
+            Thread worker;
+
+            synchronized (this)
+            {
+                if (open)
+                {
+                    tasks.add(task);
+
+                    return;
+                }
+
+                worker = thread;
+            }
+
+            finish(worker);
+
+            task.run();
+        }
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                Runnable task;
+
+                try
+                {
+                    task = tasks.take();
+                }
+                catch (InterruptedException ex)
+                {
+                    continue;
+                }
+
+                if (task == STOP)
+                {
+                    return;
+                }
+
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException ex)
+                {
+                    Logger.getLogger(Dispatcher.class.getName()).log(
+                        Level.SEVERE, null, ex
+                    );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A {@link FilePacket} carries a region of a file without holding it in
+ * memory. The sender's file is sent with {@link FileChannel#transferTo}, and
+ * a receiver that is not driven by a {@link Reactor} streams the region
+ * straight into a file as it arrives, once frames of version 2 or later are
+ * used. Otherwise the region is buffered until all of it has arrived.
+ *
+ * Subclasses give the packet index, and may send fields of their own, such
+ * as a file name, by overriding {@link writeHeader()} and
+ * {@link readHeader()}. The received region is written to a temporary file,
+ * unless {@link open()} is overridden to choose another one. The file is
+ * only opened once the region can be read, and is closed again if reading
+ * it fails, and deleted if it was temporary.
+ *
+ * <pre>
+ * socket.write(new UploadPacket(Paths.get("video.mp4")));
+ * </pre>
+ *
+ * The file of a packet being written must stay open until the write has
+ * completed, and both sides should {@link close()} the packet once they are
+ * done with its file.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public abstract class FilePacket
+    extends Packet
+{
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private FileChannel file;
+
+    private Path path;
+
+    private long position;
+
+    private long count;
+
+    /**
+     * If the file was created by {@link open()} as a temporary file.
+     */
+    private boolean temporary = false;
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get the file that the region is sent from or was received into.
+     *
+     * @return {@link FileChannel} the file.
+     */
+    public FileChannel getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Get the path of the file, if the packet opened it.
+     *
+     * @return {@link Path} the path, or null.
+     */
+    public Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Get the position of the region in the file.
+     *
+     * @return {@link long} the position.
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Get the size of the region.
+     *
+     * @return {@link long} the number of bytes.
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    /**
+     * Create a packet to be received.
+     */
+    public FilePacket()
+    {
+    }
+
+    /**
+     * Create a packet that sends a region of an open file.
+     *
+     * @param file The file to send from.
+     * @param position The position in the file to start at.
+     * @param count The number of bytes to send.
+     */
+    public FilePacket(FileChannel file, long position, long count)
+    {
+        this.file = file;
+
+        this.position = position;
+
+        this.count = count;
+    }
+
+    /**
+     * Create a packet that sends a whole file.
+     *
+     * @param path The file to send.
+     * @throws IOException
+     */
+    public FilePacket(Path path) throws IOException
+    {
+        this(FileChannel.open(path, StandardOpenOption.READ), 0, Files.size(path));
+
+        this.path = path;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Closes a file that a region could not be read into, and deletes it if
+     * it was temporary.
+     *
+     * @param file The file.
+     */
+    private void discard(FileChannel file)
+    {
+        try
+        {
+            file.close();
+
+            if (temporary)
+            {
+                Files.deleteIfExists(path);
+            }
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(FilePacket.class.getName()).log(
+                Level.WARNING, null, ex
+            );
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Protected Methods                        \*/
+    /*\**********************************************************************\*/
+    /**
+     * Write the fields that are sent before the file.
+     *
+     * @throws IOException
+     */
+    protected void writeHeader() throws IOException
+    {
+    }
+
+    /**
+     * Read the fields that are sent before the file.
+     *
+     * @throws IOException
+     */
+    protected void readHeader() throws IOException
+    {
+    }
+
+    /**
+     * Open the file that a received region is written to. The header has
+     * already been read when this is called, and the whole region is ready
+     * to be read.
+     *
+     * @return {@link FileChannel} the file, opened for writing.
+     * @throws IOException
+     */
+    protected FileChannel open() throws IOException
+    {
+        path = Files.createTempFile("chemisus-socket-", ".part");
+
+        temporary = true;
+
+        return FileChannel.open(
+            path, StandardOpenOption.READ, StandardOpenOption.WRITE
+        );
+    }
+
+    @Override
+    protected void write() throws IOException
+    {
+        writeHeader();
+
+        writeFile(file, position, count);
+    }
+
+    @Override
+    protected void read() throws IOException
+    {
+        readHeader();
+
+        long count = readFileSize();
+
+        temporary = false;
+
+        FileChannel file = open();
+
+        try
+        {
+            readFile(file, 0, count);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            discard(file);
+
+            throw ex;
+        }
+
+        this.file = file;
+
+        this.position = 0;
+
+        this.count = count;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Close the file of the packet.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        if (file != null)
+        {
+            file.close();
+        }
+    }
+}
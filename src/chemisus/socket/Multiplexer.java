@@ -0,0 +1,210 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * {@link Multiplexer} holds the {@link Channel}s of a {@link Socket}, and
+ * decides which of them sends next.
+ *
+ * Channels with packets waiting take turns sending one fragment each, and
+ * only {@link WINDOW} fragments are handed to the socket at a time, so that
+ * the socket's own queue never holds more than a fragment or two of one
+ * channel in front of another.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+final class Multiplexer
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    /**
+     * The most fragments written to the socket and not yet flushed.
+     */
+    private static final int WINDOW = 2;
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final Socket socket;
+
+    private final ConcurrentHashMap<Integer, Channel> channels = new ConcurrentHashMap<Integer, Channel>();
+
+    /**
+     * The channels waiting for their turn to send, in order.
+     */
+    private final ArrayDeque<Channel> ready = new ArrayDeque<Channel>();
+
+    /**
+     * The number of fragments written to the socket and not yet flushed.
+     */
+    private int flight = 0;
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    Multiplexer(Socket socket)
+    {
+        this.socket = socket;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Writes fragments to the socket, a channel at a time, until the window
+     * is full or no channel has anything to send. Must hold the lock.
+     */
+    private void pump()
+    {
+        while (flight < WINDOW && !ready.isEmpty())
+        {
+            Channel channel = ready.poll();
+
+            final Channel.Message message = channel.next();
+
+            final boolean last = message.isLast();
+
+            socket.account(-message.length);
+
+            if (channel.isPending())
+            {
+                ready.add(channel);
+            }
+            else
+            {
+                channel.queued = false;
+            }
+
+            flight++;
+
+            socket.writeAsync(new Control.Fragment(
+                channel.getId(), last, message.bytes, message.offset, message.length
+            )).whenComplete(new BiConsumer<Void, Throwable>()
+            {
+                @Override
+                public void accept(Void value, Throwable failure)
+                {
+                    if (failure != null)
+                    {
+                        message.future.completeExceptionally(failure);
+                    }
+                    else if (last)
+                    {
+                        message.future.complete(null);
+                    }
+
+                    sent();
+                }
+            });
+        }
+    }
+
+    /**
+     * Called once a fragment has been flushed, or has failed.
+     */
+    private synchronized void sent()
+    {
+        flight--;
+
+        pump();
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Protected Methods                        \*/
+    /*\**********************************************************************\*/
+    /**
+     * Gets a channel, opening it if it is not open yet.
+     *
+     * @param id The id of the channel.
+     * @return {@link Channel} the channel.
+     */
+    Channel open(int id)
+    {
+        Channel channel = channels.get(id);
+
+        if (channel == null)
+        {
+            Channel opened = new Channel(socket, id);
+
+            channel = channels.putIfAbsent(id, opened);
+
+            if (channel == null)
+            {
+                channel = opened;
+            }
+        }
+
+        return channel;
+    }
+
+    /**
+     * Stops receiving on a channel.
+     *
+     * @param channel The channel.
+     */
+    void close(Channel channel)
+    {
+        channels.remove(channel.getId(), channel);
+    }
+
+    /**
+     * Queues a packet to be sent on a channel.
+     *
+     * @param channel The channel.
+     * @param message The bytes of the packet.
+     */
+    synchronized void send(Channel channel, Channel.Message message)
+    {
+        socket.account(message.bytes.length);
+
+        channel.add(message);
+
+        if (!channel.queued)
+        {
+            channel.queued = true;
+
+            ready.add(channel);
+        }
+
+        pump();
+    }
+
+    /**
+     * Called with each fragment received, on the thread that receives for
+     * the socket.
+     *
+     * @param id The id of the channel.
+     * @param last If the fragment completes its packet.
+     * @param bytes The bytes of the fragment.
+     * @throws IOException
+     */
+    void received(int id, boolean last, byte[] bytes) throws IOException
+    {
+        Channel channel = channels.get(id);
+
+        if (channel == null)
+        {
+            Logger.getLogger(Multiplexer.class.getName()).log(
+                Level.WARNING, "Channel {0} is not open, skipped.", id
+            );
+
+            return;
+        }
+
+        channel.received(last, bytes);
+    }
+}
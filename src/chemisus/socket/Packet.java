@@ -8,7 +8,9 @@ package chemisus.socket;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,6 +20,13 @@ import java.util.logging.Logger;
  * {@link Session} class to read and write data across a connection, as well as
  * making sure that the data is organized and easily used by other classes.
  * 
+ * <p>Fields should be read and written with the primitive functions, such as
+ * {@link writeInt(int)} and {@link readIntValue()}, which do not box values.
+ * The boxed functions are deprecated; existing packets keep working, and
+ * are migrated by replacing each <code>readInt()</code> with
+ * <code>readIntValue()</code>. Writes of primitive values already resolve to
+ * the primitive functions once recompiled.</p>
+ * 
  * @author      Terrence Howard <chemisus@gmail.com>
  * @version     0.1
  * @since       0.1
@@ -27,7 +36,10 @@ public abstract class Packet
     /*\**********************************************************************\*/
     /*\                             Constants                                \*/
     /*\**********************************************************************\*/
-    private static final ConcurrentHashMap<Integer, Class> Packets = new ConcurrentHashMap<Integer, Class>();
+    private static final Registry Packets = new Registry();
+
+    private static final AtomicIntegerFieldUpdater<Packet> References =
+        AtomicIntegerFieldUpdater.newUpdater(Packet.class, "references");
 
     /*\**********************************************************************\*/
     /*\                             Static Methods                           \*/
@@ -57,25 +69,19 @@ public abstract class Packet
         {
             for (Class c : classes)
             {
-                int index = ((Packet)c.newInstance()).getPacketIndex();
+                Supplier<Packet> factory = Registry.Factory(c);
+
+                int index = factory.get().getPacketIndex();
 
-                if (Packets.containsKey(index) || Packets.containsValue(c))
+                if (!Packets.add(index, c, factory))
                 {
                     return false;
                 }
-
-                Packets.put(index, c);
             }
 
             return true;
         }
-        catch (InstantiationException ex)
-        {
-            Logger.getLogger(Packet.class.getName()).log(
-                Level.SEVERE, null, ex
-            );
-        }
-        catch (IllegalAccessException ex)
+        catch (ReflectiveOperationException ex)
         {
             Logger.getLogger(Packet.class.getName()).log(
                 Level.SEVERE, null, ex
@@ -84,6 +90,34 @@ public abstract class Packet
 
         return false;
     }
+
+    /**
+     * Register a packet factory globally.
+     * 
+     * The factory is called once to find the index of its packets.
+     * 
+     * @param factory The factory that creates the packet, such as
+     * <code>ChatPacket::new</code>.
+     * @return {@link boolean}
+     * <table>
+     *  <tr>
+     *      <td><i>true</i></td>
+     *      <td>The factory was successfully added.</td>
+     *  </tr>
+     *  <tr>
+     *      <td><i>false</i></td>
+     *      <td>The factory was not successfully added.</td>
+     *  </tr>
+     * </table>
+     */
+    public static boolean Register(Supplier<? extends Packet> factory)
+    {
+        Packet packet = factory.get();
+
+        packet.release();
+
+        return Packets.add(packet.getPacketIndex(), packet.getClass(), factory);
+    }
     
     /**
      * Creates an instance of a packet based on the index that is read from the
@@ -105,33 +139,7 @@ public abstract class Packet
      */
     public static Packet Instance(int index)
     {
-        try
-        {
-            if (Packets.containsKey(index))
-            {
-                return (Packet)Packets.get(index).newInstance();
-            }
-        }
-        catch (NullPointerException ex)
-        {
-            Logger.getLogger(Packet.class.getName()).log(
-                Level.SEVERE, "The index was: " + index, ex
-            );
-        }
-        catch (InstantiationException ex)
-        {
-            Logger.getLogger(Packet.class.getName()).log(
-                Level.SEVERE, null, ex
-            );
-        }
-        catch (IllegalAccessException ex)
-        {
-            Logger.getLogger(Packet.class.getName()).log(
-                Level.SEVERE, null, ex
-            );
-        }
-        
-        return null;
+        return Packets.create(index);
     }
 
     /*\**********************************************************************\*/
@@ -147,6 +155,33 @@ public abstract class Packet
      */
     private SocketInputStream input;
 
+    /**
+     * The pool that this packet is returned to once released, or null if the
+     * packet is not pooled.
+     */
+    PacketPool pool;
+
+    /**
+     * Tracks this packet while it is taken from its pool, when debugging.
+     */
+    PacketPool.Lease lease;
+
+    /**
+     * The number of references held to a pooled packet.
+     */
+    private volatile int references = 0;
+
+    /**
+     * The id of the call this packet was received as, or answered, or 0 if
+     * it was not received as part of a call.
+     */
+    private int call = 0;
+
+    /**
+     * If the packet was received as the reply to a call.
+     */
+    private boolean reply = false;
+
     /*\**********************************************************************\*/
     /*\                             Properties                               \*/
     /*\**********************************************************************\*/
@@ -158,6 +193,37 @@ public abstract class Packet
      */
     public abstract int getPacketIndex();
 
+    /**
+     * Get if the packet was received as a call, which the other side is
+     * waiting for a reply to. See {@link Session#reply(Packet, Packet)}.
+     * 
+     * @return {@link boolean} true if the packet is a call.
+     */
+    public boolean isCall()
+    {
+        return call != 0 && !reply;
+    }
+
+    /**
+     * Get if the packet was received as the reply to a call.
+     * 
+     * @return {@link boolean} true if the packet is a reply.
+     */
+    boolean isReply()
+    {
+        return reply;
+    }
+
+    /**
+     * Get the id of the call the packet was received as, or answered.
+     * 
+     * @return {@link int} the id, or 0 if it was not part of a call.
+     */
+    int getCallId()
+    {
+        return call;
+    }
+
     /**
      * Get the output stream.
      * 
@@ -191,6 +257,31 @@ public abstract class Packet
     /*\**********************************************************************\*/
     /*\                             Protected Methods                        \*/
     /*\**********************************************************************\*/
+    /**
+     * Called by the pool as the packet is taken from it.
+     */
+    void lease()
+    {
+        references = 1;
+
+        call = 0;
+
+        reply = false;
+    }
+
+    /**
+     * Called by the socket as the packet is received.
+     * 
+     * @param call The id of the call the packet is part of, or 0.
+     * @param reply If the packet is the reply to the call.
+     */
+    void called(int call, boolean reply)
+    {
+        this.call = call;
+
+        this.reply = reply;
+    }
+
     /**
      * Override this to write data.
      * 
@@ -210,8 +301,22 @@ public abstract class Packet
      * 
      * @param value The Boolean value to write.
      * @throws IOException 
+     * @deprecated Use {@link writeBoolean(boolean)}, which does not box the
+     * value.
      */
+    @Deprecated
     protected void writeBoolean(Boolean value) throws IOException
+    {
+        getOutput().writeBoolean(value.booleanValue());
+    }
+
+    /**
+     * Write a boolean value to the stream.
+     * 
+     * @param value The boolean value to write.
+     * @throws IOException 
+     */
+    protected void writeBoolean(boolean value) throws IOException
     {
         getOutput().writeBoolean(value);
     }
@@ -221,8 +326,22 @@ public abstract class Packet
      * 
      * @param value The Byte value to write.
      * @throws IOException 
+     * @deprecated Use {@link writeByte(byte)}, which does not box the
+     * value.
      */
+    @Deprecated
     protected void writeByte(Byte value) throws IOException
+    {
+        getOutput().writeByte(value.byteValue());
+    }
+
+    /**
+     * Write a byte value to the stream.
+     * 
+     * @param value The byte value to write.
+     * @throws IOException 
+     */
+    protected void writeByte(byte value) throws IOException
     {
         getOutput().writeByte(value);
     }
@@ -238,13 +357,40 @@ public abstract class Packet
         getOutput().writeBytes(value);
     }
 
+    /**
+     * Write part of a byte[] value to the stream.
+     * 
+     * @param value The byte[] value to write from.
+     * @param offset The index of the first byte to write.
+     * @param length The number of bytes to write.
+     * @throws IOException 
+     */
+    protected void writeBytes(byte[] value, int offset, int length) throws IOException
+    {
+        getOutput().writeBytes(value, offset, length);
+    }
+
     /**
      * Write a Character value to the stream.
      * 
      * @param value The Character value to write.
      * @throws IOException 
+     * @deprecated Use {@link writeChar(char)}, which does not box the
+     * value.
      */
+    @Deprecated
     protected void writeChar(Character value) throws IOException
+    {
+        getOutput().writeChar(value.charValue());
+    }
+
+    /**
+     * Write a char value to the stream.
+     * 
+     * @param value The char value to write.
+     * @throws IOException 
+     */
+    protected void writeChar(char value) throws IOException
     {
         getOutput().writeChar(value);
     }
@@ -254,19 +400,62 @@ public abstract class Packet
      * 
      * @param value The Double value to write.
      * @throws IOException 
+     * @deprecated Use {@link writeDouble(double)}, which does not box the
+     * value.
      */
+    @Deprecated
     protected void writeDouble(Double value) throws IOException
+    {
+        getOutput().writeDouble(value.doubleValue());
+    }
+
+    /**
+     * Write a double value to the stream.
+     * 
+     * @param value The double value to write.
+     * @throws IOException 
+     */
+    protected void writeDouble(double value) throws IOException
     {
         getOutput().writeDouble(value);
     }
 
+    /**
+     * Write a region of a file to the stream. The region is sent straight
+     * from the file, so the file must stay open until the write has
+     * completed, and the region must be the last thing the packet writes.
+     * 
+     * @param file The file to send from.
+     * @param position The position in the file to start at.
+     * @param count The number of bytes to send.
+     * @throws IOException 
+     */
+    protected void writeFile(FileChannel file, long position, long count) throws IOException
+    {
+        getOutput().writeFile(file, position, count);
+    }
+
     /**
      * Write a Float value to the stream.
      * 
      * @param value The Float value to write.
      * @throws IOException 
+     * @deprecated Use {@link writeFloat(float)}, which does not box the
+     * value.
      */
+    @Deprecated
     protected void writeFloat(Float value) throws IOException
+    {
+        getOutput().writeFloat(value.floatValue());
+    }
+
+    /**
+     * Write a float value to the stream.
+     * 
+     * @param value The float value to write.
+     * @throws IOException 
+     */
+    protected void writeFloat(float value) throws IOException
     {
         getOutput().writeFloat(value);
     }
@@ -276,8 +465,22 @@ public abstract class Packet
      * 
      * @param value The Integer value to write.
      * @throws IOException 
+     * @deprecated Use {@link writeInt(int)}, which does not box the
+     * value.
      */
+    @Deprecated
     protected void writeInt(Integer value) throws IOException
+    {
+        getOutput().writeInt(value.intValue());
+    }
+
+    /**
+     * Write a int value to the stream.
+     * 
+     * @param value The int value to write.
+     * @throws IOException 
+     */
+    protected void writeInt(int value) throws IOException
     {
         getOutput().writeInt(value);
     }
@@ -287,8 +490,22 @@ public abstract class Packet
      * 
      * @param value The Long value to write.
      * @throws IOException 
+     * @deprecated Use {@link writeLong(long)}, which does not box the
+     * value.
      */
+    @Deprecated
     protected void writeLong(Long value) throws IOException
+    {
+        getOutput().writeLong(value.longValue());
+    }
+
+    /**
+     * Write a long value to the stream.
+     * 
+     * @param value The long value to write.
+     * @throws IOException 
+     */
+    protected void writeLong(long value) throws IOException
     {
         getOutput().writeLong(value);
     }
@@ -298,8 +515,22 @@ public abstract class Packet
      * 
      * @param value The Short value to write.
      * @throws IOException 
+     * @deprecated Use {@link writeShort(short)}, which does not box the
+     * value.
      */
+    @Deprecated
     protected void writeShort(Short value) throws IOException
+    {
+        getOutput().writeShort(value.shortValue());
+    }
+
+    /**
+     * Write a short value to the stream.
+     * 
+     * @param value The short value to write.
+     * @throws IOException 
+     */
+    protected void writeShort(short value) throws IOException
     {
         getOutput().writeShort(value);
     }
@@ -315,15 +546,51 @@ public abstract class Packet
         getOutput().writeString(value);
     }
 
+    /**
+     * Write a int value to the stream as a zigzag varint, which takes fewer
+     * bytes the closer the value is to zero.
+     * 
+     * @param value The int value to write.
+     * @throws IOException 
+     */
+    protected void writeVarInt(int value) throws IOException
+    {
+        getOutput().writeVarInt(value);
+    }
+
+    /**
+     * Write a long value to the stream as a zigzag varint.
+     * 
+     * @param value The long value to write.
+     * @throws IOException 
+     */
+    protected void writeVarLong(long value) throws IOException
+    {
+        getOutput().writeVarLong(value);
+    }
+
     /**
      * Read a Boolean value from the stream.
      * 
      * @return The Boolean value read.
      * @throws IOException 
+     * @deprecated Use {@link readBooleanValue()}, which does not box the value.
      */
+    @Deprecated
     protected Boolean readBoolean() throws IOException
     {
-        return getInput().readBoolean();
+        return getInput().readBooleanValue();
+    }
+
+    /**
+     * Read a boolean value from the stream.
+     * 
+     * @return The boolean value read.
+     * @throws IOException 
+     */
+    protected boolean readBooleanValue() throws IOException
+    {
+        return getInput().readBooleanValue();
     }
     
     /**
@@ -331,10 +598,23 @@ public abstract class Packet
      * 
      * @return The Byte value read.
      * @throws IOException 
+     * @deprecated Use {@link readByteValue()}, which does not box the value.
      */
+    @Deprecated
     protected Byte readByte() throws IOException
     {
-        return getInput().readByte();
+        return getInput().readByteValue();
+    }
+
+    /**
+     * Read a byte value from the stream.
+     * 
+     * @return The byte value read.
+     * @throws IOException 
+     */
+    protected byte readByteValue() throws IOException
+    {
+        return getInput().readByteValue();
     }
 
     /**
@@ -353,10 +633,23 @@ public abstract class Packet
      * 
      * @return The Character value read.
      * @throws IOException 
+     * @deprecated Use {@link readCharValue()}, which does not box the value.
      */
+    @Deprecated
     protected Character readChar() throws IOException
     {
-        return getInput().readChar();
+        return getInput().readCharValue();
+    }
+
+    /**
+     * Read a char value from the stream.
+     * 
+     * @return The char value read.
+     * @throws IOException 
+     */
+    protected char readCharValue() throws IOException
+    {
+        return getInput().readCharValue();
     }
 
     /**
@@ -364,10 +657,62 @@ public abstract class Packet
      * 
      * @return The Double value read.
      * @throws IOException 
+     * @deprecated Use {@link readDoubleValue()}, which does not box the value.
      */
+    @Deprecated
     protected Double readDouble() throws IOException
     {
-        return getInput().readDouble();
+        return getInput().readDoubleValue();
+    }
+
+    /**
+     * Read a double value from the stream.
+     * 
+     * @return The double value read.
+     * @throws IOException 
+     */
+    protected double readDoubleValue() throws IOException
+    {
+        return getInput().readDoubleValue();
+    }
+
+    /**
+     * Read a region of a file from the stream into a file.
+     * 
+     * @param file The file to write to.
+     * @param position The position in the file to write at.
+     * @return The number of bytes written to the file.
+     * @throws IOException 
+     */
+    protected long readFile(FileChannel file, long position) throws IOException
+    {
+        return getInput().readFile(file, position);
+    }
+
+    /**
+     * Read the size of a region of a file, once the region can be read. See
+     * {@link SocketInputStream#readFileSize()}.
+     * 
+     * @return The number of bytes in the region.
+     * @throws IOException 
+     */
+    protected long readFileSize() throws IOException
+    {
+        return getInput().readFileSize();
+    }
+
+    /**
+     * Read a region of a file, whose size was read with
+     * {@link readFileSize()}, into a file.
+     * 
+     * @param file The file to write to.
+     * @param position The position in the file to write at.
+     * @param count The number of bytes in the region.
+     * @throws IOException 
+     */
+    protected void readFile(FileChannel file, long position, long count) throws IOException
+    {
+        getInput().readFile(file, position, count);
     }
 
     /**
@@ -375,10 +720,23 @@ public abstract class Packet
      * 
      * @return The Float value read.
      * @throws IOException 
+     * @deprecated Use {@link readFloatValue()}, which does not box the value.
      */
+    @Deprecated
     protected Float readFloat() throws IOException
     {
-        return getInput().readFloat();
+        return getInput().readFloatValue();
+    }
+
+    /**
+     * Read a float value from the stream.
+     * 
+     * @return The float value read.
+     * @throws IOException 
+     */
+    protected float readFloatValue() throws IOException
+    {
+        return getInput().readFloatValue();
     }
 
     /**
@@ -386,10 +744,23 @@ public abstract class Packet
      * 
      * @return The Integer value read.
      * @throws IOException 
+     * @deprecated Use {@link readIntValue()}, which does not box the value.
      */
+    @Deprecated
     protected Integer readInt() throws IOException
     {
-        return getInput().readInt();
+        return getInput().readIntValue();
+    }
+
+    /**
+     * Read a int value from the stream.
+     * 
+     * @return The int value read.
+     * @throws IOException 
+     */
+    protected int readIntValue() throws IOException
+    {
+        return getInput().readIntValue();
     }
 
     /**
@@ -397,10 +768,23 @@ public abstract class Packet
      * 
      * @return The Long value read.
      * @throws IOException 
+     * @deprecated Use {@link readLongValue()}, which does not box the value.
      */
+    @Deprecated
     protected Long readLong() throws IOException
     {
-        return getInput().readLong();
+        return getInput().readLongValue();
+    }
+
+    /**
+     * Read a long value from the stream.
+     * 
+     * @return The long value read.
+     * @throws IOException 
+     */
+    protected long readLongValue() throws IOException
+    {
+        return getInput().readLongValue();
     }
 
     /**
@@ -408,10 +792,23 @@ public abstract class Packet
      * 
      * @return The Short value read.
      * @throws IOException 
+     * @deprecated Use {@link readShortValue()}, which does not box the value.
      */
+    @Deprecated
     protected Short readShort() throws IOException
     {
-        return getInput().readShort();
+        return getInput().readShortValue();
+    }
+
+    /**
+     * Read a short value from the stream.
+     * 
+     * @return The short value read.
+     * @throws IOException 
+     */
+    protected short readShortValue() throws IOException
+    {
+        return getInput().readShortValue();
     }
 
     /**
@@ -424,6 +821,28 @@ public abstract class Packet
     {
         return getInput().readString();
     }
+
+    /**
+     * Read a int value that was written as a zigzag varint.
+     * 
+     * @return The int value read.
+     * @throws IOException 
+     */
+    protected int readVarIntValue() throws IOException
+    {
+        return getInput().readVarIntValue();
+    }
+
+    /**
+     * Read a long value that was written as a zigzag varint.
+     * 
+     * @return The long value read.
+     * @throws IOException 
+     */
+    protected long readVarLongValue() throws IOException
+    {
+        return getInput().readVarLongValue();
+    }
     
     /*\**********************************************************************\*/
     /*\                             Public Methods                           \*/
@@ -441,6 +860,43 @@ public abstract class Packet
         write();
     }
     
+    /**
+     * Keep a pooled packet from being returned to its pool until
+     * {@link release()} is called again. Does nothing if the packet is not
+     * pooled.
+     */
+    public final void retain()
+    {
+        if (pool != null)
+        {
+            References.incrementAndGet(this);
+        }
+    }
+
+    /**
+     * Release a reference to a pooled packet, returning it to its pool once
+     * no references are left. The packet must not be used after it has been
+     * released. Does nothing if the packet is not pooled.
+     */
+    public final void release()
+    {
+        if (pool != null)
+        {
+            int count = References.decrementAndGet(this);
+
+            if (count == 0)
+            {
+                pool.release(this);
+            }
+            else if (count < 0)
+            {
+                References.incrementAndGet(this);
+
+                throw new IllegalStateException("The packet was already released.");
+            }
+        }
+    }
+
     /**
      * Read packet data from the stream.
      * 
@@ -0,0 +1,211 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A {@link PacketPool} reuses received packets of one type, so that the
+ * receive path does not allocate a new {@link Packet} for every frame.
+ *
+ * Register the pool in place of the packet class:
+ *
+ * <pre>
+ * Packet.Register(new PacketPool(ChatPacket::new, 1024));
+ * </pre>
+ *
+ * A {@link Session} releases each packet back to its pool once every
+ * {@link Session.Callback} has returned. A callback that keeps a packet
+ * longer must call {@link Packet#retain()}, then {@link Packet#release()}
+ * once it is done with it. Packets read directly with {@link Socket#read()}
+ * must be released by the caller.
+ *
+ * When debugging is on, packets that are never released are reported, along
+ * with where they were taken from the pool.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class PacketPool
+    implements Supplier<Packet>
+{
+    /*\**********************************************************************\*/
+    /*\                             Static Fields                            \*/
+    /*\**********************************************************************\*/
+    /**
+     * If leaked packets should be tracked. Defaults to the system property
+     * `chemisus.socket.debug`.
+     */
+    private static volatile boolean Debug = Boolean.getBoolean("chemisus.socket.debug");
+
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Turn leak detection on or off for every pool.
+     *
+     * @param debug If leaked packets should be tracked.
+     */
+    public static void SetDebug(boolean debug)
+    {
+        Debug = debug;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final Supplier<? extends Packet> factory;
+
+    private final ArrayBlockingQueue<Packet> free;
+
+    /**
+     * The packets currently taken from the pool, while debugging.
+     */
+    private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+
+    private final ReferenceQueue<Packet> leaked = new ReferenceQueue<Packet>();
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get the number of packets waiting in the pool to be reused.
+     *
+     * @return {@link int} the number of packets.
+     */
+    public int size()
+    {
+        return free.size();
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    /**
+     * Create a pool.
+     *
+     * @param factory The factory that creates packets when the pool is empty.
+     * @param capacity The most packets that the pool will hold on to.
+     */
+    public PacketPool(Supplier<? extends Packet> factory, int capacity)
+    {
+        this.factory = factory;
+
+        this.free = new ArrayBlockingQueue<Packet>(capacity);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Reports the packets that were collected without being released.
+     */
+    private void report()
+    {
+        Reference<? extends Packet> reference;
+
+        while ((reference = leaked.poll()) != null)
+        {
+            Lease lease = (Lease)reference;
+
+            if (leases.remove(lease))
+            {
+                Logger.getLogger(PacketPool.class.getName()).log(
+                    Level.SEVERE,
+                    "A packet was collected without being released.",
+                    lease.trace
+                );
+            }
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Protected Methods                        \*/
+    /*\**********************************************************************\*/
+    /**
+     * Returns a packet to the pool once it has no more references.
+     *
+     * @param packet The packet to return.
+     */
+    void release(Packet packet)
+    {
+        Lease lease = packet.lease;
+
+        if (lease != null)
+        {
+            packet.lease = null;
+
+            leases.remove(lease);
+
+            lease.clear();
+        }
+
+        free.offer(packet);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Take a packet from the pool, or create one if the pool is empty.
+     *
+     * @return {@link Packet} the packet, holding one reference.
+     */
+    @Override
+    public Packet get()
+    {
+        Packet packet = free.poll();
+
+        if (packet == null)
+        {
+            packet = factory.get();
+
+            packet.pool = this;
+        }
+
+        packet.lease();
+
+        if (Debug)
+        {
+            report();
+
+            Lease lease = new Lease(packet, leaked);
+
+            leases.add(lease);
+
+            packet.lease = lease;
+        }
+
+        return packet;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Classes                                  \*/
+    /*\**********************************************************************\*/
+    /**
+     * Tracks a packet taken from the pool, and where it was taken.
+     */
+    static class Lease
+        extends PhantomReference<Packet>
+    {
+        private final Throwable trace = new Throwable("Taken from the pool here");
+
+        private Lease(Packet packet, ReferenceQueue<Packet> queue)
+        {
+            super(packet, queue);
+        }
+    }
+}
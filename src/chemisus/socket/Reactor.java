@@ -0,0 +1,705 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * The {@link Reactor} class drives many {@link Session}s and {@link Server}s
+ * from a small number of event loop threads, instead of one thread per
+ * session.
+ *
+ * Each loop owns a {@link Selector}, and sessions are sharded across the
+ * loops as they are accepted or connected. The same {@link Session.Callback}
+ * and {@link Server.Callback} events are fired as with the thread per session
+ * model, so handlers work with either.
+ *
+ * <pre>
+ * Reactor reactor = new Reactor(4);
+ * reactor.start();
+ * server.start(port, reactor);
+ * </pre>
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class Reactor
+{
+    /*\**********************************************************************\*/
+    /*\                             Static Fields                            \*/
+    /*\**********************************************************************\*/
+    /**
+     * The factory that loop threads are created with. Each thread will be
+     * named `reactor-N`.
+     */
+    private static final ThreadFactory Factory = Threads.Platform("reactor");
+
+    /**
+     * The reactors that are currently running.
+     */
+    private static final ConcurrentLinkedQueue<Reactor> Reactors = new ConcurrentLinkedQueue<Reactor>();
+
+    /**
+     * Set on the threads of the loops, which must never block.
+     */
+    private static final ThreadLocal<Boolean> Loops = new ThreadLocal<Boolean>();
+
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Gets if the current thread is the thread of a loop, which callbacks
+     * of the sessions driven by a reactor are called on.
+     *
+     * @return {@link boolean} true if the current thread is a loop's.
+     */
+    static boolean OnLoop()
+    {
+        return Loops.get() != null;
+    }
+
+    /**
+     * Registers a session with the loop its channel was assigned to.
+     *
+     * @param session The session to start receiving for.
+     * @return {@link Loop} the loop that the session was registered with, or
+     * null if no running reactor owns the session's channel.
+     */
+    static Loop Register(Session session)
+    {
+        for (Reactor reactor : Reactors)
+        {
+            Loop loop = reactor.assigned.remove(session.getChannel());
+
+            if (loop != null)
+            {
+                loop.register(session);
+
+                return loop;
+            }
+        }
+
+        return null;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final Loop[] loops;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Channels that have been handed to a loop, but whose session has not
+     * been started yet.
+     */
+    private final ConcurrentHashMap<SocketChannel, Loop> assigned = new ConcurrentHashMap<SocketChannel, Loop>();
+
+    private volatile boolean running = false;
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Gets if the reactor is running or not.
+     *
+     * @return {@link boolean}
+     * <table>
+     *  <tr>
+     *      <td><i>true</i></td>
+     *      <td>The reactor is running.</td>
+     *  </tr>
+     *  <tr>
+     *      <td><i>false</i></td>
+     *      <td>The reactor is not running.</td>
+     *  </tr>
+     * </table>
+     */
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    /**
+     * Create a reactor with one loop per available processor.
+     */
+    public Reactor()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a reactor.
+     *
+     * @param count The number of event loop threads.
+     */
+    public Reactor(int count)
+    {
+        loops = new Loop[Math.max(1, count)];
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Picks the next loop, round robin.
+     *
+     * @return {@link Loop} the loop to use.
+     */
+    private Loop next()
+    {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Protected Methods                        \*/
+    /*\**********************************************************************\*/
+    /**
+     * Assigns a non-blocking channel to one of the loops. The channel will be
+     * registered with that loop once its session is started.
+     *
+     * @param channel The channel to assign.
+     */
+    void assign(SocketChannel channel)
+    {
+        assigned.put(channel, next());
+    }
+
+    /**
+     * Releases a channel whose session was never started.
+     *
+     * @param channel The channel to release.
+     */
+    void unassign(SocketChannel channel)
+    {
+        assigned.remove(channel);
+    }
+
+    /**
+     * Starts accepting connections for a server.
+     *
+     * @param server The server to notify of new connections.
+     * @param channel The non-blocking channel to accept connections on.
+     */
+    void listen(Server server, ServerSocketChannel channel)
+    {
+        next().listen(server, channel);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Start the event loops.
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException
+    {
+        if (!isRunning())
+        {
+            running = true;
+
+            for (int i = 0; i < loops.length; i++)
+            {
+                loops[i] = new Loop(Selector.open());
+            }
+
+            for (Loop loop : loops)
+            {
+                loop.thread.start();
+            }
+
+            Reactors.add(this);
+        }
+    }
+
+    /**
+     * Stop the event loops. Every session still registered will be stopped.
+     */
+    public void stop()
+    {
+        if (isRunning())
+        {
+            running = false;
+
+            Reactors.remove(this);
+
+            for (Loop loop : loops)
+            {
+                loop.selector.wakeup();
+            }
+
+            for (Loop loop : loops)
+            {
+                try
+                {
+                    if (loop.thread != Thread.currentThread())
+                    {
+                        loop.thread.join();
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    Logger.getLogger(Reactor.class.getName()).log(
+                        Level.SEVERE, null, ex
+                    );
+                }
+            }
+        }
+    }
+
+    /**
+     * Connect to a server and create a session driven by this reactor.
+     *
+     * @param host The host name of the server to connect to.
+     * @param port The port to connect to the server on.
+     * @return {@link Session} the session, which must still be started.
+     * @throws IOException
+     */
+    public Session connect(String host, int port) throws IOException
+    {
+        SocketChannel channel = SocketChannel.open(
+            new InetSocketAddress(host, port)
+        );
+
+        channel.configureBlocking(false);
+
+        assign(channel);
+
+        return new Session(channel.socket());
+    }
+
+    /**
+     * Resume a session over a new connection driven by this reactor, after
+     * its old connection dropped.
+     *
+     * @param session The resumable session.
+     * @param host The host name of the server to connect to.
+     * @param port The port to connect to the server on.
+     * @throws IOException if the connection could not be made, or the server
+     * could not resume the session.
+     */
+    public void resume(Session session, String host, int port) throws IOException
+    {
+        SocketChannel channel = SocketChannel.open(
+            new InetSocketAddress(host, port)
+        );
+
+        channel.configureBlocking(false);
+
+        assign(channel);
+
+        try
+        {
+            session.resume(channel.socket());
+        }
+        catch (IOException ex)
+        {
+            unassign(channel);
+
+            channel.close();
+
+            throw ex;
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Classes                                  \*/
+    /*\**********************************************************************\*/
+    /**
+     * A single event loop. All selector and session state of the loop is only
+     * touched from its own thread; other threads hand work to it through
+     * {@link execute(Runnable)}.
+     */
+    class Loop
+        implements Runnable
+    {
+        private final Selector selector;
+
+        private final Thread thread;
+
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        private final HashSet<Session> sessions = new HashSet<Session>();
+
+        private Loop(Selector selector)
+        {
+            this.selector = selector;
+
+            this.thread = Factory.newThread(this);
+        }
+
+        /**
+         * Runs a task on the loop thread.
+         *
+         * @param task The task to run.
+         */
+        void execute(Runnable task)
+        {
+            if (Thread.currentThread() == thread)
+            {
+                task.run();
+            }
+            else
+            {
+                tasks.add(task);
+
+                selector.wakeup();
+            }
+        }
+
+        void register(final Session session)
+        {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    sessions.add(session);
+
+                    session.OnStart();
+
+                    try
+                    {
+                        session.getChannel().register(
+                            selector, SelectionKey.OP_READ, session
+                        );
+
+                        drain(session);
+                    }
+                    catch (ClosedChannelException ex)
+                    {
+                        deregister(session);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Hands the channel of one session over to another session, which
+         * has taken over its connection. If the connection has already been
+         * closed, the other session is stopped without being started.
+         *
+         * @param from The session that had the connection.
+         * @param to The session that has the connection now.
+         */
+        void transfer(final Session from, final Session to)
+        {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    SelectionKey key = to.getChannel().keyFor(selector);
+
+                    if (sessions.remove(from))
+                    {
+                        from.OnStop();
+                    }
+
+                    if (key == null || !key.isValid())
+                    {
+                        to.stop();
+
+                        return;
+                    }
+
+                    sessions.add(to);
+
+                    key.attach(to);
+
+                    to.OnStart();
+                }
+            });
+        }
+
+        /**
+         * Forgets a session without stopping it, after its connection has
+         * been replaced by one that may belong to another loop.
+         *
+         * @param session The session to forget.
+         */
+        void forget(final Session session)
+        {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    sessions.remove(session);
+                }
+            });
+        }
+
+        void deregister(final Session session)
+        {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (sessions.remove(session))
+                    {
+                        SelectionKey key = session.getChannel().keyFor(selector);
+
+                        if (key != null)
+                        {
+                            key.cancel();
+                        }
+
+                        session.OnStop();
+                    }
+                }
+            });
+        }
+
+        void listen(final Server server, final ServerSocketChannel channel)
+        {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try
+                    {
+                        channel.register(selector, SelectionKey.OP_ACCEPT, server);
+                    }
+                    catch (ClosedChannelException ex)
+                    {
+                        Logger.getLogger(Reactor.class.getName()).log(
+                            Level.SEVERE, null, ex
+                        );
+                    }
+                }
+            });
+        }
+
+        private void accept(SelectionKey key)
+        {
+            ServerSocketChannel channel = (ServerSocketChannel)key.channel();
+
+            Server server = (Server)key.attachment();
+
+            try
+            {
+                SocketChannel accepted;
+
+                while ((accepted = channel.accept()) != null)
+                {
+                    try
+                    {
+                        server.accept(accepted);
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        Logger.getLogger(Reactor.class.getName()).log(
+                            Level.SEVERE, null, ex
+                        );
+
+                        unassign(accepted);
+
+                        accepted.close();
+                    }
+                }
+            }
+            catch (IOException ex)
+            {
+                if (server.isAccepting())
+                {
+                    Logger.getLogger(Reactor.class.getName()).log(
+                        Level.SEVERE, null, ex
+                    );
+                }
+            }
+        }
+
+        /**
+         * Stops a session whose callback threw, so that the loop goes on
+         * with its other sessions.
+         *
+         * @param session The session.
+         * @param ex What the callback threw.
+         */
+        private void fail(Session session, RuntimeException ex)
+        {
+            Logger.getLogger(Reactor.class.getName()).log(
+                Level.SEVERE, "A callback failed, stopping its session.", ex
+            );
+
+            session.stop();
+        }
+
+        /**
+         * Runs a task queued for the loop, logging it if it throws, since
+         * the tasks start and stop sessions and so call their callbacks.
+         *
+         * @param task The task.
+         */
+        private void attempt(Runnable task)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException ex)
+            {
+                Logger.getLogger(Reactor.class.getName()).log(
+                    Level.SEVERE, null, ex
+                );
+            }
+        }
+
+        /**
+         * Hands every packet already received by a session to its callbacks.
+         *
+         * @param session The session.
+         */
+        private void drain(Session session)
+        {
+            try
+            {
+                Packet packet;
+
+                while (session.isReceiving() && (packet = session.poll()) != null)
+                {
+                    session.OnReceive(packet);
+                }
+            }
+            catch (IOException ex)
+            {
+                session.stop();
+            }
+            catch (RuntimeException ex)
+            {
+                fail(session, ex);
+            }
+        }
+
+        private void receive(SelectionKey key)
+        {
+            Session session = (Session)key.attachment();
+
+            try
+            {
+                int count = session.fill();
+
+                Packet packet;
+
+                while (true)
+                {
+                    while (session.isReceiving() && (packet = session.poll()) != null)
+                    {
+                        session.OnReceive(packet);
+                    }
+
+                    if (key.attachment() == session)
+                    {
+                        break;
+                    }
+
+                    session = (Session)key.attachment();
+                }
+
+                if (count < 0)
+                {
+                    session.stop();
+                }
+            }
+            catch (IOException ex)
+            {
+                session.stop();
+            }
+            catch (RuntimeException ex)
+            {
+                fail(session, ex);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            Loops.set(Boolean.TRUE);
+
+            while (running)
+            {
+                try
+                {
+                    selector.select();
+                }
+                catch (IOException ex)
+                {
+                    Logger.getLogger(Reactor.class.getName()).log(
+                        Level.SEVERE, null, ex
+                    );
+                }
+
+                Runnable task;
+
+                while ((task = tasks.poll()) != null)
+                {
+                    attempt(task);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+
+                    keys.remove();
+
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+
+                    if (key.isAcceptable())
+                    {
+                        accept(key);
+                    }
+                    else if (key.isReadable())
+                    {
+                        receive(key);
+                    }
+                }
+            }
+
+            Runnable task;
+
+            while ((task = tasks.poll()) != null)
+            {
+                attempt(task);
+            }
+
+            for (Session session : new ArrayList<Session>(sessions))
+            {
+                deregister(session);
+            }
+
+            try
+            {
+                selector.close();
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(Reactor.class.getName()).log(
+                    Level.SEVERE, null, ex
+                );
+            }
+        }
+    }
+}
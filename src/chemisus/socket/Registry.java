@@ -0,0 +1,280 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * {@link Registry} maps packet indexes to the factories that create them.
+ *
+ * Factories are kept in arrays indexed by packet index, so that creating a
+ * received packet is an array load and a call, without reflection or boxing
+ * the index. Indexes too large for the arrays fall back to a map.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+final class Registry
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    /**
+     * Indexes from -LIMIT to LIMIT are kept in the arrays.
+     */
+    private static final int LIMIT = 65536;
+
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Creates a factory that calls the no argument constructor of a packet
+     * class.
+     *
+     * The factory is generated with {@link LambdaMetafactory}, so creating a
+     * packet costs the same as calling its constructor. If the constructor
+     * can not be linked that way, a {@link MethodHandle} is used instead.
+     * Either way, the handles are called through
+     * {@link MethodHandleProxies}, so only unchecked exceptions come out of
+     * them.
+     *
+     * @param c The class of the packet.
+     * @return {@link Supplier} the factory.
+     * @throws ReflectiveOperationException if the class has no usable no
+     * argument constructor.
+     */
+    @SuppressWarnings("unchecked")
+    static Supplier<Packet> Factory(Class<?> c)
+        throws ReflectiveOperationException
+    {
+        if (!Packet.class.isAssignableFrom(c))
+        {
+            throw new ClassCastException(c.getName());
+        }
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        try
+        {
+            MethodHandle constructor = lookup.findConstructor(
+                c, MethodType.methodType(void.class)
+            );
+
+            CallSite site = LambdaMetafactory.metafactory(
+                lookup,
+                "get",
+                MethodType.methodType(Supplier.class),
+                MethodType.methodType(Object.class),
+                constructor,
+                MethodType.methodType(c)
+            );
+
+            Supplier<?> link = MethodHandleProxies.asInterfaceInstance(
+                Supplier.class, site.getTarget()
+            );
+
+            return (Supplier<Packet>)link.get();
+        }
+        catch (ReflectiveOperationException | LambdaConversionException | LinkageError ex)
+        {
+            Logger.getLogger(Registry.class.getName()).log(
+                Level.FINE, "Falling back to a method handle for " + c.getName(), ex
+            );
+        }
+
+        Constructor<?> constructor = c.getDeclaredConstructor();
+
+        constructor.setAccessible(true);
+
+        return MethodHandleProxies.asInterfaceInstance(
+            Supplier.class, lookup.unreflectConstructor(constructor)
+        );
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    /**
+     * The factories of packets with indexes from 0 up. Replaced, never
+     * changed, when a packet is registered.
+     */
+    private volatile Supplier<?>[] positive = new Supplier<?>[0];
+
+    /**
+     * The factories of packets with negative indexes, at -index.
+     */
+    private volatile Supplier<?>[] negative = new Supplier<?>[0];
+
+    /**
+     * The factories of packets whose indexes are too large for the arrays.
+     */
+    private final ConcurrentHashMap<Integer, Supplier<?>> sparse = new ConcurrentHashMap<Integer, Supplier<?>>();
+
+    /**
+     * The index of each registered class.
+     */
+    private final ConcurrentHashMap<Class<?>, Integer> classes = new ConcurrentHashMap<Class<?>, Integer>();
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get the factory of a packet index.
+     *
+     * @param index The packet index.
+     * @return {@link Supplier} the factory, or null.
+     */
+    Supplier<?> get(int index)
+    {
+        Supplier<?>[] factories;
+
+        if (index >= 0)
+        {
+            factories = positive;
+
+            if (index < factories.length)
+            {
+                return factories[index];
+            }
+        }
+        else
+        {
+            factories = negative;
+
+            if (index > -factories.length)
+            {
+                return factories[-index];
+            }
+        }
+
+        if (index >= LIMIT || index <= -LIMIT)
+        {
+            return sparse.get(index);
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets if a packet index has been registered.
+     *
+     * @param index The packet index.
+     * @return {@link boolean} if the index has a factory.
+     */
+    boolean contains(int index)
+    {
+        return get(index) != null;
+    }
+
+    /**
+     * Gets if a class has been registered.
+     *
+     * @param c The class.
+     * @return {@link boolean} if the class has been registered.
+     */
+    boolean contains(Class<?> c)
+    {
+        return classes.containsKey(c);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    private static Supplier<?>[] set(Supplier<?>[] factories, int index, Supplier<?> factory)
+    {
+        Supplier<?>[] next = Arrays.copyOf(
+            factories, Math.max(factories.length, index + 1)
+        );
+
+        next[index] = factory;
+
+        return next;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Registers the factory of a packet, replacing any factory of the same
+     * index.
+     *
+     * @param index The packet index.
+     * @param c The class of the packets that the factory creates.
+     * @param factory The factory.
+     */
+    synchronized void put(int index, Class<?> c, Supplier<?> factory)
+    {
+        if (index >= LIMIT || index <= -LIMIT)
+        {
+            sparse.put(index, factory);
+        }
+        else if (index >= 0)
+        {
+            positive = set(positive, index, factory);
+        }
+        else
+        {
+            negative = set(negative, -index, factory);
+        }
+
+        classes.put(c, index);
+    }
+
+    /**
+     * Registers the factory of a packet, unless its index or class has
+     * already been registered.
+     *
+     * @param index The packet index.
+     * @param c The class of the packets that the factory creates.
+     * @param factory The factory.
+     * @return {@link boolean} if the factory was registered.
+     */
+    synchronized boolean add(int index, Class<?> c, Supplier<?> factory)
+    {
+        if (contains(index) || contains(c))
+        {
+            return false;
+        }
+
+        put(index, c, factory);
+
+        return true;
+    }
+
+    /**
+     * Creates a packet.
+     *
+     * @param index The packet index.
+     * @return {@link Packet} the packet, or null if the index has not been
+     * registered.
+     */
+    Packet create(int index)
+    {
+        Supplier<?> factory = get(index);
+
+        if (factory == null)
+        {
+            return null;
+        }
+
+        return (Packet)factory.get();
+    }
+
+}
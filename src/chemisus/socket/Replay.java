@@ -0,0 +1,463 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * {@link Replay} sends the frames recorded by a {@link Capture} to a
+ * {@link Server}, at the rate they were recorded or faster.
+ *
+ * Each stream of the capture is replayed over a connection of its own, so
+ * a capture shared by many sessions reproduces the same number of clients.
+ * By default the frames the sessions received are replayed, which is what a
+ * capture taken on the server side needs; use {@link Capture#OUT} for a
+ * capture taken on the client side. Whatever the server sends back is read
+ * and thrown away.
+ *
+ * <pre>
+ * java chemisus.socket.Replay traffic.cap localhost 8080 4
+ * </pre>
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class Replay
+{
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Replay a capture from the command line.
+     *
+     * @param args The capture, host, and port, then optionally the rate and
+     * either "in" or "out".
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 3)
+        {
+            System.err.println("usage: Replay <capture> <host> <port> [rate] [in|out]");
+
+            System.exit(1);
+        }
+
+        Replay replay = new Replay(Paths.get(args[0]));
+
+        if (args.length > 3)
+        {
+            replay.setRate(Double.parseDouble(args[3]));
+        }
+
+        if (args.length > 4)
+        {
+            replay.setDirection("out".equals(args[4]) ? Capture.OUT : Capture.IN);
+        }
+
+        long count = replay.run(args[1], Integer.parseInt(args[2]));
+
+        System.out.println(count + " frames replayed.");
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final Path path;
+
+    private volatile double rate = 1;
+
+    private volatile byte direction = Capture.IN;
+
+    private volatile ThreadFactory factory = Threads.Platform("replay", true);
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Set how many times faster than recorded the frames are sent.
+     *
+     * @param rate The speed up, or 0 to send as fast as possible.
+     */
+    public void setRate(double rate)
+    {
+        this.rate = rate;
+    }
+
+    /**
+     * Set which frames of the capture are replayed.
+     *
+     * @param direction Either {@link Capture#IN} or {@link Capture#OUT}.
+     */
+    public void setDirection(byte direction)
+    {
+        this.direction = direction;
+    }
+
+    /**
+     * Set the thread factory that creates the threads which read the
+     * responses of the server.
+     *
+     * @param factory The thread factory.
+     */
+    public void setThreadFactory(ThreadFactory factory)
+    {
+        this.factory = factory;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    /**
+     * Create a replay of a capture.
+     *
+     * @param path The capture file.
+     */
+    public Replay(Path path)
+    {
+        this.path = path;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Opens a connection for a stream, and starts reading whatever the
+     * server sends back on it.
+     *
+     * @param address The address of the server.
+     * @return {@link SocketChannel} the connection.
+     * @throws IOException
+     */
+    private SocketChannel open(InetSocketAddress address) throws IOException
+    {
+        final SocketChannel channel = SocketChannel.open(address);
+
+        factory.newThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+
+                try
+                {
+                    while (channel.read(buffer) >= 0)
+                    {
+                        buffer.clear();
+                    }
+                }
+                catch (IOException ex)
+                {
+                }
+            }
+        }).start();
+
+        return channel;
+    }
+
+    /**
+     * Gets if a frame is numbered along with the other frames of its
+     * connection. Version 1 frames always are, while version 2 frames are
+     * not if they are marked {@link Socket#UNSEQUENCED}, such as resumes and
+     * acknowledgements.
+     *
+     * @param frame The frame.
+     * @return {@link boolean} true if the frame has an index.
+     */
+    private static boolean sequenced(ByteBuffer frame)
+    {
+        return frame.limit() < 5
+            || frame.get(3) != (byte)251
+            || (frame.get(4) & Socket.UNSEQUENCED) == 0;
+    }
+
+    /**
+     * Renumbers a frame for the connection it is replayed on, since the
+     * server expects each connection to count its frames from 0. Frames that
+     * are not numbered are left as they are.
+     *
+     * @param frame The frame.
+     * @param index The index the frame should have.
+     * @return {@link ByteBuffer} the frame, which is a new one if the index of
+     * a compact frame changed size.
+     */
+    private static ByteBuffer renumber(ByteBuffer frame, long index)
+    {
+        if (frame.limit() < 8 || !sequenced(frame))
+        {
+            return frame;
+        }
+
+        if (frame.get(3) == (byte)252 && frame.limit() >= 16)
+        {
+            frame.putLong(4, index);
+        }
+        else if (frame.get(3) == (byte)251 && (frame.get(4) & Socket.COMPACT) != 0)
+        {
+            return renumberCompact(frame, index);
+        }
+        else if (frame.get(3) == (byte)251 && frame.limit() >= 17)
+        {
+            frame.putLong(9, index);
+        }
+
+        return frame;
+    }
+
+    /**
+     * Renumbers a compact frame, whose length and index are varints.
+     *
+     * @param frame The frame.
+     * @param index The index the frame should have.
+     * @return {@link ByteBuffer} the renumbered frame.
+     */
+    private static ByteBuffer renumberCompact(ByteBuffer frame, long index)
+    {
+        int at = 5;
+
+        long length = 0;
+
+        for (int shift = 0; at < frame.limit(); shift += 7)
+        {
+            byte b = frame.get(at++);
+
+            length |= (long)(b & 0x7f) << shift;
+
+            if (b >= 0)
+            {
+                break;
+            }
+        }
+
+        int start = at;
+
+        while (at < frame.limit() && frame.get(at) < 0)
+        {
+            at++;
+        }
+
+        int end = at + 1;
+
+        if (end > frame.limit())
+        {
+            return frame;
+        }
+
+        ByteBuffer renumbered = ByteBuffer.allocate(frame.limit() + 10);
+
+        renumbered.put(frame.array(), frame.arrayOffset(), 5);
+
+        long size = length - (end - start) + varLongSize(index);
+
+        putVarLong(renumbered, size);
+
+        putVarLong(renumbered, index);
+
+        renumbered.put(frame.array(), frame.arrayOffset() + end, frame.limit() - end);
+
+        renumbered.flip();
+
+        return renumbered;
+    }
+
+    /**
+     * Gets the number of bytes an unsigned varint takes.
+     *
+     * @param value The value.
+     * @return {@link int} the number of bytes.
+     */
+    private static int varLongSize(long value)
+    {
+        int size = 1;
+
+        while ((value >>>= 7) != 0)
+        {
+            size++;
+        }
+
+        return size;
+    }
+
+    /**
+     * Writes an unsigned varint into a buffer.
+     *
+     * @param buffer The buffer.
+     * @param value The value.
+     */
+    private static void putVarLong(ByteBuffer buffer, long value)
+    {
+        while ((value & ~0x7fL) != 0)
+        {
+            buffer.put((byte)((value & 0x7f) | 0x80));
+
+            value >>>= 7;
+        }
+
+        buffer.put((byte)value);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Replay the capture to a server, returning once every frame has been
+     * sent.
+     *
+     * @param host The host name of the server.
+     * @param port The port of the server.
+     * @return {@link long} the number of frames sent.
+     * @throws IOException
+     */
+    public long run(String host, int port) throws IOException
+    {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(host), port);
+
+        HashMap<Integer, SocketChannel> channels = new HashMap<Integer, SocketChannel>();
+
+        HashMap<Integer, long[]> counts = new HashMap<Integer, long[]>();
+
+        DataInputStream input = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(path), 65536)
+        );
+
+        long sent = 0;
+
+        try
+        {
+            if (input.readInt() != Capture.MAGIC || input.readInt() != Capture.VERSION)
+            {
+                throw new IOException(path + " is not a capture.");
+            }
+
+            input.readLong();
+
+            long start = System.nanoTime();
+
+            long first = -1;
+
+            byte[] bytes = new byte[4096];
+
+            while (true)
+            {
+                int length;
+
+                try
+                {
+                    length = input.readInt();
+                }
+                catch (EOFException ex)
+                {
+                    break;
+                }
+
+                if (length <= 0)
+                {
+                    break;
+                }
+
+                int stream = input.readInt();
+
+                byte recorded = input.readByte();
+
+                input.readLong();
+
+                long time = input.readLong();
+
+                if (bytes.length < length)
+                {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+
+                input.readFully(bytes, 0, length);
+
+                if (recorded != direction)
+                {
+                    continue;
+                }
+
+                if (first < 0)
+                {
+                    first = time;
+                }
+
+                double rate = this.rate;
+
+                if (rate > 0)
+                {
+                    long due = start + (long)((time - first) / rate);
+
+                    long wait;
+
+                    while ((wait = due - System.nanoTime()) > 0)
+                    {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+
+                SocketChannel channel = channels.get(stream);
+
+                if (channel == null)
+                {
+                    channel = open(address);
+
+                    channels.put(stream, channel);
+
+                    counts.put(stream, new long[] {0});
+                }
+
+                ByteBuffer frame = ByteBuffer.wrap(bytes, 0, length);
+
+                if (sequenced(frame))
+                {
+                    frame = renumber(frame, counts.get(stream)[0]++);
+                }
+
+                while (frame.hasRemaining())
+                {
+                    channel.write(frame);
+                }
+
+                sent++;
+            }
+        }
+        finally
+        {
+            input.close();
+
+            for (SocketChannel channel : channels.values())
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException ex)
+                {
+                    Logger.getLogger(Replay.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        }
+
+        return sent;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * {@link Routes} maps packet indexes to the receivers registered for them.
+ *
+ * Like {@link Registry}, the receivers are kept in an array indexed by
+ * packet index, so that finding the receivers of a packet is an array load,
+ * without boxing the index. Negative indexes and indexes too large for the
+ * array fall back to a map.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+final class Routes
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    /**
+     * Indexes from 0 up to LIMIT are kept in the array.
+     */
+    private static final int LIMIT = 65536;
+
+    private static final Session.Receiver<?>[] NONE = new Session.Receiver<?>[0];
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    /**
+     * The receivers of packets with indexes from 0 up. The array and the
+     * arrays in it are replaced, never changed, when a receiver is added or
+     * removed.
+     */
+    private volatile Session.Receiver<?>[][] routes = new Session.Receiver<?>[0][];
+
+    /**
+     * The receivers of packets whose indexes are not in the array.
+     */
+    private final ConcurrentHashMap<Integer, Session.Receiver<?>[]> sparse = new ConcurrentHashMap<Integer, Session.Receiver<?>[]>();
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get the receivers of a packet index.
+     *
+     * @param index The packet index.
+     * @return {@link Session.Receiver[]} the receivers, or null if there are
+     * none.
+     */
+    Session.Receiver<?>[] get(int index)
+    {
+        if (index >= 0 && index < LIMIT)
+        {
+            Session.Receiver<?>[][] routes = this.routes;
+
+            return index < routes.length ? routes[index] : null;
+        }
+
+        return sparse.get(index);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Replaces the receivers of a packet index.
+     *
+     * @param index The packet index.
+     * @param receivers The receivers, or null if there are none.
+     */
+    private void set(int index, Session.Receiver<?>[] receivers)
+    {
+        if (index >= 0 && index < LIMIT)
+        {
+            Session.Receiver<?>[][] next = Arrays.copyOf(
+                routes, Math.max(routes.length, index + 1)
+            );
+
+            next[index] = receivers;
+
+            routes = next;
+        }
+        else if (receivers == null)
+        {
+            sparse.remove(index);
+        }
+        else
+        {
+            sparse.put(index, receivers);
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Adds a receiver of a packet index, after those already added.
+     *
+     * @param index The packet index.
+     * @param receiver The receiver.
+     */
+    synchronized void add(int index, Session.Receiver<?> receiver)
+    {
+        Session.Receiver<?>[] receivers = get(index);
+
+        if (receivers == null)
+        {
+            receivers = NONE;
+        }
+
+        receivers = Arrays.copyOf(receivers, receivers.length + 1);
+
+        receivers[receivers.length - 1] = receiver;
+
+        set(index, receivers);
+    }
+
+    /**
+     * Removes a receiver of a packet index.
+     *
+     * @param index The packet index.
+     * @param receiver The receiver.
+     * @return {@link boolean} true if the receiver was removed.
+     */
+    synchronized boolean remove(int index, Session.Receiver<?> receiver)
+    {
+        Session.Receiver<?>[] receivers = get(index);
+
+        if (receivers == null)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < receivers.length; i++)
+        {
+            if (receivers[i] == receiver)
+            {
+                Session.Receiver<?>[] next = new Session.Receiver<?>[receivers.length - 1];
+
+                System.arraycopy(receivers, 0, next, 0, i);
+
+                System.arraycopy(receivers, i + 1, next, i, next.length - i);
+
+                set(index, next.length == 0 ? null : next);
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
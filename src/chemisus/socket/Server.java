@@ -6,9 +6,22 @@
 package chemisus.socket;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,6 +29,35 @@ import java.util.logging.Logger;
 /**
  * {@link Server} opens a port for incoming connection requests.
  * 
+ * <p>By default one thread accepts the connections, and calls
+ * {@link Callback#onRequest} for each before accepting the next. To keep a
+ * slow request, such as one that creates a session and negotiates, from
+ * holding up the others, the requests can be handed off to worker threads
+ * with {@link setHandoff(int)}, and more threads can accept at once with
+ * {@link setAcceptors(int)}.</p>
+ * 
+ * <pre>
+ * server.setAcceptors(4);
+ * server.setReusePort(true);
+ * server.setBacklog(4096);
+ * server.setHandoff(16);
+ * server.start(port);
+ * </pre>
+ * 
+ * <p>Sessions registered with {@link register(Session)} are kept while they
+ * run, and a packet can be sent to all of them, or to any collection of
+ * sessions, with {@link broadcast(Packet)}. The packet is serialized once,
+ * and each connection only writes its own frame around those bytes.</p>
+ * 
+ * <pre>
+ * server.register(session);
+ * server.broadcast(new PricePacket(symbol, price));
+ * </pre>
+ * 
+ * <p>Packets can also be published to a topic with
+ * {@link publish(String, Packet)}, which only sends them to the sessions
+ * subscribed to it in {@link getTopics()}.</p>
+ * 
  * @author      Terrence Howard <chemisus@gmail.com>
  * @version     0.1
  * @since       0.1
@@ -25,34 +67,169 @@ public class Server
     /*\**********************************************************************\*/
     /*\                             Constants                                \*/
     /*\**********************************************************************\*/
- 
+    /**
+     * The default number of connections the kernel queues until they are
+     * accepted.
+     */
+    public static final int BACKLOG = 50;
+
+    /**
+     * The number of accepted connections that may wait for a worker, after
+     * which the accepting threads wait instead.
+     */
+    private static final int HANDOFF = 1024;
+
+    /**
+     * Queued after the last request, to stop a worker.
+     */
+    private static final Runnable STOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
 
     /*\**********************************************************************\*/
     /*\                             Static Fields                            \*/
     /*\**********************************************************************\*/
     /**
-     * The running count of server threads running. Each thread will be named
-     * `server-N` where N is the value of Count.
+     * The factory that servers create their accepting threads with, unless
+     * they have been given one of their own. Each thread will be named
+     * `server-N`.
+     */
+    private static volatile ThreadFactory Factory = Threads.Platform("server");
+
+    /**
+     * The SO_REUSEPORT option, or null if the running JVM does not have it.
      */
-    private static volatile int Count = 0;
+    private static final SocketOption<Boolean> ReusePort = ReusePortOption();
 
     /*\**********************************************************************\*/
     /*\                             Static Methods                           \*/
     /*\**********************************************************************\*/
+    /**
+     * Set the factory that servers create their accepting threads with.
+     * 
+     * Use {@link Threads#Virtual(String)} to accept on virtual threads.
+     * 
+     * @param factory The thread factory.
+     */
+    public static void SetThreadFactory(ThreadFactory factory)
+    {
+        Factory = factory;
+    }
+
+    /**
+     * Finds the SO_REUSEPORT option, which was only added in Java 9.
+     * 
+     * @return {@link SocketOption} the option, or null.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> ReusePortOption()
+    {
+        try
+        {
+            return (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Closes listening sockets, logging any failures.
+     * 
+     * @param servers The sockets, some of which may be null.
+     */
+    private static void close(ServerSocket[] servers)
+    {
+        for (ServerSocket server : servers)
+        {
+            if (server == null)
+            {
+                continue;
+            }
+
+            try
+            {
+                server.close();
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(Server.class.getName()).log(
+                    Level.SEVERE, null, ex
+                );
+            }
+        }
+    }
+
+    /**
+     * Waits for threads to end.
+     * 
+     * @param threads The threads.
+     */
+    private static void join(Thread[] threads)
+    {
+        for (Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                Logger.getLogger(Socket.class.getName()).log(
+                    Level.SEVERE, null, ex
+                );
+            }
+        }
+    }
 
 
     /*\**********************************************************************\*/
     /*\                             Fields                                   \*/
     /*\**********************************************************************\*/
     /**
-     * The server that will be listening for connections.
+     * The sockets that are listening for connections, one per accepting
+     * thread if they each have their own, or else just one.
+     */
+    private volatile ServerSocket[] servers;
+
+    /**
+     * The threads that accept the connections.
      */
-    private volatile ServerSocket server;
+    private Thread[] threads;
 
     /**
-     * The thread that will be used to accept the connections.
+     * The threads that the requests are handed off to.
      */
-    private Thread thread;
+    private Thread[] workers;
+
+    /**
+     * The requests waiting for a worker, or null if the requests are not
+     * handed off.
+     */
+    private volatile LinkedBlockingQueue<Runnable> requests;
+
+    private volatile int acceptors = 1;
+
+    private volatile int backlog = BACKLOG;
+
+    private volatile boolean reusePort = false;
+
+    private volatile int handoff = 0;
+
+    /**
+     * The factory to create the accepting thread with, or null to use the
+     * default.
+     */
+    private volatile ThreadFactory factory;
+
+    /**
+     * The reactor that is accepting the connections, or null if the server
+     * has its own thread.
+     */
+    private volatile Reactor reactor;
 
     /**
      * The value that will determine if the accepting thread should continue
@@ -65,6 +242,32 @@ public class Server
      */
     private ConcurrentLinkedQueue<Callback> callbacks = new ConcurrentLinkedQueue<Callback>();
 
+    /**
+     * The registered sessions that are running.
+     */
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The subscriptions of the sessions to topics.
+     */
+    private final Topics topics = new Topics();
+
+    /**
+     * Added to every registered session, to keep {@link sessions} to those
+     * that are running.
+     */
+    private final Session.Callback tracker = new Session.Handler() {
+        @Override
+        public void onStarted(Session session) {
+            sessions.add(session);
+        }
+
+        @Override
+        public void onStopped(Session session) {
+            sessions.remove(session);
+        }
+    };
+
     /*\**********************************************************************\*/
     /*\                             Properties                               \*/
     /*\**********************************************************************\*/
@@ -88,6 +291,96 @@ public class Server
         return accepting;
     }
 
+    /**
+     * Get the registered sessions that are running. The collection can not
+     * be changed, but follows the sessions as they start and stop.
+     * 
+     * @return {@link Collection} the sessions.
+     */
+    public Collection<Session> getSessions()
+    {
+        return Collections.unmodifiableSet(sessions);
+    }
+
+    /**
+     * Get the subscriptions of the sessions to the topics that are
+     * published to with {@link publish(String, Packet)}.
+     * 
+     * @return {@link Topics} the topics.
+     */
+    public Topics getTopics()
+    {
+        return topics;
+    }
+
+    /**
+     * Set the factory that this server creates its accepting thread with,
+     * instead of the one set by {@link SetThreadFactory(ThreadFactory)}.
+     * 
+     * @param factory The thread factory, or null to use the default.
+     */
+    public void setThreadFactory(ThreadFactory factory)
+    {
+        this.factory = factory;
+    }
+
+    /**
+     * Set the number of threads that accept connections, or with a
+     * {@link Reactor}, the number of loops that do. Takes effect the next
+     * time the server is started.
+     * 
+     * Without {@link setReusePort(boolean)}, the threads share one listening
+     * socket, and a reactor accepts on just one loop. With it, each thread
+     * has its own socket, and a reactor is given one socket per acceptor,
+     * spread round robin between its loops.
+     * 
+     * @param count The number of accepting threads.
+     */
+    public void setAcceptors(int count)
+    {
+        this.acceptors = Math.max(1, count);
+    }
+
+    /**
+     * Set the number of connections the kernel queues until they are
+     * accepted. Takes effect the next time the server is started.
+     * 
+     * @param backlog The number of connections.
+     */
+    public void setBacklog(int backlog)
+    {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Set if each accepting thread listens with its own socket, bound to the
+     * same port with SO_REUSEPORT, so that the kernel spreads the
+     * connections between them instead of the threads taking turns on one
+     * socket. Takes effect the next time the server is started.
+     * 
+     * If the platform does not support SO_REUSEPORT, the threads share one
+     * socket instead.
+     * 
+     * @param reusePort If each thread has its own socket.
+     */
+    public void setReusePort(boolean reusePort)
+    {
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * Set the number of worker threads that the requests are handed off to,
+     * so that the accepting threads go straight back to accepting. Takes
+     * effect the next time the server is started.
+     * 
+     * @param workers The number of workers, or 0 to call
+     * {@link Callback#onRequest} on the accepting thread.
+     */
+    public void setHandoff(int workers)
+    {
+        this.handoff = Math.max(0, workers);
+    }
+
     /*\**********************************************************************\*/
     /*\                             Constructors                             \*/
     /*\**********************************************************************\*/
@@ -100,24 +393,25 @@ public class Server
      * Accept connection requests until {@link isAccepting()} returns
      * false.
      * 
-     * <p>This function will trigger {@link OnStart()} before it starts accepting
-     * connections requests.</p>
-     * 
-     * <p>This function will trigger {@link OnStop()} after it stops accepting
-     * connection requests.</p>
-     * 
      * <p>This function will trigger {@link OnRequest()} when a connection has
-     * been requested.</p>
+     * been requested, or hand the request off to a worker.</p>
+     * 
+     * @param server The socket to accept connections from.
      */
-    private void accept() 
+    private void accept(ServerSocket server)
     {
-        OnStart();
-        
         while (accepting)
         {
             try
             {
-                OnRequest(server.accept());
+                final java.net.Socket socket = server.accept();
+
+                handoff(new Runnable() {
+                    @Override
+                    public void run() {
+                        OnRequest(socket);
+                    }
+                }, true);
             }
             catch (SocketException ex)
             {
@@ -130,18 +424,285 @@ public class Server
             }
             catch (IOException ex)
             {
-                Logger.getLogger(Socket.class.getName()).log(
+                if (isAccepting())
+                {
+                    Logger.getLogger(Socket.class.getName()).log(
+                        Level.SEVERE, null, ex
+                    );
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs requests handed off by the accepting threads until it is stopped.
+     * 
+     * @param requests The queue of requests.
+     */
+    private void work(LinkedBlockingQueue<Runnable> requests)
+    {
+        while (true)
+        {
+            Runnable request;
+
+            try
+            {
+                request = requests.take();
+            }
+            catch (InterruptedException ex)
+            {
+                continue;
+            }
+
+            if (request == STOP)
+            {
+                return;
+            }
+
+            try
+            {
+                request.run();
+            }
+            catch (RuntimeException ex)
+            {
+                Logger.getLogger(Server.class.getName()).log(
                     Level.SEVERE, null, ex
                 );
             }
         }
+    }
+
+    /**
+     * Hands a request off to a worker, or runs it right away if requests
+     * are not handed off.
+     * 
+     * @param request The request.
+     * @param wait If the caller may wait for room in the queue, rather than
+     * running the request itself when the queue is full.
+     */
+    private void handoff(Runnable request, boolean wait)
+    {
+        LinkedBlockingQueue<Runnable> requests = this.requests;
+
+        boolean queued = false;
+
+        if (requests != null)
+        {
+            if (!wait)
+            {
+                queued = requests.offer(request);
+            }
+            else
+            {
+                try
+                {
+                    requests.put(request);
 
-        OnStop();
+                    queued = true;
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        if (!queued || (!accepting && requests.remove(request)))
+        {
+            request.run();
+        }
+    }
+
+    /**
+     * Opens a socket listening on a port. The socket always has a channel,
+     * so that the connections it accepts have one too, and frames can be
+     * written to them straight from direct buffers. The channel is left
+     * blocking, for threads that accept on it.
+     * 
+     * @param port The port to listen on.
+     * @param reuse If the socket should use SO_REUSEPORT.
+     * @return {@link ServerSocket} the socket.
+     * @throws IOException 
+     */
+    private ServerSocket listen(int port, boolean reuse) throws IOException
+    {
+        ServerSocketChannel server = ServerSocketChannel.open();
+
+        try
+        {
+            if (reuse)
+            {
+                server.setOption(ReusePort, true);
+            }
+
+            server.bind(new InetSocketAddress(port), backlog);
+        }
+        catch (IOException ex)
+        {
+            server.close();
+
+            throw ex;
+        }
+
+        return server.socket();
+    }
+
+    /**
+     * Opens the sockets to listen on, one per acceptor if they can each have
+     * their own, or else just one.
+     * 
+     * @param port The port to listen on.
+     * @return {@link ServerSocket[]} the sockets.
+     * @throws IOException 
+     */
+    private ServerSocket[] listen(int port) throws IOException
+    {
+        boolean reuse = reusePort && acceptors > 1;
+
+        if (reuse && ReusePort == null)
+        {
+            Logger.getLogger(Server.class.getName()).log(
+                Level.WARNING, "SO_REUSEPORT is not supported, the acceptors will share one socket."
+            );
+
+            reuse = false;
+        }
+
+        ServerSocket[] servers = new ServerSocket[reuse ? acceptors : 1];
+
+        try
+        {
+            for (int i = 0; i < servers.length; i++)
+            {
+                servers[i] = listen(port, reuse);
+            }
+        }
+        catch (IOException ex)
+        {
+            close(servers);
+
+            throw ex;
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            close(servers);
+
+            Logger.getLogger(Server.class.getName()).log(
+                Level.WARNING, "SO_REUSEPORT is not supported, the acceptors will share one socket."
+            );
+
+            return new ServerSocket[] {listen(port, false)};
+        }
+
+        return servers;
+    }
+
+    /**
+     * Starts the workers that requests are handed off to, if there are to be
+     * any.
+     */
+    private void startWorkers()
+    {
+        int count = handoff;
+
+        if (count == 0)
+        {
+            requests = null;
+
+            workers = new Thread[0];
+
+            return;
+        }
+
+        final LinkedBlockingQueue<Runnable> requests = new LinkedBlockingQueue<Runnable>(HANDOFF);
+
+        this.requests = requests;
+
+        workers = new Thread[count];
+
+        ThreadFactory factory = this.factory;
+
+        for (int i = 0; i < count; i++)
+        {
+            workers[i] = (factory != null ? factory : Factory).newThread(new Runnable() {
+                @Override
+                public void run() {
+                    work(requests);
+                }
+            });
+
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Stops the workers once they have run the requests already handed off.
+     */
+    private void stopWorkers()
+    {
+        LinkedBlockingQueue<Runnable> requests = this.requests;
+
+        if (requests == null)
+        {
+            return;
+        }
+
+        for (int i = 0; i < workers.length; i++)
+        {
+            try
+            {
+                requests.put(STOP);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        join(workers);
     }
 
     /*\**********************************************************************\*/
     /*\                             Protected Methods                        \*/
     /*\**********************************************************************\*/
+    /**
+     * Hands a connection accepted by the {@link Reactor} to the callbacks.
+     * 
+     * <p>This function will trigger {@link OnRequest()} with the socket of the
+     * channel, which can be used to create a {@link Session} as usual. If
+     * requests are handed off, and no worker has room for it, the request is
+     * run on the loop rather than blocking it.</p>
+     * 
+     * @param channel The accepted channel.
+     * @throws IOException 
+     */
+    void accept(final SocketChannel channel) throws IOException
+    {
+        final Reactor reactor = this.reactor;
+
+        if (reactor == null)
+        {
+            channel.close();
+
+            return;
+        }
+
+        channel.configureBlocking(false);
+
+        reactor.assign(channel);
+
+        handoff(new Runnable() {
+            @Override
+            public void run() {
+                OnRequest(channel.socket());
+
+                if (!channel.isOpen())
+                {
+                    reactor.unassign(channel);
+                }
+            }
+        }, false);
+    }
 
 
     /*\**********************************************************************\*/
@@ -190,24 +751,181 @@ public class Server
     }
     
     /**
-     * Start accepting connections.
+     * Register a session, so that it is sent every {@link broadcast(Packet)}
+     * while it is running. A session is usually registered in
+     * {@link Callback#onRequest}, right after it is created.
+     * 
+     * @param session The session to register.
+     */
+    public void register(Session session)
+    {
+        session.addCallback(tracker);
+
+        if (session.isReceiving())
+        {
+            sessions.add(session);
+        }
+    }
+
+    /**
+     * Unregister a session, so that it is no longer sent broadcasts.
+     * 
+     * @param session The session to unregister.
+     */
+    public void unregister(Session session)
+    {
+        session.removeCallback(tracker);
+
+        sessions.remove(session);
+    }
+
+    /**
+     * Write a packet to every registered session that is running.
+     * 
+     * @param packet The packet to write.
+     * @return {@link CompletableFuture} a future that completes once the
+     * packet has been flushed to every session, or completes exceptionally
+     * if it could not be to one of them.
+     * @throws IOException if the packet could not be serialized.
+     */
+    public CompletableFuture<Void> broadcast(Packet packet) throws IOException
+    {
+        return broadcast(packet, sessions);
+    }
+
+    /**
+     * Write a packet to several sessions, serializing it only once.
+     * 
+     * The packet is serialized before this function returns, once for
+     * sessions that write plain frames and once for those that write compact
+     * frames, if there are both. Each session then writes its own head,
+     * index and tail around those bytes, and deflates them itself if it
+     * compresses. Sessions that switch to or from compact frames before
+     * their write is encoded serialize the packet again, so the packet
+     * should not be changed until the future completes.
+     * 
+     * Each session's write is flushed by its writer, on the executor set
+     * with {@link Socket#SetWriteExecutor(Executor)}. The default executor
+     * runs a fixed number of threads, so slow receivers hold up the
+     * broadcast to the sessions queued behind them, rather than taking a
+     * thread each.
+     * 
+     * @param packet The packet to write.
+     * @param sessions The sessions to write it to.
+     * @return {@link CompletableFuture} a future that completes once the
+     * packet has been flushed to every session, or completes exceptionally
+     * if it could not be to one of them.
+     * @throws IOException if the packet could not be serialized.
+     */
+    public CompletableFuture<Void> broadcast(Packet packet, Collection<? extends Session> sessions) throws IOException
+    {
+        Broadcast broadcast = new Broadcast(packet);
+
+        ArrayList<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>(sessions.size());
+
+        for (Session session : sessions)
+        {
+            broadcast.getBody(session.isCompactFraming());
+
+            writes.add(session.writeAsync(broadcast));
+        }
+
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()]));
+    }
+
+    /**
+     * Write a packet to every session subscribed to a topic, serializing it
+     * only once. See {@link broadcast(Packet, Collection)}.
+     * 
+     * @param topic The topic, without wildcards.
+     * @param packet The packet to write.
+     * @return {@link CompletableFuture} a future that completes once the
+     * packet has been flushed to every subscribed session, or completes
+     * exceptionally if it could not be to one of them.
+     * @throws IOException if the packet could not be serialized.
+     * @throws IllegalArgumentException if the topic has wildcards.
+     */
+    public CompletableFuture<Void> publish(String topic, Packet packet) throws IOException
+    {
+        return broadcast(packet, topics.match(topic));
+    }
+
+    /**
+     * Start accepting connections, with {@link setAcceptors(int)} threads.
      */
     public void start(int port) throws IOException
     {
         if (!isAccepting())
         {
-            server = new ServerSocket(port);
+            final ServerSocket[] servers = listen(port);
+
+            this.servers = servers;
             
             accepting = true;
 
-            thread = new Thread("server-"+(Count++)) {
-                @Override
-                public void run() {
-                    accept();
-                }
-            };
+            OnStart();
+
+            startWorkers();
+
+            ThreadFactory factory = this.factory;
+
+            threads = new Thread[acceptors];
+
+            for (int i = 0; i < threads.length; i++)
+            {
+                final ServerSocket server = servers[i % servers.length];
+
+                threads[i] = (factory != null ? factory : Factory).newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        accept(server);
+                    }
+                });
+
+                threads[i].start();
+            }
+        }
+    }
+
+    /**
+     * Start accepting connections through a {@link Reactor}, instead of a
+     * thread of its own.
+     * 
+     * The reactor listens on one socket, or with
+     * {@link setReusePort(boolean)}, on one socket per acceptor, each bound
+     * to the port and accepted on by the next of its loops.
+     * 
+     * @param port The port to listen on.
+     * @param reactor The running reactor that will accept the connections,
+     * and receive for the sessions created from them.
+     */
+    public void start(int port, Reactor reactor) throws IOException
+    {
+        if (!isAccepting())
+        {
+            ServerSocket[] servers = listen(port);
+
+            for (ServerSocket server : servers)
+            {
+                server.getChannel().configureBlocking(false);
+            }
+
+            this.servers = servers;
+
+            this.reactor = reactor;
+
+            threads = new Thread[0];
+
+            accepting = true;
 
-            thread.start();
+            OnStart();
+
+            startWorkers();
+
+            for (ServerSocket server : servers)
+            {
+                reactor.listen(this, server.getChannel());
+            }
         }
     }
 
@@ -220,18 +938,15 @@ public class Server
         {
             accepting = false;
         
-            server.close();
+            close(servers);
 
-            try
-            {
-                thread.join();
-            }
-            catch (InterruptedException ex)
-            {
-                Logger.getLogger(Socket.class.getName()).log(
-                    Level.SEVERE, null, ex
-                );
-            }
+            reactor = null;
+
+            join(threads);
+
+            stopWorkers();
+
+            OnStop();
         }
     }
 
@@ -9,7 +9,16 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,6 +27,31 @@ import java.util.logging.Logger;
  * The {@link Session} class extends the {@link Socket} class, and includes
  * the ability to asynchronously receive any {@link Packet}s.
  * 
+ * <p>Packets can be handed to receivers registered for their type with
+ * {@link on(Class, Receiver)}, which are found by packet index rather than
+ * by asking every callback. Packets that no receiver is registered for are
+ * handed to the callbacks instead.</p>
+ * 
+ * <pre>
+ * session.on(ChatPacket.class, (session, chat) -&gt; show(chat.getText()));
+ * </pre>
+ * 
+ * <p>A session can also call the other side, which answers each call with a
+ * reply. Calls carry their id in the frame, so any number of them can be
+ * waiting at once, and their replies can arrive in any order.</p>
+ * 
+ * <pre>
+ * client.call(new QueryPacket("users")).thenAccept(reply -&gt; show(reply));
+ * 
+ * server.addCallback(new Session.Handler() {
+ *     public void onReceived(Session session, Packet packet) {
+ *         if (packet.isCall()) {
+ *             session.reply(packet, answer((QueryPacket)packet));
+ *         }
+ *     }
+ * });
+ * </pre>
+ * 
  * @author      Terrence Howard <chemisus@gmail.com>
  * @version     0.1
  * @since       0.1
@@ -28,16 +62,66 @@ public class Session
     /*\**********************************************************************\*/
     /*\                             Constants                                \*/
     /*\**********************************************************************\*/
-
+    /**
+     * The default number of milliseconds a call waits for its reply.
+     */
+    public static final long TIMEOUT = 30000;
 
     /*\**********************************************************************\*/
     /*\                             Static Fields                            \*/
     /*\**********************************************************************\*/
-    private static volatile int Count = 0;
+    /**
+     * The factory that sessions create their receiving threads with, unless
+     * they have been given one of their own.
+     */
+    private static volatile ThreadFactory Factory = Threads.Platform("session");
+
+    /**
+     * The timer that fails calls whose replies take too long.
+     */
+    private static final ScheduledThreadPoolExecutor Timers = new ScheduledThreadPoolExecutor(
+        1, Threads.Platform("session-timer", true)
+    );
+
+    static
+    {
+        Timers.setRemoveOnCancelPolicy(true);
+    }
 
     /*\**********************************************************************\*/
     /*\                             Static Methods                           \*/
     /*\**********************************************************************\*/
+    /**
+     * Finds the packet index of a packet class, by creating one.
+     * 
+     * @param type The packet class.
+     * @return {@link int} the packet index.
+     * @throws IllegalArgumentException if the class has no usable no
+     * argument constructor.
+     */
+    private static int IndexOf(Class<? extends Packet> type)
+    {
+        try
+        {
+            return Registry.Factory(type).get().getPacketIndex();
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new IllegalArgumentException(type.getName() + " can not be created.", ex);
+        }
+    }
+
+    /**
+     * Set the factory that sessions create their receiving threads with.
+     * 
+     * Use {@link Threads#Virtual(String)} to receive on virtual threads.
+     * 
+     * @param factory The thread factory.
+     */
+    public static void SetThreadFactory(ThreadFactory factory)
+    {
+        Factory = factory;
+    }
 
 
     /*\**********************************************************************\*/
@@ -46,9 +130,50 @@ public class Session
     private volatile boolean receiving = false;
     
     private volatile Thread thread;
+
+    private volatile ThreadFactory factory;
+
+    /**
+     * The reactor loop that is receiving for this session, or null if the
+     * session has its own thread.
+     */
+    private volatile Reactor.Loop loop;
+
+    /**
+     * Counts the connections this session has received from, so that a
+     * thread still receiving from a connection that was replaced stops
+     * without stopping the session.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
     
     private final ConcurrentLinkedQueue<Callback> callbacks = new ConcurrentLinkedQueue<Callback>();
 
+    /**
+     * The receivers of each packet index.
+     */
+    private final Routes routes = new Routes();
+
+    /**
+     * The calls waiting for their replies, by id.
+     */
+    private final ConcurrentHashMap<Integer, CompletableFuture<Packet>> calls = new ConcurrentHashMap<Integer, CompletableFuture<Packet>>();
+
+    private final AtomicInteger ids = new AtomicInteger();
+
+    private volatile long timeout = TIMEOUT;
+
+    /**
+     * The stripe of the dispatcher that runs the callbacks, or null if they
+     * run on the thread that receives.
+     */
+    private volatile Dispatcher.Stripe stripe;
+
+    /**
+     * The topics that the other side may subscribe this session to, or null
+     * if it may not.
+     */
+    private volatile Topics topics;
+
     /*\**********************************************************************\*/
     /*\                             Properties                               \*/
     /*\**********************************************************************\*/
@@ -72,6 +197,67 @@ public class Session
         return receiving;
     }
 
+    /**
+     * Set the factory that this session creates its receiving thread with,
+     * instead of the one set by {@link SetThreadFactory(ThreadFactory)}.
+     * 
+     * @param factory The thread factory, or null to use the default.
+     */
+    public void setThreadFactory(ThreadFactory factory)
+    {
+        this.factory = factory;
+    }
+
+    /**
+     * Set the dispatcher that runs the callbacks of this session, so that
+     * the thread receiving for the session only queues each packet and goes
+     * back to receiving. The callbacks of a session are still called one at
+     * a time, in the order the packets were received.
+     * 
+     * Replies to calls complete their futures on the receiving thread
+     * either way.
+     * 
+     * @param dispatcher The dispatcher, or null to run the callbacks on the
+     * receiving thread.
+     */
+    public void setDispatcher(Dispatcher dispatcher)
+    {
+        stripe = dispatcher == null ? null : dispatcher.assign();
+    }
+
+    /**
+     * Set the topics that the other side may subscribe this session to. See
+     * {@link Topics#attach(Session)}.
+     * 
+     * @param topics The topics, or null to ignore subscriptions.
+     */
+    void setTopics(Topics topics)
+    {
+        this.topics = topics;
+    }
+
+    /**
+     * Set how long calls wait for their replies, unless they are given a
+     * timeout of their own.
+     * 
+     * @param timeout The number of milliseconds, or 0 to wait forever.
+     */
+    public void setCallTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Get how long calls wait for their replies.
+     * 
+     * @return {@link long} the number of milliseconds, or 0 if they wait
+     * forever.
+     */
+    public long getCallTimeout()
+    {
+        return timeout;
+    }
+
     /*\**********************************************************************\*/
     /*\                             Constructors                             \*/
     /*\**********************************************************************\*/
@@ -95,13 +281,65 @@ public class Session
     public Session(String host, int port)
         throws UnknownHostException, IOException, ConnectException
     {
-        this(new java.net.Socket(host, port));
+        this(Connect(host, port));
     }
 
     /*\**********************************************************************\*/
     /*\                             Private Methods                          \*/
     /*\**********************************************************************\*/
+    /**
+     * Runs an event on the stripe of the dispatcher, or right away if there
+     * is none.
+     * 
+     * @param event The event to run.
+     */
+    private void dispatch(Runnable event)
+    {
+        Dispatcher.Stripe stripe = this.stripe;
+
+        if (stripe == null)
+        {
+            event.run();
+        }
+        else
+        {
+            stripe.execute(event);
+        }
+    }
+
+    /**
+     * Hands a received packet to the receivers of its index, or to the
+     * callbacks if it has none, then releases it.
+     * 
+     * @param packet The packet.
+     */
+    @SuppressWarnings("unchecked")
+    private void deliver(Packet packet)
+    {
+        try
+        {
+            Receiver<?>[] receivers = routes.get(packet.getPacketIndex());
 
+            if (receivers != null)
+            {
+                for (Receiver<?> receiver : receivers)
+                {
+                    ((Receiver<Packet>)receiver).onReceived(this, packet);
+                }
+
+                return;
+            }
+
+            for (Callback callback : callbacks)
+            {
+                callback.onReceived(this, packet);
+            }
+        }
+        finally
+        {
+            packet.release();
+        }
+    }
 
     /*\**********************************************************************\*/
     /*\                             Protected Methods                        \*/
@@ -120,35 +358,128 @@ public class Session
      */
     protected void receive()
     {
-        for (Callback callback : callbacks)
-        {
-            callback.onStarted(this);
-        }
+        int generation = this.generation.get();
+
+        OnStart();
         
-        while (isReceiving())
+        while (isReceiving() && generation == this.generation.get())
         {
             try
             {
-                Packet packet = read();
-                
-                for (Callback callback : callbacks)
-                {
-                    callback.onReceived(this, packet);
-                }
+                OnReceive(read());
             }
             catch (SocketException ex)
             {
-                receiving = false;
+                if (generation == this.generation.get())
+                {
+                    receiving = false;
+                }
             }
             catch (IOException ex)
             {
-                receiving = false;
+                if (generation == this.generation.get())
+                {
+                    receiving = false;
+                }
             }
         }
-                
-        for (Callback callback : callbacks)
+
+        if (generation == this.generation.get())
         {
-            callback.onStopped(this);
+            OnStop();
+        }
+    }
+
+    /**
+     * Starts receiving from the connection this session has taken over. If
+     * the connection came from a session driven by a reactor loop, this
+     * session takes its place on that loop. Connections taken over at the
+     * same time are handed over one at a time.
+     * 
+     * @param carrier The session whose connection was taken over, or null if
+     * this session resumed itself.
+     */
+    @Override
+    synchronized void adopted(Socket carrier)
+    {
+        generation.incrementAndGet();
+
+        Reactor.Loop previous = loop;
+
+        loop = null;
+
+        if (previous != null)
+        {
+            previous.forget(this);
+        }
+
+        if (carrier instanceof Session && ((Session)carrier).loop != null)
+        {
+            Session from = (Session)carrier;
+
+            from.receiving = false;
+
+            loop = from.loop;
+
+            receiving = true;
+
+            loop.transfer(from, this);
+
+            return;
+        }
+
+        start();
+    }
+
+    /**
+     * Tells the callbacks that the session stopped being writable, or became
+     * writable again.
+     * 
+     * @param writable If the session is now writable.
+     */
+    @Override
+    void writabilityChanged(boolean writable)
+    {
+        OnWritabilityChanged(writable);
+    }
+
+    /**
+     * Subscribes this session to a topic or pattern, or unsubscribes it, as
+     * the other side asked.
+     * 
+     * @param pattern The topic or pattern.
+     * @param subscribe True to subscribe, false to unsubscribe.
+     */
+    @Override
+    void subscribed(String pattern, boolean subscribe)
+    {
+        Topics topics = this.topics;
+
+        if (topics == null)
+        {
+            Logger.getLogger(Session.class.getName()).log(
+                Level.WARNING, "A subscription was received by a session that is not attached to topics."
+            );
+
+            return;
+        }
+
+        try
+        {
+            if (subscribe)
+            {
+                topics.subscribe(this, pattern);
+            }
+            else
+            {
+                topics.unsubscribe(this, pattern);
+            }
+        }
+        catch (IllegalArgumentException ex)
+        {
+            Logger.getLogger(Session.class.getName()).log(
+                Level.WARNING, null, ex
+            );
         }
     }
 
@@ -197,19 +528,93 @@ public class Session
         return callbacks.remove(callback);
     }
 
+    /**
+     * Hand the packets of a class to a receiver, instead of to the
+     * callbacks. Receivers of the same class are called in the order they
+     * were added.
+     * 
+     * @param type The class of the packets, whose packet index is what the
+     * packets are matched by.
+     * @param receiver The receiver.
+     * @throws IllegalArgumentException if the class can not be created to
+     * find its packet index.
+     */
+    public <T extends Packet> void on(Class<T> type, Receiver<? super T> receiver)
+    {
+        routes.add(IndexOf(type), receiver);
+    }
+
+    /**
+     * Hand the packets of a packet index to a receiver, instead of to the
+     * callbacks.
+     * 
+     * @param index The packet index.
+     * @param receiver The receiver.
+     */
+    public void on(int index, Receiver<Packet> receiver)
+    {
+        routes.add(index, receiver);
+    }
+
+    /**
+     * Stop handing the packets of a class to a receiver.
+     * 
+     * @param type The class of the packets.
+     * @param receiver The receiver.
+     * @return {@link boolean} true if the receiver was removed.
+     */
+    public <T extends Packet> boolean off(Class<T> type, Receiver<? super T> receiver)
+    {
+        return routes.remove(IndexOf(type), receiver);
+    }
+
+    /**
+     * Stop handing the packets of a packet index to a receiver.
+     * 
+     * @param index The packet index.
+     * @param receiver The receiver.
+     * @return {@link boolean} true if the receiver was removed.
+     */
+    public boolean off(int index, Receiver<Packet> receiver)
+    {
+        return routes.remove(index, receiver);
+    }
+
     /**
      * Start receiving packets.
+     * 
+     * If the session was accepted or connected through a {@link Reactor}, it
+     * will be registered with one of the reactor's loops instead of getting
+     * its own thread.
      */
     public void start()
     {
         receiving = true;
+
+        if (isSelectable())
+        {
+            loop = Reactor.Register(this);
+
+            if (loop == null)
+            {
+                receiving = false;
+
+                Logger.getLogger(Session.class.getName()).log(
+                    Level.SEVERE, "No running reactor owns this session."
+                );
+            }
+
+            return;
+        }
         
-        thread = new Thread("session-"+(Count++)) {
+        ThreadFactory factory = this.factory;
+
+        thread = (factory != null ? factory : Factory).newThread(new Runnable() {
             @Override
             public void run() {
                 receive();
             }
-        };
+        });
         
         thread.start();
     }
@@ -220,6 +625,13 @@ public class Session
     public void stop()
     {
         receiving = false;
+
+        if (loop != null)
+        {
+            loop.deregister(this);
+
+            return;
+        }
         
         try
         {
@@ -246,9 +658,222 @@ public class Session
         super.close();
     }
 
+    /**
+     * Call the other side with a packet, waiting {@link getCallTimeout()}
+     * for the reply.
+     * 
+     * @param request The packet to call with.
+     * @return {@link CompletableFuture} a future that completes with the
+     * reply. See {@link call(Packet, long, TimeUnit)}.
+     */
+    public CompletableFuture<Packet> call(Packet request)
+    {
+        return call(request, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Call the other side with a packet, without waiting for the reply.
+     * 
+     * The other side receives the packet like any other, with
+     * {@link Packet#isCall()} returning true, and answers it with
+     * {@link reply(Packet, Packet)}. Replies are not handed to the callbacks.
+     * 
+     * The future is completed on the thread that receives for the session,
+     * so work that blocks should be moved elsewhere, such as with
+     * {@link CompletableFuture#thenAcceptAsync}. The reply belongs to the
+     * caller, who should release it once done with it.
+     * 
+     * The other side must be able to read version 4 frames, which means
+     * both sides must have negotiated; see {@link negotiate()}.
+     * 
+     * @param request The packet to call with.
+     * @param timeout How long to wait for the reply, or 0 to wait forever.
+     * @param unit The unit of the timeout.
+     * @return {@link CompletableFuture} a future that completes with the
+     * reply, or completes exceptionally with a {@link TimeoutException} if
+     * the reply does not arrive in time, or with an {@link IOException} if
+     * the call could not be sent.
+     */
+    public CompletableFuture<Packet> call(Packet request, long timeout, TimeUnit unit)
+    {
+        final CompletableFuture<Packet> future = new CompletableFuture<Packet>();
+
+        int next;
+
+        do
+        {
+            next = ids.incrementAndGet() & Integer.MAX_VALUE;
+        }
+        while (next == 0 || calls.putIfAbsent(next, future) != null);
+
+        final int id = next;
+
+        final ScheduledFuture<?> timer = timeout <= 0 ? null : Timers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.completeExceptionally(new TimeoutException("Call " + id + " timed out."));
+            }
+        }, timeout, unit);
+
+        future.whenComplete(new BiConsumer<Packet, Throwable>() {
+            @Override
+            public void accept(Packet reply, Throwable failure) {
+                calls.remove(id, future);
+
+                if (timer != null)
+                {
+                    timer.cancel(false);
+                }
+            }
+        });
+
+        writeAsync(request, CALL, id).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void value, Throwable failure) {
+                if (failure != null)
+                {
+                    future.completeExceptionally(failure);
+                }
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Answer a call received from the other side.
+     * 
+     * @param call The packet that was received as a call.
+     * @param reply The packet to answer with.
+     * @return {@link CompletableFuture} a future that completes once the
+     * reply has been flushed, or completes exceptionally if it could not be.
+     * @throws IllegalArgumentException if the packet was not a call.
+     */
+    public CompletableFuture<Void> reply(Packet call, Packet reply)
+    {
+        if (!call.isCall())
+        {
+            throw new IllegalArgumentException("The packet was not received as a call.");
+        }
+
+        return writeAsync(reply, REPLY, call.getCallId());
+    }
+
+    /**
+     * Ask the other side to send this session the packets published to a
+     * topic, or to any topic that a pattern matches. The other side must
+     * have attached its session to its {@link Topics}, and one side must
+     * have called {@link negotiate()}, since subscriptions are ignored until
+     * the sides have agreed on a version.
+     * 
+     * @param pattern The topic or pattern.
+     * @return {@link CompletableFuture} a future that completes once the
+     * subscription has been flushed, or completes exceptionally if it could
+     * not be.
+     * @throws IllegalArgumentException if the pattern is not valid.
+     */
+    public CompletableFuture<Void> subscribe(String pattern)
+    {
+        Topics.Pattern(pattern);
+
+        return writeAsync(new Control.Subscribe(pattern, true));
+    }
+
+    /**
+     * Ask the other side to stop sending this session the packets published
+     * to a topic or pattern it subscribed to.
+     * 
+     * @param pattern The topic or pattern, as it was subscribed to.
+     * @return {@link CompletableFuture} a future that completes once the
+     * request has been flushed, or completes exceptionally if it could not
+     * be.
+     */
+    public CompletableFuture<Void> unsubscribe(String pattern)
+    {
+        return writeAsync(new Control.Subscribe(pattern, false));
+    }
+
     /*\**********************************************************************\*/
     /*\                             Event Triggers                           \*/
     /*\**********************************************************************\*/
+    void OnStart()
+    {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                for (Callback callback : callbacks)
+                {
+                    callback.onStarted(Session.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands a received packet to the callbacks, then releases it, so that a
+     * pooled packet goes back to its pool unless a callback retained it.
+     */
+    void OnReceive(final Packet packet)
+    {
+        if (packet.isReply())
+        {
+            CompletableFuture<Packet> future = calls.get(packet.getCallId());
+
+            if (future == null || !future.complete(packet))
+            {
+                Logger.getLogger(Session.class.getName()).log(
+                    Level.FINE, "Call {0} has already ended, reply skipped.", packet.getCallId()
+                );
+
+                packet.release();
+            }
+
+            return;
+        }
+
+        if (stripe == null)
+        {
+            deliver(packet);
+
+            return;
+        }
+
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                deliver(packet);
+            }
+        });
+    }
+
+    void OnWritabilityChanged(boolean writable)
+    {
+        for (Callback callback : callbacks)
+        {
+            callback.onWritabilityChanged(this, writable);
+        }
+    }
+
+    void OnStop()
+    {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                for (Callback callback : callbacks)
+                {
+                    callback.onStopped(Session.this);
+                }
+            }
+        });
+
+        if (!isResumable())
+        {
+            for (CompletableFuture<Packet> future : calls.values())
+            {
+                future.completeExceptionally(new IOException("The session stopped before the call was answered."));
+            }
+        }
+    }
 
 
     /*\**********************************************************************\*/
@@ -259,6 +884,14 @@ public class Session
     /*\**********************************************************************\*/
     /*\                             Classes                                  \*/
     /*\**********************************************************************\*/
+    /**
+     * Receives the packets of one type. See {@link on(Class, Receiver)}.
+     */
+    public interface Receiver<T extends Packet>
+    {
+        public void onReceived(Session session, T packet);
+    }
+
     public interface Callback
     {
         public void onReceived(Session session, Packet packet);
@@ -266,6 +899,21 @@ public class Session
         public void onStarted(Session session);
         
         public void onStopped(Session session);
+
+        /**
+         * Called when the session stops being writable, because more than
+         * its high watermark of bytes are queued for sending, and again when
+         * it is writable once more. See {@link Socket#isWritable()}.
+         * 
+         * This is called on whichever thread crossed the watermark, which
+         * may be the one flushing the session, so it should not block.
+         * 
+         * @param session The session.
+         * @param writable If the session is now writable.
+         */
+        public default void onWritabilityChanged(Session session, boolean writable)
+        {
+        }
     }
     
     public static class Handler
@@ -285,5 +933,10 @@ public class Session
         public void onStopped(Session session)
         {
         }
+
+        @Override
+        public void onWritabilityChanged(Session session, boolean writable)
+        {
+        }
     }
 }
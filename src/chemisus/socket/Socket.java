@@ -5,13 +5,38 @@
  */
 package chemisus.socket;
 
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
 /**
@@ -31,30 +56,334 @@ public class Socket
 
     private static final int TRANSFER = 1;
 
+    /**
+     * The most frames that will be encoded before flushing, so that a
+     * combining writer can not be kept busy forever by other writers.
+     */
+    private static final int BATCH = 64;
+
+    /**
+     * The default number of bytes queued for sending above which a socket
+     * stops being writable.
+     */
+    public static final int HIGH_WATERMARK = 65536;
+
+    /**
+     * The default number of bytes queued for sending at or below which a
+     * socket that stopped being writable is writable again.
+     */
+    public static final int LOW_WATERMARK = 32768;
+
+    /**
+     * The default largest frame that will be received, in bytes.
+     */
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    /**
+     * The default largest byte array or string that will be read from a
+     * frame, in bytes.
+     */
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    /**
+     * The size assumed for a packet until it has been encoded, before any
+     * packet has been.
+     */
+    private static final int ESTIMATE = 64;
+
+    /**
+     * The highest frame version this socket can read.
+     * 
+     * <p>Version 1 frames are the head, the index, the packet index, the
+     * packet, then the tail.</p>
+     * 
+     * <p>Version 2 frames are the head, a flags byte, the length of
+     * everything from the index up to the tail, the index, the packet index,
+     * the packet, then the tail. The length lets a receiver know when it has
+     * a whole frame without decoding it, and skip packets it does not know.
+     * </p>
+     * 
+     * <p>Version 3 adds compact frames, which are version 2 frames whose
+     * length, index and packet index are varints, and whose byte arrays and
+     * strings are sized with varints.</p>
+     * 
+     * <p>Version 4 adds calls, which are version 2 frames that carry the id
+     * of a call right after their index.</p>
+     */
+    public static final int VERSION = 4;
+
+    /**
+     * The number of bytes of the index and packet index of a frame.
+     */
+    private static final int HEADER = 12;
+
+    /**
+     * The flag of a version 2 frame whose packet ends with a file region.
+     * The length of such a frame stops before the region, which follows as
+     * its size then its bytes, so that a blocking receiver can stream the
+     * region into a file instead of buffering it.
+     */
+    private static final byte REGION = 0x01;
+
+    /**
+     * The flag of a version 2 frame that is not numbered, such as the
+     * control packets that resume a connection. Its index is -1, and it is
+     * neither counted nor kept for resending.
+     */
+    static final byte UNSEQUENCED = 0x02;
+
+    /**
+     * The flag of a version 2 frame whose packet was deflated. The packet
+     * index is left as it is, and is followed by the size of the packet
+     * before it was compressed, then the compressed bytes.
+     */
+    private static final byte COMPRESSED = 0x04;
+
+    /**
+     * The flag of a version 2 frame that is compact. Its length is an
+     * unsigned varint, its index an unsigned varint that is left out if the
+     * frame is not numbered, and its packet index a zigzag varint.
+     */
+    static final byte COMPACT = 0x08;
+
+    /**
+     * The flag of a version 4 frame whose packet is a call, which the other
+     * side answers with a reply. The id of the call follows the index, as an
+     * int, or an unsigned varint if the frame is compact.
+     */
+    static final byte CALL = 0x10;
+
+    /**
+     * The flag of a version 4 frame whose packet is the reply to a call. The
+     * id of the call it answers follows the index, as with a call.
+     */
+    static final byte REPLY = 0x20;
+
+    /**
+     * The number of bytes kept for the length of a compact frame until it is
+     * known, which is the most an unsigned varint int can take.
+     */
+    private static final int VARINT = 5;
+
+    /**
+     * The most that deflate can shrink its input by, which bounds the size a
+     * compressed packet may claim to have.
+     */
+    private static final int RATIO = 1032;
+
+    /**
+     * The most threads that the default writer executor runs at once. A
+     * flush to a slow connection holds its thread, so the bound keeps many
+     * slow connections from taking a thread each.
+     */
+    private static final int WRITERS = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+
     /*\**********************************************************************\*/
     /*\                             Static Fields                            \*/
     /*\**********************************************************************\*/
+    /**
+     * The executor that asynchronous writes are flushed on.
+     */
+    private static volatile Executor Writers = WriterPool(WRITERS);
+
+    static
+    {
+        Packet.Register(
+            Control.Hello.class, Control.Resume.class, Control.Ack.class,
+            Control.Deflate.class, Control.Fragment.class,
+            Control.Subscribe.class
+        );
+    }
+
+    /**
+     * The resumable sockets of this process, by the token given to the other
+     * side.
+     */
+    private static final ConcurrentHashMap<Long, Socket> Resumable = new ConcurrentHashMap<Long, Socket>();
 
+    private static final SecureRandom Tokens = new SecureRandom();
 
     /*\**********************************************************************\*/
     /*\                             Static Methods                           \*/
     /*\**********************************************************************\*/
+    /**
+     * Connect to a server through a {@link SocketChannel}, so that frames can
+     * be written to the connection straight from direct buffers.
+     * 
+     * @param host The host name of the server to connect to
+     * @param port The port to connect on
+     * @return {@link java.net.Socket} the blocking connection.
+     * @throws UnknownHostException
+     * @throws IOException
+     * @throws ConnectException 
+     */
+    static java.net.Socket Connect(String host, int port)
+        throws UnknownHostException, ConnectException, IOException
+    {
+        return SocketChannel.open(
+            new InetSocketAddress(InetAddress.getByName(host), port)
+        ).socket();
+    }
+
+    /**
+     * Creates the default executor that asynchronous writes are flushed on,
+     * which runs at most a number of threads, and queues the flushes of
+     * other sockets until one is free. Each socket has at most one flush
+     * queued, so the queue is no longer than the number of sockets.
+     * 
+     * @param count The most threads.
+     * @return {@link Executor} the executor.
+     */
+    private static Executor WriterPool(int count)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            count, count, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            Threads.Platform("writer", true)
+        );
+
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    /**
+     * Set the executor that asynchronous writes are flushed on. At most one
+     * task per socket will be running on the executor at any time.
+     * 
+     * By default, a fixed number of platform threads flush the writes. An
+     * executor of virtual threads lets every slow connection wait on a
+     * thread of its own, without the cost of a platform thread. If the
+     * executor rejects a flush, the thread that wrote flushes instead, which
+     * slows the writers down rather than queuing without bound.
+     * 
+     * @param executor The executor.
+     */
+    public static void SetWriteExecutor(Executor executor)
+    {
+        Writers = executor;
+    }
+
+    /**
+     * Maps a signed int onto an unsigned one, so that values close to zero
+     * make short varints whether they are positive or negative.
+     * 
+     * @param value The value.
+     * @return {@link int} the zigzag value.
+     */
+    private static int ZigZag(int value)
+    {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Gets the number of bytes an unsigned varint takes.
+     * 
+     * @param value The value.
+     * @return {@link int} the number of bytes, from 1 to 5.
+     */
+    private static int VarIntSize(int value)
+    {
+        int size = 1;
+
+        while ((value >>>= 7) != 0)
+        {
+            size++;
+        }
+
+        return size;
+    }
 
 
     /*\**********************************************************************\*/
     /*\                             Fields                                   \*/
     /*\**********************************************************************\*/
-    private final java.net.Socket socket;
+    /*
+     * The connection, and the streams over it, are replaced when the socket
+     * is resumed, while holding both the write and read locks.
+     */
+    private volatile java.net.Socket socket;
+
+    private volatile SocketChannel channel;
     
-    private final ConcurrentHashMap<Integer, Class> packets = new ConcurrentHashMap<Integer, Class>();
+    /**
+     * The packets registered with this socket, which take priority over the
+     * packets registered globally.
+     */
+    private final Registry packets = new Registry();
+
+    /**
+     * Guards the output. A lock is used rather than a monitor so that virtual
+     * threads blocked on the network do not pin their carrier threads.
+     */
+    private final ReentrantLock write = new ReentrantLock();
+
+    /**
+     * The writes that are waiting to be encoded and flushed.
+     */
+    private final ConcurrentLinkedQueue<Write> writes = new ConcurrentLinkedQueue<Write>();
+
+    /**
+     * The writes encoded since the last flush. Only used while holding the
+     * write lock.
+     */
+    private final ArrayList<Write> batch = new ArrayList<Write>(BATCH);
 
-    private final Object write = new Object();
+    /**
+     * If a task has been given to the executor to flush asynchronous writes.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * The task that flushes asynchronous writes.
+     */
+    private final Runnable writer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
     
-    private final Object read = new Object();
+    /**
+     * Guards the input.
+     */
+    private final ReentrantLock read = new ReentrantLock();
     
-    private final SocketOutputStream output;
+    private SocketOutputStream output;
+
+    /**
+     * The buffer that frames are encoded into until they are flushed.
+     */
+    private BufferOutputStream outbound;
     
-    private final SocketInputStream input;
+    private SocketInputStream input;
+
+    /**
+     * The buffer that received bytes are held in until a whole frame can be
+     * decoded from memory.
+     */
+    private BufferInputStream inbound;
+
+    /**
+     * The number of bytes the receive buffer must hold before the next frame
+     * can be decoded, learned from the last attempt to decode it, so that a
+     * large frame is not decoded again each time a few more bytes arrive.
+     */
+    private int wanted = 0;
+
+    /**
+     * The stream that the receive buffer is filled from when the connection
+     * has no channel.
+     */
+    private InputStream stream;
+
+    /**
+     * The channel that file regions are streamed from when the socket is not
+     * selectable, or null if regions must be buffered.
+     */
+    private ReadableByteChannel source;
+
+    private volatile boolean selectable;
     
     private final long[] in = {0, 0};
     
@@ -67,6 +396,164 @@ public class Socket
         (byte)252
     };
 
+    /**
+     * The last byte of the head of a version 2 frame, in place of the last
+     * byte of {@link heads}.
+     */
+    private final byte head2 = (byte)251;
+
+    /**
+     * The frame version to write with, which stays at 1 until the other side
+     * has announced that it can read version 2.
+     */
+    private volatile int version = 1;
+
+    /**
+     * If this socket writes compact frames once the other side can read
+     * them.
+     */
+    private volatile boolean compact = false;
+
+    /**
+     * The largest frame that will be received.
+     */
+    private volatile int maxFrame = MAX_FRAME;
+
+    /**
+     * The largest byte array or string that will be read from a frame.
+     */
+    private volatile int maxPayload = MAX_PAYLOAD;
+
+    /**
+     * The number of bytes queued for sending, counting the packets not yet
+     * encoded at {@link estimate} bytes each.
+     */
+    private final AtomicLong queued = new AtomicLong();
+
+    /**
+     * The average size of the frames encoded lately, which is what a packet
+     * is counted as until it has been encoded.
+     */
+    private volatile int estimate = ESTIMATE;
+
+    private volatile int high = HIGH_WATERMARK;
+
+    private volatile int low = LOW_WATERMARK;
+
+    /**
+     * If more than {@link high} bytes were queued, and no more than
+     * {@link low} have been since.
+     */
+    private final AtomicBoolean unwritable = new AtomicBoolean(false);
+
+    /**
+     * The logical channels carried by this socket, or null until one is
+     * opened.
+     */
+    private volatile Multiplexer multiplexer;
+
+    /**
+     * If this socket has announced its version to the other side.
+     */
+    private final AtomicBoolean hello = new AtomicBoolean(false);
+
+    /**
+     * If this socket has announced its resume token to the other side.
+     */
+    private final AtomicBoolean announced = new AtomicBoolean(false);
+
+    /**
+     * The version of the frame currently being read.
+     */
+    private int frame = 1;
+
+    /**
+     * The capture that frames are recorded into, or null.
+     */
+    private volatile Capture capture;
+
+    /**
+     * The stream number of this socket within its capture.
+     */
+    private int captured;
+
+    /**
+     * The frames kept for resending, or null if the socket is not resumable.
+     */
+    private volatile Backlog backlog;
+
+    /**
+     * The token the other side resumes this socket with, or 0.
+     */
+    private volatile long token = 0;
+
+    /**
+     * The token of the socket on the other side, or 0 if it is not
+     * resumable.
+     */
+    private volatile long peer = 0;
+
+    /**
+     * How many frames the other side keeps for resending.
+     */
+    private volatile int window = 0;
+
+    /**
+     * The index of the next frame expected, as last acknowledged.
+     */
+    private long acknowledged = 0;
+
+    /**
+     * Set while waiting for the other side to answer a resume.
+     */
+    private volatile boolean resuming = false;
+
+    /**
+     * The socket that took over the connection of this one, after the other
+     * side asked to resume it.
+     */
+    private volatile Socket successor;
+
+    /**
+     * How this socket compresses the packets it sends, or null.
+     */
+    private volatile Compression compression;
+
+    /**
+     * If this socket has offered compression to the other side.
+     */
+    private final AtomicBoolean offered = new AtomicBoolean(false);
+
+    /**
+     * Set once the other side has offered to receive compressed packets.
+     */
+    private volatile boolean deflating = false;
+
+    /**
+     * If the other side holds the same preset dictionary as this socket.
+     */
+    private volatile boolean shared = false;
+
+    /**
+     * The compressor of the packets sent, and the buffers it works in. Only
+     * used while holding the write lock.
+     */
+    private Deflater deflater;
+
+    private byte[] plain = new byte[0];
+
+    private byte[] packed = new byte[0];
+
+    /**
+     * The decompressor of the packets received, and the stream that they are
+     * read from once decompressed. Only used while holding the read lock.
+     */
+    private Inflater inflater;
+
+    private BufferInputStream inflated;
+
+    private SocketInputStream unpacked;
+
     private final byte[] tails = {
         (byte)155,
         (byte)154,
@@ -97,274 +584,2182 @@ public class Socket
         return out[COUNT];
     }
 
-    /*\**********************************************************************\*/
-    /*\                             Constructors                             \*/
-    /*\**********************************************************************\*/
     /**
-     * Create a new socket with an established connection.
+     * Get the frame version that this socket is writing with.
      * 
-     * @param socket The connection to create a new socket from.
-     * @throws IOException 
+     * @return {@link int} the frame version.
      */
-    public Socket(java.net.Socket socket) throws IOException
+    public int getVersion()
     {
-        this.socket = socket;
-        
-        output = new SocketOutputStream(
-            new BufferedOutputStream(socket.getOutputStream())
-        );
-        
-        input = new SocketInputStream(socket.getInputStream());
+        return version;
     }
 
     /**
-     * Connect to a server.
+     * Record every frame this socket sends or receives into a capture, or
+     * stop recording.
      * 
-     * @param host The host name of the server to connect to
-     * @param port The port to connect on
-     * @throws UnknownHostException
-     * @throws IOException
-     * @throws ConnectException 
+     * <p>Frames of a file region that was streamed into a file as it arrived
+     * are not recorded.</p>
+     * 
+     * @param capture The capture to record into, or null.
      */
-    public Socket(String host, int port)
-        throws UnknownHostException, ConnectException, IOException
+    public void setCapture(Capture capture)
     {
-        this(new java.net.Socket(host, port));
+        if (capture != null)
+        {
+            captured = capture.register();
+        }
+
+        this.capture = capture;
     }
 
-    /*\**********************************************************************\*/
-    /*\                             Private Methods                          \*/
-    /*\**********************************************************************\*/
+    /**
+     * Compress the packets this socket sends, or stop compressing them.
+     * 
+     * <p>Both sides must call this before {@link negotiate()} is called by
+     * the side that connected, which then offers to receive compressed
+     * packets, and the other side answers with its own offer. Each side only
+     * compresses once the other has offered, and only uses its preset
+     * dictionary if the other side has the same one. Packets that end with a
+     * file are never compressed.</p>
+     * 
+     * @param compression How to compress, or null.
+     */
+    public void setCompression(Compression compression)
+    {
+        this.compression = compression;
+    }
 
+    /**
+     * Write compact frames, whose headers and sizes are varints, once the
+     * other side has announced that it can read them with
+     * {@link negotiate()}. Frames are written as before until then.
+     * 
+     * <p>Compact frames save the most on many small packets. Packets can
+     * also write their own fields as varints with
+     * {@link Packet#writeVarInt(int)} and {@link Packet#writeVarLong(long)},
+     * whether the frame is compact or not.</p>
+     * 
+     * @param compact true to write compact frames.
+     */
+    public void setCompact(boolean compact)
+    {
+        this.compact = compact;
+    }
 
-    /*\**********************************************************************\*/
-    /*\                             Protected Methods                        \*/
-    /*\**********************************************************************\*/
     /**
-     * Writes the head of the packet.
+     * Set the largest frame that will be received, in bytes. A larger frame
+     * fails the read before the receive buffer grows to hold it, and the
+     * connection should then be closed.
      * 
-     * @throws IOException 
+     * <p>The file region of a frame only counts when the whole frame has to
+     * be buffered, which is when the socket is driven by a
+     * {@link Reactor}.</p>
+     * 
+     * <p>The default is {@link MAX_FRAME}.</p>
+     * 
+     * @param size The number of bytes.
      */
-    protected void writeHead()
-        throws IOException
+    public void setMaxFrameSize(int size)
     {
-        for (byte head : heads)
-        {
-            output.writeByte(head);
-        }
+        this.maxFrame = size;
     }
 
     /**
-     * Writes the index of the packet.
+     * Get the largest frame that will be received.
      * 
-     * @throws IOException 
+     * @return {@link int} the number of bytes.
      */
-    protected void writeIndex()
-        throws IOException
+    public int getMaxFrameSize()
     {
-        output.writeLong(out[COUNT]++);
+        return maxFrame;
     }
 
     /**
-     * Writes the packet index and the actual packet.
+     * Set the largest byte array or string that packets will read. A larger
+     * size fails the read before anything is allocated for it. The default
+     * is {@link MAX_PAYLOAD}.
      * 
-     * @param packet The packet to write.
-     * @throws IOException 
+     * @param size The number of bytes.
+     * @see SocketInputStream#setMaxPayload(int)
      */
-    protected void writePacket(Packet packet)
-        throws IOException
+    public void setMaxPayload(int size)
     {
-        output.writeInt(packet.getPacketIndex());
-        
-        packet.write(output);
+        this.maxPayload = size;
     }
 
     /**
-     * Writes the tail of the packet.
+     * Get the largest byte array or string that packets will read.
      * 
-     * @throws IOException 
+     * @return {@link int} the number of bytes.
      */
-    protected void writeTail()
-        throws IOException
+    public int getMaxPayload()
     {
-        for (byte tail : tails)
+        return maxPayload;
+    }
+
+    /**
+     * Set the watermarks of the bytes queued for sending. Once more than the
+     * high watermark are queued, the socket stops being writable until no
+     * more than the low watermark are.
+     * 
+     * @param low The low watermark, in bytes.
+     * @param high The high watermark, in bytes.
+     * @throws IllegalArgumentException if the low watermark is above the
+     * high one.
+     */
+    public void setWriteWatermarks(int low, int high)
+    {
+        if (low < 0 || low > high)
         {
-            output.writeByte(tail);
+            throw new IllegalArgumentException("Invalid watermarks " + low + " and " + high + ".");
         }
+
+        this.low = low;
+
+        this.high = high;
     }
 
     /**
-     * Reads the head of the packet. If the head of the packet is not present
-     * immediately, then it means that the previous packet was most likely
-     * corrupt.
+     * Get the high watermark of the bytes queued for sending.
+     * 
+     * @return {@link int} the number of bytes.
+     */
+    public int getHighWatermark()
+    {
+        return high;
+    }
+
+    /**
+     * Get the low watermark of the bytes queued for sending.
+     * 
+     * @return {@link int} the number of bytes.
+     */
+    public int getLowWatermark()
+    {
+        return low;
+    }
+
+    /**
+     * Get the number of bytes queued for sending, which have been written
+     * but not flushed. Packets that have not been encoded yet are counted at
+     * the average size of the frames encoded lately.
+     * 
+     * @return {@link long} the number of bytes.
+     */
+    public long getQueuedBytes()
+    {
+        return queued.get();
+    }
+
+    /**
+     * Gets if the socket is writable, which is until more than the high
+     * watermark of bytes are queued for sending, and then once no more than
+     * the low watermark are. Producers should stop writing while the socket
+     * is not writable.
+     * 
+     * @return {@link boolean} true if the socket is writable.
+     */
+    public boolean isWritable()
+    {
+        return !unwritable.get();
+    }
+
+    /**
+     * Get the channel of the connection, if it has one.
+     * 
+     * @return {@link SocketChannel} the channel, or null.
+     */
+    SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * Gets if the socket is non-blocking, and needs a {@link Reactor} to
+     * receive packets.
      * 
      * @return {@link boolean}
      * <table>
      *  <tr>
      *      <td><i>true</i></td>
-     *      <td>The head was found with no problems.</td>
+     *      <td>The socket is driven by a reactor.</td>
      *  </tr>
      *  <tr>
      *      <td><i>false</i></td>
-     *      <td>There was a problem finding the head.</td>
+     *      <td>The socket is blocking.</td>
      *  </tr>
      * </table>
+     */
+    boolean isSelectable()
+    {
+        return selectable;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    /**
+     * Create a new socket with an established connection.
+     * 
+     * @param socket The connection to create a new socket from.
+     * @throws IOException 
+     */
+    public Socket(java.net.Socket socket) throws IOException
+    {
+        open(socket);
+    }
+
+    /**
+     * Connect to a server.
+     * 
+     * @param host The host name of the server to connect to
+     * @param port The port to connect on
+     * @throws UnknownHostException
+     * @throws IOException
+     * @throws ConnectException 
+     */
+    public Socket(String host, int port)
+        throws UnknownHostException, ConnectException, IOException
+    {
+        this(Connect(host, port));
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Encodes the frames of the waiting writes, then flushes them all at once.
+     * Must be called while holding the write lock.
+     * 
+     * A write that fails to encode only fails itself, while a failed flush
+     * fails every write in the batch.
+     */
+    private void combine()
+    {
+        Write pending;
+
+        while (batch.size() < BATCH && (pending = writes.poll()) != null)
+        {
+            batch.add(pending);
+
+            long start = outbound.size();
+
+            long count = out[COUNT];
+
+            int regions = outbound.getRegionCount();
+
+            try
+            {
+                encode(pending.packet, pending.kind, pending.call);
+            }
+            catch (IOException ex)
+            {
+                pending.failure = ex;
+            }
+            catch (RuntimeException ex)
+            {
+                pending.failure = ex;
+            }
+
+            if (pending.failure != null)
+            {
+                outbound.truncate(start);
+
+                out[COUNT] = count;
+            }
+            else
+            {
+                if (capture != null)
+                {
+                    record(count, start);
+                }
+
+                if (backlog != null && out[COUNT] > count)
+                {
+                    pending.kept = keep(count, start, outbound.getRegionCount() > regions);
+                }
+            }
+
+            int size = (int)Math.min(Integer.MAX_VALUE, outbound.size() - start);
+
+            if (size > 0)
+            {
+                estimate += (size - estimate) / 8;
+            }
+
+            account(size - pending.size);
+
+            pending.size = size;
+        }
+
+        IOException failure = null;
+
+        try
+        {
+            output.flush();
+        }
+        catch (IOException ex)
+        {
+            failure = ex;
+        }
+
+        boolean resumable = isResumable();
+
+        long flushed = 0;
+
+        for (Write done : batch)
+        {
+            flushed += done.size;
+
+            if (done.failure == null && !(done.kept && resumable))
+            {
+                done.failure = failure;
+            }
+
+            done.done = true;
+
+            if (done.future != null)
+            {
+                if (done.failure == null)
+                {
+                    done.future.complete(null);
+                }
+                else
+                {
+                    done.future.completeExceptionally(done.failure);
+                }
+            }
+        }
+
+        batch.clear();
+
+        account(-flushed);
+    }
+
+    /**
+     * Encodes a frame into the output buffer, in the version that the other
+     * side can read.
+     * 
+     * @param packet The packet to encode.
+     * @param kind {@link CALL} or {@link REPLY} if the packet is part of a
+     * call, or 0.
+     * @param call The id of the call.
+     * @throws IOException 
+     */
+    private void encode(Packet packet, byte kind, int call) throws IOException
+    {
+        boolean sequenced = !(packet instanceof Control) || ((Control)packet).isSequenced();
+
+        boolean compact = isCompactFraming();
+
+        if (kind != 0 && version < 4)
+        {
+            throw new IOException("The other side can not take calls.");
+        }
+
+        output.setCompact(compact);
+
+        if (version < 2 && sequenced)
+        {
+            writeHead();
+
+            writeIndex();
+
+            writePacket(packet);
+
+            writeTail();
+
+            return;
+        }
+
+        for (int i = 0; i < heads.length - 1; i++)
+        {
+            output.writeByte(heads[i]);
+        }
+
+        output.writeByte(head2);
+
+        long flags = outbound.size();
+
+        byte flag = (byte)((sequenced ? 0 : UNSEQUENCED) | (compact ? COMPACT : 0) | kind);
+
+        output.writeByte(flag);
+
+        long length = outbound.size();
+
+        output.writeInt(0);
+
+        if (compact)
+        {
+            output.writeByte((byte)0);
+        }
+
+        int regions = outbound.getRegionCount();
+
+        if (sequenced)
+        {
+            writeIndex();
+        }
+        else if (!compact)
+        {
+            output.writeLong(-1);
+        }
+
+        if (kind != 0)
+        {
+            if (compact)
+            {
+                output.writeUnsignedVarInt(call);
+            }
+            else
+            {
+                output.writeInt(call);
+            }
+        }
+
+        long body = outbound.size() + (compact ? VarIntSize(ZigZag(packet.getPacketIndex())) : 4);
+
+        writePacket(packet);
+
+        long end = outbound.size();
+
+        if (outbound.getRegionCount() > regions)
+        {
+            if (outbound.getRegionCount() > regions + 1 || !outbound.endsWithRegion())
+            {
+                throw new IOException("A file must be the last field of a packet.");
+            }
+
+            outbound.putByte(flags, (byte)(flag | REGION));
+
+            end = outbound.getRegionPosition() - 8;
+        }
+        else if (deflate(body))
+        {
+            outbound.putByte(flags, (byte)(flag | COMPRESSED));
+
+            end = outbound.size();
+        }
+
+        if (compact)
+        {
+            putLength(length, (int)(end - length - VARINT));
+        }
+        else
+        {
+            outbound.putInt(length, (int)(end - length - 4));
+        }
+
+        writeTail();
+    }
+
+    /**
+     * Writes the length of a compact frame into the bytes kept for it, then
+     * removes the bytes it did not need. If they can not be removed, the
+     * length is padded to fill them instead, which is still a valid varint.
+     * 
+     * @param position The position of the bytes kept for the length.
+     * @param length The length of the frame.
+     */
+    private void putLength(long position, int length)
+    {
+        int size = VarIntSize(length);
+
+        if (size < VARINT && !outbound.remove(position + size, VARINT - size))
+        {
+            size = VARINT;
+        }
+
+        for (int i = 0; i < size; i++, length >>>= 7)
+        {
+            outbound.putByte(position + i, (byte)((length & 0x7f) | (i < size - 1 ? 0x80 : 0)));
+        }
+    }
+
+    /**
+     * Decodes a frame from the receive buffer. Throws {@link EOFException} if
+     * the buffer runs out before the frame is complete.
+     * 
+     * @return {@link Packet} the packet that was read, or null if the frame
+     * was skipped.
+     * @throws IOException 
+     */
+    private Packet decode() throws IOException
+    {
+        input.setCompact(false);
+
+        input.setMaxPayload(maxPayload);
+
+        if (!readHead())
+        {
+            Logger.getLogger(Socket.class.getName()).log(
+                Level.SEVERE, "readHead() failed."
+            );
+        }
+
+        if (frame >= 2)
+        {
+            return decode2();
+        }
+
+        if (!readIndex())
+        {
+            Logger.getLogger(Socket.class.getName()).log(
+                Level.SEVERE, "readIndex() failed."
+            );
+        }
+
+        Packet packet = readPacket();
+
+        if (!readTail())
+        {
+            Logger.getLogger(Socket.class.getName()).log(
+                Level.SEVERE, "readTail() failed."
+            );
+        }
+
+        return packet;
+    }
+
+    /**
+     * Decodes the rest of a version 2 frame, once all of it has been
+     * received. Packets that are not registered are skipped without being
+     * decoded, as are any trailing bytes that a packet did not read.
+     * 
+     * @return {@link Packet} the packet that was read, or null if the frame
+     * was skipped.
+     * @throws IOException 
+     */
+    private Packet decode2() throws IOException
+    {
+        byte flags = input.readByteValue();
+
+        boolean compact = (flags & COMPACT) != 0;
+
+        int length = compact ? input.readUnsignedVarIntValue() : input.readIntValue();
+
+        if (length < (compact ? 1 : HEADER))
+        {
+            Logger.getLogger(Socket.class.getName()).log(
+                Level.SEVERE, "Invalid frame length {0}.", length
+            );
+
+            return null;
+        }
+
+        if (length > maxFrame)
+        {
+            throw new IOException("A frame of " + length + " bytes is larger than " + maxFrame + ".");
+        }
+
+        boolean sequenced = (flags & UNSEQUENCED) == 0;
+
+        byte kind = (byte)(flags & (CALL | REPLY));
+
+        input.setCompact(compact);
+
+        if ((flags & REGION) != 0)
+        {
+            return decodeRegion(length, sequenced, kind);
+        }
+
+        inbound.expect(length + tails.length);
+
+        int end = inbound.available() - length;
+
+        Packet packet = decodePacket(sequenced, kind, (flags & COMPRESSED) != 0 ? end : -1);
+
+        if (inbound.available() < end)
+        {
+            Logger.getLogger(Socket.class.getName()).log(
+                Level.SEVERE,
+                "Packet {0} read past the end of its frame.",
+                packet.getPacketIndex()
+            );
+        }
+        else
+        {
+            inbound.skip(inbound.available() - end);
+        }
+
+        if (!readTail())
+        {
+            Logger.getLogger(Socket.class.getName()).log(
+                Level.SEVERE, "readTail() failed."
+            );
+        }
+
+        return packet;
+    }
+
+    /**
+     * Decodes the rest of a version 2 frame that ends with a file region.
+     * 
+     * When the socket is not selectable, the region is streamed from the
+     * connection as the packet reads it, so only the fields before it need to
+     * be buffered. Otherwise the whole frame is buffered first.
+     * 
+     * @param length The length of the frame up to the region.
+     * @param sequenced If the frame is numbered.
+     * @param kind The call flags of the frame.
+     * @return {@link Packet} the packet that was read, or null if the frame
+     * was skipped.
+     * @throws IOException 
+     */
+    private Packet decodeRegion(int length, boolean sequenced, byte kind) throws IOException
+    {
+        inbound.expect(length + 8);
+
+        long count = inbound.peekLong(length);
+
+        if (count < 0)
+        {
+            throw new IOException("Invalid file region size " + count + ".");
+        }
+
+        if (source == null && length + 8 + count > maxFrame)
+        {
+            throw new IOException("A frame of " + (length + 8 + count) + " bytes is larger than " + maxFrame + ".");
+        }
+
+        if (source == null)
+        {
+            inbound.expect(length + 8 + count + tails.length);
+        }
+
+        int end = inbound.available() - length;
+
+        inbound.stream(source, count);
+
+        try
+        {
+            Packet packet = decodePacket(sequenced, kind, -1);
+
+            if (inbound.pending() > 0)
+            {
+                if (inbound.available() > end)
+                {
+                    inbound.skip(inbound.available() - end);
+                }
+
+                inbound.skip(8);
+
+                inbound.discard(inbound.pending());
+            }
+
+            inbound.require(tails.length);
+
+            if (!readTail())
+            {
+                Logger.getLogger(Socket.class.getName()).log(
+                    Level.SEVERE, "readTail() failed."
+                );
+            }
+
+            return packet;
+        }
+        finally
+        {
+            inbound.stream(null, 0);
+        }
+    }
+
+    /**
+     * Decodes the index, call id, packet index and packet of a version 2
+     * frame.
+     * 
+     * @param sequenced If the frame is numbered, rather than having an index
+     * of -1.
+     * @param kind {@link CALL} or {@link REPLY} if the frame carries the id
+     * of a call, or 0.
+     * @param deflated The number of bytes left in the receive buffer after
+     * the frame if its packet was deflated, or -1.
+     * @return {@link Packet} the packet that was read, or null if it does not
+     * exist.
+     * @throws IOException 
+     */
+    private Packet decodePacket(boolean sequenced, byte kind, int deflated) throws IOException
+    {
+        if (!sequenced)
+        {
+            if (!input.isCompact())
+            {
+                input.readLongValue();
+            }
+        }
+        else if (!readIndex())
+        {
+            Logger.getLogger(Socket.class.getName()).log(
+                Level.SEVERE, "readIndex() failed."
+            );
+        }
+
+        int call = 0;
+
+        if (kind != 0)
+        {
+            call = input.isCompact() ? input.readUnsignedVarIntValue() : input.readIntValue();
+        }
+
+        int index = input.isCompact() ? input.readVarIntValue() : input.readIntValue();
+
+        SocketInputStream input = deflated < 0 ? this.input : inflate(deflated);
+
+        Packet packet = instance(index);
+
+        if (packet == null)
+        {
+            Logger.getLogger(Socket.class.getName()).log(
+                Level.WARNING, "Packet {0} does not exist, skipped.", index
+            );
+        }
+        else
+        {
+            packet.called(kind == 0 ? 0 : call, kind == REPLY);
+
+            read(packet, input);
+        }
+
+        return packet;
+    }
+
+    /**
+     * Reads a packet that was just created, releasing it if the read fails,
+     * so that a pooled packet is not lost when a frame is not complete yet.
+     * 
+     * @param packet The packet to read.
+     * @param input The stream to read it from.
+     * @throws IOException 
+     */
+    private static void read(Packet packet, SocketInputStream input) throws IOException
+    {
+        try
+        {
+            packet.read(input);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            packet.release();
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Records a frame that was just encoded into the send buffer.
+     * 
+     * @param index The index of the frame.
+     * @param start The position of the frame in the send buffer.
+     */
+    private void record(long index, long start)
+    {
+        Capture capture = this.capture;
+
+        long length = outbound.size() - start;
+
+        if (capture == null || length > Integer.MAX_VALUE - Capture.RECORD)
+        {
+            return;
+        }
+
+        ByteBuffer frame = capture.reserve(captured, Capture.OUT, index, (int)length);
+
+        if (frame == null)
+        {
+            return;
+        }
+
+        try
+        {
+            outbound.copy(start, frame);
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(Socket.class.getName()).log(
+                Level.WARNING, "A frame could not be captured.", ex
+            );
+        }
+        finally
+        {
+            capture.release();
+        }
+    }
+
+    /**
+     * Records a frame that was just decoded from the receive buffer.
+     * 
+     * @param index The index of the frame.
+     * @param start The position of the frame in the receive buffer.
+     */
+    private void record(long index, int start)
+    {
+        Capture capture = this.capture;
+
+        if (capture == null)
+        {
+            return;
+        }
+
+        ByteBuffer frame = capture.reserve(
+            captured, Capture.IN, index, inbound.position() - start
+        );
+
+        if (frame == null)
+        {
+            return;
+        }
+
+        try
+        {
+            inbound.copy(start, frame);
+        }
+        finally
+        {
+            capture.release();
+        }
+    }
+
+    /**
+     * Sets up the streams over a connection.
+     * 
+     * @param socket The connection.
+     * @throws IOException 
+     */
+    private void open(java.net.Socket socket) throws IOException
+    {
+        this.socket = socket;
+
+        this.channel = socket.getChannel();
+
+        this.selectable = channel != null && !channel.isBlocking();
+        
+        if (channel != null)
+        {
+            outbound = new BufferOutputStream(new ChannelOutputStream(channel));
+        }
+        else
+        {
+            outbound = new BufferOutputStream(socket.getOutputStream());
+        }
+
+        output = new SocketOutputStream(outbound);
+
+        stream = channel == null ? socket.getInputStream() : null;
+
+        if (selectable)
+        {
+            source = null;
+        }
+        else
+        {
+            source = channel == null ? Channels.newChannel(stream) : channel;
+        }
+
+        inbound = new BufferInputStream();
+
+        wanted = 0;
+
+        input = new SocketInputStream(inbound);
+    }
+
+    /**
+     * Trades connections with another socket, along with any bytes received
+     * but not yet decoded. Both sockets must be locked.
+     * 
+     * @param other The socket to trade with.
+     */
+    private void exchange(Socket other)
+    {
+        java.net.Socket socket = this.socket;
+        this.socket = other.socket;
+        other.socket = socket;
+
+        SocketChannel channel = this.channel;
+        this.channel = other.channel;
+        other.channel = channel;
+
+        boolean selectable = this.selectable;
+        this.selectable = other.selectable;
+        other.selectable = selectable;
+
+        SocketOutputStream output = this.output;
+        this.output = other.output;
+        other.output = output;
+
+        BufferOutputStream outbound = this.outbound;
+        this.outbound = other.outbound;
+        other.outbound = outbound;
+
+        SocketInputStream input = this.input;
+        this.input = other.input;
+        other.input = input;
+
+        BufferInputStream inbound = this.inbound;
+        this.inbound = other.inbound;
+        other.inbound = inbound;
+
+        int wanted = this.wanted;
+        this.wanted = other.wanted;
+        other.wanted = wanted;
+
+        InputStream stream = this.stream;
+        this.stream = other.stream;
+        other.stream = stream;
+
+        ReadableByteChannel source = this.source;
+        this.source = other.source;
+        other.source = source;
+    }
+
+    /**
+     * Keeps a copy of a frame that was just encoded, for resending.
+     * 
+     * @param index The index of the frame.
+     * @param start The position of the frame in the send buffer.
+     * @param region If the frame has a file region, which is not kept.
+     * @return {@link boolean} true if the frame was kept.
+     */
+    private boolean keep(long index, long start, boolean region)
+    {
+        Backlog backlog = this.backlog;
+
+        if (backlog == null)
+        {
+            return false;
+        }
+
+        byte[] frame = null;
+
+        if (!region)
+        {
+            frame = new byte[(int)(outbound.size() - start)];
+
+            try
+            {
+                outbound.copy(start, ByteBuffer.wrap(frame));
+            }
+            catch (IOException ex)
+            {
+                frame = null;
+            }
+        }
+
+        backlog.add(index, frame);
+
+        return frame != null;
+    }
+
+    /**
+     * Sends the kept frames again, from the next one the other side expects.
+     * The write lock must be held.
+     * 
+     * @param next The index of the next frame the other side expects.
+     * @return {@link boolean} false if some of the frames are no longer kept.
+     * @throws IOException 
+     */
+    private boolean retransmit(long next) throws IOException
+    {
+        Backlog backlog = this.backlog;
+
+        ArrayList<byte[]> frames = backlog == null ? null : backlog.from(next);
+
+        if (frames == null)
+        {
+            return false;
+        }
+
+        for (byte[] frame : frames)
+        {
+            outbound.write(frame, 0, frame.length);
+        }
+
+        output.flush();
+
+        return true;
+    }
+
+    /**
+     * Takes over the connection of a socket that the other side used to ask
+     * for this one to be resumed, then sends the frames it is missing.
+     * 
+     * @param carrier The socket that received the request.
+     * @param next The index of the next frame the other side expects.
+     * @return {@link boolean} false if the frames the other side is missing
+     * are no longer kept.
+     * @throws IOException 
+     */
+    private boolean adopt(Socket carrier, long next) throws IOException
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException ex)
+        {
+        }
+
+        write.lock();
+
+        try
+        {
+            read.lock();
+
+            try
+            {
+                Backlog backlog = this.backlog;
+
+                if (backlog == null || backlog.from(next) == null)
+                {
+                    return false;
+                }
+
+                carrier.write.lock();
+
+                try
+                {
+                    exchange(carrier);
+                }
+                finally
+                {
+                    carrier.write.unlock();
+                }
+
+                encode(new Control.Resume(Control.Resume.RESUMED, peer, in[COUNT]), (byte)0, 0);
+
+                return retransmit(next);
+            }
+            finally
+            {
+                read.unlock();
+            }
+        }
+        finally
+        {
+            write.unlock();
+        }
+    }
+
+    /**
+     * Announces the token that the other side can resume this socket with.
+     */
+    private void announce()
+    {
+        Backlog backlog = this.backlog;
+
+        if (backlog != null && announced.compareAndSet(false, true))
+        {
+            writeAsync(new Control.Resume(
+                Control.Resume.ANNOUNCE, token, backlog.capacity()
+            ));
+        }
+    }
+
+    /**
+     * Offers the other side to receive compressed packets, with the preset
+     * dictionary of this socket.
+     */
+    private void offer()
+    {
+        Compression compression = this.compression;
+
+        if (compression != null && offered.compareAndSet(false, true))
+        {
+            writeAsync(new Control.Deflate(compression.getDictionaryId()));
+        }
+    }
+
+    /**
+     * Replaces the packet that was just encoded after a position with its
+     * compressed size and bytes, if compression is on, the packet is large
+     * enough, and compressing it saves space. Must hold the write lock.
+     * 
+     * @param body The position of the packet after its packet index.
+     * @return {@link boolean} true if the packet was compressed.
+     * @throws IOException 
+     */
+    private boolean deflate(long body) throws IOException
+    {
+        Compression compression = this.compression;
+
+        long size = outbound.size() - body;
+
+        if (compression == null || !deflating || size < Math.max(compression.getThreshold(), 8) || size > Integer.MAX_VALUE / 2)
+        {
+            return false;
+        }
+
+        int length = (int)size;
+
+        if (plain.length < length)
+        {
+            plain = new byte[Math.max(length, plain.length * 2)];
+
+            packed = new byte[plain.length];
+        }
+
+        outbound.copy(body, ByteBuffer.wrap(plain, 0, length));
+
+        if (deflater == null)
+        {
+            deflater = new Deflater(compression.getLevel());
+        }
+
+        deflater.reset();
+
+        deflater.setLevel(compression.getLevel());
+
+        if (shared)
+        {
+            deflater.setDictionary(compression.getDictionary());
+        }
+
+        deflater.setInput(plain, 0, length);
+
+        deflater.finish();
+
+        int limit = length - 4;
+
+        int count = 0;
+
+        while (!deflater.finished() && count < limit)
+        {
+            count += deflater.deflate(packed, count, limit - count);
+        }
+
+        if (!deflater.finished())
+        {
+            return false;
+        }
+
+        outbound.truncate(body);
+
+        if (output.isCompact())
+        {
+            output.writeUnsignedVarInt(length);
+        }
+        else
+        {
+            output.writeInt(length);
+        }
+
+        outbound.write(packed, 0, count);
+
+        return true;
+    }
+
+    /**
+     * Decompresses the rest of a compressed packet from the receive buffer.
+     * Must hold the read lock.
+     * 
+     * @param end The number of bytes left in the receive buffer after the
+     * packet.
+     * @return {@link SocketInputStream} the stream to read the packet from.
+     * @throws IOException 
+     */
+    private SocketInputStream inflate(int end) throws IOException
+    {
+        int size = input.isCompact() ? input.readUnsignedVarIntValue() : input.readIntValue();
+
+        int count = inbound.available() - end;
+
+        if (count < 0 || size < 0 || size > (long)count * RATIO + 64 || size > maxFrame)
+        {
+            throw new IOException("Invalid compressed packet size " + size + ".");
+        }
+
+        if (inflater == null)
+        {
+            inflater = new Inflater();
+
+            inflated = new BufferInputStream();
+
+            unpacked = new SocketInputStream(inflated);
+        }
+
+        inflater.reset();
+
+        unpacked.setCompact(input.isCompact());
+
+        unpacked.setMaxPayload(maxPayload);
+
+        inbound.feed(inflater, count);
+
+        byte[] bytes = inflated.load(size);
+
+        int n = 0;
+
+        try
+        {
+            while (n < size)
+            {
+                int r = inflater.inflate(bytes, n, size - n);
+
+                if (r > 0)
+                {
+                    n += r;
+                }
+                else if (inflater.needsDictionary())
+                {
+                    Compression compression = this.compression;
+
+                    if (compression == null || compression.getDictionaryId() != inflater.getAdler())
+                    {
+                        throw new IOException("A packet was compressed with an unknown dictionary.");
+                    }
+
+                    inflater.setDictionary(compression.getDictionary());
+                }
+                else
+                {
+                    break;
+                }
+            }
+        }
+        catch (DataFormatException ex)
+        {
+            throw new IOException("A compressed packet is corrupt.", ex);
+        }
+
+        if (n < size)
+        {
+            throw new IOException("A compressed packet ended early.");
+        }
+
+        return unpacked;
+    }
+
+    /**
+     * Gives the writer task to the executor, unless it already has it. If
+     * the executor will not take the task, the writes are flushed on the
+     * calling thread instead, so that they are not left waiting, and so that
+     * writers are held back for as long as the executor is full.
+     */
+    private void schedule()
+    {
+        if (scheduled.compareAndSet(false, true))
+        {
+            try
+            {
+                Writers.execute(writer);
+            }
+            catch (RejectedExecutionException ex)
+            {
+                scheduled.set(false);
+
+                Logger.getLogger(Socket.class.getName()).log(
+                    Level.WARNING, "The writer executor rejected a flush, flushing inline.", ex
+                );
+
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Queues a write to be encoded and flushed, counting it as queued.
+     * 
+     * @param pending The write.
+     */
+    private void queue(Write pending)
+    {
+        pending.size = estimate;
+
+        account(pending.size);
+
+        writes.add(pending);
+    }
+
+    /**
+     * Flushes writes until none are waiting.
+     */
+    private void drain()
+    {
+        write.lock();
+
+        try
+        {
+            while (!writes.isEmpty())
+            {
+                combine();
+            }
+        }
+        finally
+        {
+            write.unlock();
+        }
+
+        scheduled.set(false);
+
+        if (!writes.isEmpty())
+        {
+            schedule();
+        }
+    }
+
+
+    /*\**********************************************************************\*/
+    /*\                             Protected Methods                        \*/
+    /*\**********************************************************************\*/
+    /**
+     * Gets if frames are written compact, which is when compact frames have
+     * been asked for and the other side can read them.
+     * 
+     * @return {@link boolean} true if frames are written compact.
+     */
+    boolean isCompactFraming()
+    {
+        return compact && version >= 3;
+    }
+
+    /**
+     * Creates an instance of a registered packet, preferring the packets
+     * registered with this socket over those registered globally.
+     * 
+     * @param index The index representing which packet to create.
+     * @return {@link Packet} the packet that was created, or null.
+     */
+    Packet instance(int index)
+    {
+        Packet packet = instancePacket(index);
+
+        if (packet == null)
+        {
+            packet = Packet.Instance(index);
+        }
+
+        return packet;
+    }
+
+    /**
+     * Writes the head of the packet.
+     * 
+     * @throws IOException 
+     */
+    protected void writeHead()
+        throws IOException
+    {
+        for (byte head : heads)
+        {
+            output.writeByte(head);
+        }
+    }
+
+    /**
+     * Writes the index of the packet.
+     * 
+     * @throws IOException 
+     */
+    protected void writeIndex()
+        throws IOException
+    {
+        if (output.isCompact())
+        {
+            output.writeUnsignedVarLong(out[COUNT]++);
+        }
+        else
+        {
+            output.writeLong(out[COUNT]++);
+        }
+    }
+
+    /**
+     * Writes the packet index and the actual packet. The body of a
+     * {@link Broadcast} is copied from the bytes it was serialized into.
+     * 
+     * @param packet The packet to write.
+     * @throws IOException 
+     */
+    protected void writePacket(Packet packet)
+        throws IOException
+    {
+        if (output.isCompact())
+        {
+            output.writeVarInt(packet.getPacketIndex());
+        }
+        else
+        {
+            output.writeInt(packet.getPacketIndex());
+        }
+
+        if (packet instanceof Broadcast)
+        {
+            outbound.write(((Broadcast)packet).getBody(output.isCompact()));
+
+            return;
+        }
+        
+        packet.write(output);
+    }
+
+    /**
+     * Writes the tail of the packet.
+     * 
+     * @throws IOException 
+     */
+    protected void writeTail()
+        throws IOException
+    {
+        for (byte tail : tails)
+        {
+            output.writeByte(tail);
+        }
+    }
+
+    /**
+     * Reads the head of the packet. If the head of the packet is not present
+     * immediately, then it means that the previous packet was most likely
+     * corrupt.
+     * 
+     * @return {@link boolean}
+     * <table>
+     *  <tr>
+     *      <td><i>true</i></td>
+     *      <td>The head was found with no problems.</td>
+     *  </tr>
+     *  <tr>
+     *      <td><i>false</i></td>
+     *      <td>There was a problem finding the head.</td>
+     *  </tr>
+     * </table>
+     * @throws IOException 
+     */
+    protected boolean readHead()
+        throws IOException
+    {
+        boolean correct = true;
+        
+        boolean fixed;
+
+        do
+        {
+            fixed = true;
+
+            for (int i = 0; i < heads.length - 1; i++)
+            {
+                if (heads[i] != input.readByteValue())
+                {
+                    fixed = false;
+                    
+                    correct = false;
+
+                    break;
+                }
+            }
+
+            if (fixed)
+            {
+                byte last = input.readByteValue();
+
+                if (last == heads[heads.length - 1])
+                {
+                    frame = 1;
+                }
+                else if (last == head2)
+                {
+                    frame = 2;
+                }
+                else
+                {
+                    fixed = false;
+
+                    correct = false;
+                }
+            }
+        } while (!fixed);
+        
+        return correct;
+    }
+    
+    /**
+     * Reads the index of the packet and compares to the number of packets that
+     * this socket has received so far.
+     * 
+     * @return {@link boolean}
+     * <table>
+     *  <tr>
+     *      <td><i>true</i></td>
+     *      <td>The index of the packet matched.</td>
+     *  </tr>
+     *  <tr>
+     *      <td><i>false</i></td>
+     *      <td>The index of the packet did not match.</td>
+     *  </tr>
+     * </table>
+     * @throws IOException 
+     */
+    protected boolean readIndex()
+        throws IOException
+    {
+        long index = input.isCompact() ? input.readUnsignedVarLongValue() : input.readLongValue();
+
+        return index == in[COUNT]++;
+    }
+
+    /**
+     * Attempts to read the tail. If the tail did not match up, then there was
+     * a problem somewhere.
+     * 
+     * @return {@link boolean}
+     * <table>
+     *  <tr>
+     *      <td><i>true</i></td>
+     *      <td>The tail was found with no problems.</td>
+     *  </tr>
+     *  <tr>
+     *      <td><i>false</i></td>
+     *      <td>There was a problem finding the tail.</td>
+     *  </tr>
+     * </table>
+     * @throws IOException 
+     */
+    protected boolean readTail()
+        throws IOException
+    {
+        boolean correct = true;
+
+        for (byte tail : tails)
+        {
+            if (input.readByteValue() != tail)
+            {
+                correct = false;
+                
+                break;
+            }
+        }
+
+        return correct;
+    }
+    
+    /**
+     * Reads a packet from the socket.
+     * 
+     * A version 1 frame does not carry its length, so a packet that is not
+     * registered can not be skipped, and the connection can not be read any
+     * further.
+     * 
+     * @return {@link Packet} the packet that was read.
+     * @throws IOException if the packet is not registered.
+     */
+    protected Packet readPacket()
+        throws IOException
+    {
+        int index = input.readIntValue();
+        
+        Packet packet = instance(index);
+        
+        if (packet == null)
+        {
+            Logger.getLogger(Packet.class.getName()).log(
+                Level.SEVERE, "Packet {0} does not exist", index);
+
+            throw new IOException("Packet " + index + " does not exist.");
+        }
+
+        read(packet, input);
+        
+        return packet;
+    }
+
+    /**
+     * Creates an instance of a packet based on the index supplied.
+     * 
+     * @param index The index representing which packet to create.
+     * @return {@link Packet} the packet that was created.
+     */
+    protected Packet instancePacket(int index)
+    {
+        return packets.create(index);
+    }
+    
+    /**
+     * Reads whatever the connection has ready into the receive buffer, in as
+     * large a read as the buffer allows.
+     * 
+     * @return {@link int} the number of bytes read, or -1 at end of stream.
+     * @throws IOException 
+     */
+    int fill() throws IOException
+    {
+        if (channel == null)
+        {
+            return inbound.fill(stream);
+        }
+
+        return inbound.fill(channel);
+    }
+
+    /**
+     * Reads a {@link Packet} from the receive buffer, if a complete frame has
+     * been received.
+     * 
+     * @return {@link Packet} the packet that was read, or null if the frame
+     * is not complete yet.
+     * @throws IOException 
+     */
+    Packet poll() throws IOException
+    {
+        read.lock();
+
+        try
+        {
+            while (true)
+            {
+                if (inbound.available() < wanted)
+                {
+                    return null;
+                }
+
+                long count = in[COUNT];
+
+                inbound.mark(0);
+
+                int position = inbound.position();
+
+                int fills = inbound.fills();
+
+                Packet packet;
+
+                try
+                {
+                    packet = decode();
+                }
+                catch (EOFException ex)
+                {
+                    inbound.reset();
+
+                    wanted = (int)Math.min(
+                        Integer.MAX_VALUE,
+                        Math.max(inbound.needed() - position, inbound.available() + 1L)
+                    );
+
+                    in[COUNT] = count;
+
+                    if (inbound.available() > maxFrame)
+                    {
+                        throw new IOException("A frame is larger than " + maxFrame + " bytes.");
+                    }
+
+                    return null;
+                }
+
+                wanted = 0;
+
+                if (capture != null && fills == inbound.fills())
+                {
+                    record(count, position);
+                }
+
+                if (peer != 0 && in[COUNT] - acknowledged >= Math.max(1, window / 4))
+                {
+                    acknowledged = in[COUNT];
+
+                    writeAsync(new Control.Ack(acknowledged));
+                }
+
+                if (packet instanceof Control)
+                {
+                    boolean more;
+
+                    try
+                    {
+                        more = ((Control)packet).handle(this);
+                    }
+                    finally
+                    {
+                        packet.release();
+                    }
+
+                    if (!more)
+                    {
+                        return null;
+                    }
+                }
+                else if (packet != null)
+                {
+                    return packet;
+                }
+            }
+        }
+        finally
+        {
+            read.unlock();
+        }
+    }
+    
+    /**
+     * Called when the other side has announced the highest frame version it
+     * can read. Frames written after this use the highest version both sides
+     * can read, and this socket announces its own version if it has not yet.
+     * 
+     * @param version The version announced by the other side.
+     */
+    void greeted(int version)
+    {
+        this.version = Math.min(version, VERSION);
+
+        if (hello.compareAndSet(false, true))
+        {
+            writeAsync(new Control.Hello(VERSION));
+        }
+    }
+
+    /**
+     * Called when the other side has announced that it is resumable. This
+     * socket acknowledges the frames it receives from then on, and announces
+     * its own token if it is resumable and has not yet.
+     * 
+     * @param token The token to resume the other side with.
+     * @param window How many frames the other side keeps for resending.
+     */
+    void announced(long token, int window)
+    {
+        this.window = window;
+
+        this.acknowledged = in[COUNT];
+
+        this.peer = token;
+
+        announce();
+    }
+
+    /**
+     * Called when the other side asks, over this socket's connection, to
+     * resume another socket. The connection is handed over to that socket,
+     * and this socket stops receiving.
+     * 
+     * @param token The token of the socket to resume.
+     * @param next The index of the next frame the other side expects.
+     * @return {@link boolean} false, since the rest of the received bytes
+     * belong to the resumed socket.
+     * @throws IOException 
+     */
+    boolean resuming(long token, long next) throws IOException
+    {
+        Socket resumed = Resumable.get(token);
+
+        if (resumed == null || resumed == this || !resumed.adopt(this, next))
+        {
+            Logger.getLogger(Socket.class.getName()).log(
+                Level.WARNING, "A socket could not be resumed."
+            );
+
+            tryClose();
+
+            return false;
+        }
+
+        successor = resumed;
+
+        resumed.adopted(this);
+
+        return false;
+    }
+
+    /**
+     * Called when the other side has answered a resume, and sends the frames
+     * it is missing.
+     * 
+     * @param token The token of this socket.
+     * @param next The index of the next frame the other side expects.
+     * @return {@link boolean} false, so that the frames that follow are
+     * received once the socket has started receiving again.
+     * @throws IOException 
+     */
+    boolean resumed(long token, long next) throws IOException
+    {
+        if (!resuming || token != this.token)
+        {
+            return true;
+        }
+
+        write.lock();
+
+        try
+        {
+            if (!retransmit(next))
+            {
+                throw new IOException("The frames the other side is missing are no longer kept.");
+            }
+        }
+        finally
+        {
+            write.unlock();
+        }
+
+        resuming = false;
+
+        return false;
+    }
+
+    /**
+     * Called when the other side has received the frames before an index.
+     * 
+     * @param index The index of the next frame the other side expects.
+     */
+    void acknowledged(long index)
+    {
+        Backlog backlog = this.backlog;
+
+        if (backlog != null)
+        {
+            backlog.release(index);
+        }
+    }
+
+    /**
+     * Called when the other side has offered to receive compressed packets.
+     * Packets written after this are compressed if this socket has
+     * compression set, and this socket makes its own offer if it has not yet.
+     * 
+     * @param dictionary The checksum of the preset dictionary of the other
+     * side, or 0 if it has none.
+     */
+    void deflating(int dictionary)
+    {
+        Compression compression = this.compression;
+
+        if (compression == null)
+        {
+            return;
+        }
+
+        shared = dictionary != 0 && dictionary == compression.getDictionaryId();
+
+        deflating = true;
+
+        offer();
+    }
+
+    /**
+     * Get if this socket has agreed on a frame version with the other side,
+     * which it has once it has announced its own. Control packets for
+     * channels and topics are ignored until then, since a peer that never
+     * negotiated may not mean them.
+     * 
+     * @return {@link boolean} true once the version has been announced.
+     */
+    boolean negotiated()
+    {
+        return hello.get();
+    }
+
+    /**
+     * Called with each fragment of a packet written to a {@link Channel} by
+     * the other side.
+     * 
+     * @param channel The id of the channel.
+     * @param last If the fragment completes its packet.
+     * @param bytes The bytes of the fragment.
+     * @throws IOException 
+     */
+    void fragment(int channel, boolean last, byte[] bytes) throws IOException
+    {
+        multiplexer().received(channel, last, bytes);
+    }
+
+    /**
+     * Called when the other side subscribes to a topic or pattern, or
+     * unsubscribes. A plain socket has no topics, so this does nothing.
+     * 
+     * @param pattern The topic or pattern.
+     * @param subscribe True to subscribe, false to unsubscribe.
+     */
+    void subscribed(String pattern, boolean subscribe)
+    {
+    }
+
+    /**
+     * Gets the channels of this socket, creating them on first use.
+     * 
+     * @return {@link Multiplexer} the channels.
+     */
+    Multiplexer multiplexer()
+    {
+        Multiplexer multiplexer = this.multiplexer;
+
+        if (multiplexer == null)
+        {
+            synchronized (this)
+            {
+                multiplexer = this.multiplexer;
+
+                if (multiplexer == null)
+                {
+                    multiplexer = this.multiplexer = new Multiplexer(this);
+                }
+            }
+        }
+
+        return multiplexer;
+    }
+
+    /**
+     * Called once this socket has taken over a new connection, so that it
+     * can start receiving from it.
+     * 
+     * @param carrier The socket whose connection was taken over, or null if
+     * this socket resumed itself.
+     */
+    void adopted(Socket carrier)
+    {
+    }
+    
+    /**
+     * Counts bytes as queued for sending, or as no longer queued, and
+     * changes whether the socket is writable when a watermark is crossed.
+     * 
+     * @param bytes The number of bytes queued, or minus the number sent.
+     */
+    void account(long bytes)
+    {
+        if (bytes == 0)
+        {
+            return;
+        }
+
+        long total = queued.addAndGet(bytes);
+
+        if (bytes > 0 ? total > high && unwritable.compareAndSet(false, true)
+                      : total <= low && unwritable.compareAndSet(true, false))
+        {
+            writabilityChanged(bytes < 0);
+        }
+    }
+
+    /**
+     * Called once the socket stops being writable, or becomes writable
+     * again, on the thread that queued or flushed the bytes that crossed the
+     * watermark.
+     * 
+     * @param writable If the socket is now writable.
+     */
+    void writabilityChanged(boolean writable)
+    {
+    }
+
+    /**
+     * Write a {@link Packet} as part of a call, without waiting for it to be
+     * sent.
+     * 
+     * @param packet the packet to write.
+     * @param kind {@link CALL} or {@link REPLY}, or 0 if the packet is not
+     * part of a call.
+     * @param call The id of the call.
+     * @return {@link CompletableFuture} a future that completes once the
+     * packet has been flushed, or completes exceptionally if it could not be.
+     */
+    CompletableFuture<Void> writeAsync(Packet packet, byte kind, int call)
+    {
+        Write pending = new Write(packet, new CompletableFuture<Void>());
+
+        pending.kind = kind;
+
+        pending.call = call;
+
+        queue(pending);
+
+        schedule();
+
+        return pending.future;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Announce to the other side the highest frame version that this socket
+     * can read, so that both sides switch to it.
+     * 
+     * This is never done on its own, since a peer that predates version 2
+     * does not know the announcement's packet and can not read past it. Call
+     * this right after connecting or accepting, and only when the other side
+     * is known to understand it. Frames are written in version 1 until the
+     * other side answers. A socket that receives an announcement answers it,
+     * so only one side needs to call this.
+     * 
      * @throws IOException 
      */
-    protected boolean readHead()
-        throws IOException
+    public void negotiate() throws IOException
     {
-        boolean correct = true;
-        
-        boolean fixed;
-
-        do
+        if (hello.compareAndSet(false, true))
         {
-            fixed = true;
+            write(new Control.Hello(VERSION));
+        }
 
-            for (byte head : heads)
-            {
-                if (head != input.readByte())
-                {
-                    fixed = false;
-                    
-                    correct = false;
+        announce();
 
-                    break;
-                }
-            }
-        } while (!fixed);
-        
-        return correct;
+        offer();
     }
-    
+
     /**
-     * Reads the index of the packet and compares to the number of packets that
-     * this socket has received so far.
+     * Open a logical channel, or get it if it is already open. Each channel
+     * has its own callbacks and its own order, and a large packet on one
+     * channel does not hold up the packets of another. See {@link Channel}.
      * 
-     * @return {@link boolean}
-     * <table>
-     *  <tr>
-     *      <td><i>true</i></td>
-     *      <td>The index of the packet matched.</td>
-     *  </tr>
-     *  <tr>
-     *      <td><i>false</i></td>
-     *      <td>The index of the packet did not match.</td>
-     *  </tr>
-     * </table>
-     * @throws IOException 
+     * <p>One side must have called {@link negotiate()} first, since a socket
+     * ignores the packets of channels until it has agreed on a version.</p>
+     * 
+     * @param id The id of the channel, which both sides must open.
+     * @return {@link Channel} the channel.
      */
-    protected boolean readIndex()
-        throws IOException
+    public Channel openChannel(int id)
     {
-        return input.readLong() == in[COUNT]++;
+        return multiplexer().open(id);
     }
 
     /**
-     * Attempts to read the tail. If the tail did not match up, then there was
-     * a problem somewhere.
+     * Make this socket resumable. The most recent frames sent are kept, so
+     * that they can be sent again if the connection drops and is resumed.
      * 
-     * @return {@link boolean}
-     * <table>
-     *  <tr>
-     *      <td><i>true</i></td>
-     *      <td>The tail was found with no problems.</td>
-     *  </tr>
-     *  <tr>
-     *      <td><i>false</i></td>
-     *      <td>There was a problem finding the tail.</td>
-     *  </tr>
-     * </table>
-     * @throws IOException 
+     * <p>Both sides must call this before {@link negotiate()} is called by
+     * the side that connected, which then announces its token, and the other
+     * side answers with its own. The connecting side can then call
+     * {@link resume(String, int)} after the connection drops. The other side
+     * hands the new connection over to this socket, and both sides send the
+     * frames the other is missing, in order and with their original
+     * indexes.</p>
+     * 
+     * <p>Writes that fail because the connection dropped do not throw once
+     * the connection is resumable, since their frames are kept and sent once
+     * it is resumed. A socket stays resumable until it is closed, so a socket
+     * whose connection dropped should only be closed once it should no
+     * longer be resumed.</p>
+     * 
+     * @param frames The most frames to keep. Frames are dropped once the other
+     * side acknowledges them, which it does every quarter of this many.
      */
-    protected boolean readTail()
-        throws IOException
+    public void setResumable(int frames)
     {
-        boolean correct = true;
+        long token;
 
-        for (byte tail : tails)
+        do
         {
-            if ((byte)input.read() != tail)
-            {
-                correct = false;
-                
-                break;
-            }
+            token = Tokens.nextLong();
         }
+        while (token == 0 || Resumable.putIfAbsent(token, this) != null);
 
-        return correct;
+        backlog = new Backlog(frames, out[COUNT]);
+
+        this.token = token;
     }
-    
+
     /**
-     * Reads a packet from the socket.
+     * Gets if the connection can be resumed, which is once both sides have
+     * announced that they are resumable.
      * 
-     * @return {@link Packet} the packet that was read.
-     * @throws IOException 
+     * @return {@link boolean} true if {@link resume(String, int)} can be
+     * called.
      */
-    protected Packet readPacket()
-        throws IOException
+    public boolean isResumable()
     {
-        int index = input.readInt();
-        
-        Packet packet = instancePacket(index);
-        
-        if (packet == null)
-        {
-            packet = Packet.Instance(index);
-
-            if (packet == null)
-            {
-                Logger.getLogger(Packet.class.getName()).log(
-                    Level.SEVERE, "Packet {0} does not exist", index);
-            }
-        }
+        return backlog != null && peer != 0;
+    }
 
-        packet.read(input);
-        
-        return packet;
+    /**
+     * Resume this socket over a new connection to the same server, after the
+     * old connection dropped. Returns once the server has taken the
+     * connection over, and the frames it was missing have been sent again.
+     * 
+     * @param host The host name of the server to connect to.
+     * @param port The port to connect on.
+     * @throws IOException if the connection could not be made, or the server
+     * could not resume the socket.
+     */
+    public void resume(String host, int port) throws IOException
+    {
+        resume(Connect(host, port));
     }
 
     /**
-     * Creates an instance of a packet based on the index supplied.
+     * Resume this socket over a new connection.
      * 
-     * @param index The index representing which packet to create.
-     * @return {@link Packet} the packet that was created.
+     * @param connection The new connection to the same server.
+     * @throws IOException if the server could not resume the socket.
      */
-    protected Packet instancePacket(int index)
+    public void resume(java.net.Socket connection) throws IOException
     {
+        if (!isResumable())
+        {
+            throw new IllegalStateException("The socket is not resumable.");
+        }
+
         try
         {
-            if (packets.containsKey(index))
-            {
-                return (Packet)packets.get(index).newInstance();
-            }
+            socket.close();
         }
-        catch (NullPointerException ex)
+        catch (IOException ex)
         {
-            Logger.getLogger(Packet.class.getName()).log(
-                Level.SEVERE, "The index was: " + index, ex
-            );
         }
-        catch (InstantiationException ex)
+
+        SocketChannel channel = connection.getChannel();
+
+        boolean blocking = channel == null || channel.isBlocking();
+
+        write.lock();
+
+        try
         {
-            Logger.getLogger(Packet.class.getName()).log(
-                Level.SEVERE, null, ex
-            );
+            read.lock();
+
+            try
+            {
+                outbound.close();
+
+                if (!blocking)
+                {
+                    channel.configureBlocking(true);
+                }
+
+                open(connection);
+
+                resuming = true;
+
+                encode(new Control.Resume(Control.Resume.RESUME, peer, in[COUNT]), (byte)0, 0);
+
+                output.flush();
+
+                while (resuming)
+                {
+                    Packet packet = poll();
+
+                    if (packet != null)
+                    {
+                        packet.release();
+
+                        throw new IOException("A packet arrived before the resume was answered.");
+                    }
+
+                    if (resuming && fill() < 0)
+                    {
+                        throw new EOFException("The other side could not resume the socket.");
+                    }
+                }
+
+                if (!blocking)
+                {
+                    channel.configureBlocking(false);
+
+                    selectable = true;
+
+                    source = null;
+                }
+            }
+            finally
+            {
+                resuming = false;
+
+                read.unlock();
+            }
         }
-        catch (IllegalAccessException ex)
+        finally
         {
-            Logger.getLogger(Packet.class.getName()).log(
-                Level.SEVERE, null, ex
-            );
+            write.unlock();
         }
-        
-        return null;
+
+        adopted(null);
     }
-    
-    /*\**********************************************************************\*/
-    /*\                             Public Methods                           \*/
-    /*\**********************************************************************\*/
+
     /**
      * Register a Packet class with this socket.
      * @param c The class of the packet to register.
@@ -384,17 +2779,13 @@ public class Socket
     {
         try
         {
-            packets.put(((Packet)c.newInstance()).getPacketIndex(), c);
+            Supplier<Packet> factory = Registry.Factory(c);
+
+            packets.put(factory.get().getPacketIndex(), c, factory);
             
             return true;
         }
-        catch (InstantiationException ex)
-        {
-            Logger.getLogger(Socket.class.getName()).log(
-                Level.SEVERE, null, ex
-            );
-        }
-        catch (IllegalAccessException ex)
+        catch (ReflectiveOperationException ex)
         {
             Logger.getLogger(Socket.class.getName()).log(
                 Level.SEVERE, null, ex
@@ -404,26 +2795,96 @@ public class Socket
         return false;
     }
 
+    /**
+     * Register a packet factory with this socket.
+     * 
+     * The factory is called once to find the index of its packets.
+     * 
+     * @param factory The factory that creates the packet, such as
+     * <code>ChatPacket::new</code>.
+     * @return {@link boolean} true.
+     */
+    public boolean registerPacket(Supplier<? extends Packet> factory)
+    {
+        Packet packet = factory.get();
+
+        packet.release();
+
+        packets.put(packet.getPacketIndex(), packet.getClass(), factory);
+
+        return true;
+    }
+
     /**
      * Write a {@link Packet} to the socket.
      * 
+     * When several threads write at once, whichever thread holds the output
+     * encodes every waiting frame and flushes them together, so that the
+     * cost of a flush is shared. Frames are sent in the order they were
+     * written, and the packet has been flushed when this function returns.
+     * 
+     * The thread of a {@link Reactor} loop must never wait for a slow
+     * connection, since it receives for many sessions. When this is called
+     * from one, such as from a callback, the packet is handed to the
+     * socket's writer as with {@link writeAsync(Packet)}, and this returns
+     * without waiting for it to be flushed. If it can not be flushed, the
+     * connection fails as it would for any other write.
+     * 
      * @param packet the packet to write.
      * @throws IOException 
      */
     public void write(Packet packet) throws IOException
     {
-        synchronized(write)
+        if (Reactor.OnLoop())
         {
-            writeHead();
-            
-            writeIndex();
+            writeAsync(packet);
 
-            writePacket(packet);
-            
-            writeTail();
-            
-            output.flush();
+            return;
+        }
+
+        Write pending = new Write(packet, null);
+
+        queue(pending);
+
+        write.lock();
+
+        try
+        {
+            while (!pending.done)
+            {
+                combine();
+            }
+        }
+        finally
+        {
+            write.unlock();
         }
+
+        if (pending.failure instanceof IOException)
+        {
+            throw (IOException)pending.failure;
+        }
+
+        if (pending.failure instanceof RuntimeException)
+        {
+            throw (RuntimeException)pending.failure;
+        }
+    }
+
+    /**
+     * Write a {@link Packet} to the socket without waiting for it to be sent.
+     * 
+     * The packet is queued and encoded later by the socket's writer, along
+     * with any other packets waiting, so the packet must not be changed until
+     * the future completes. Packets are sent in the order they were written.
+     * 
+     * @param packet the packet to write.
+     * @return {@link CompletableFuture} a future that completes once the
+     * packet has been flushed, or completes exceptionally if it could not be.
+     */
+    public CompletableFuture<Void> writeAsync(Packet packet)
+    {
+        return writeAsync(packet, (byte)0, 0);
     }
 
     /**
@@ -460,38 +2921,44 @@ public class Socket
     /**
      * Read a {@link Packet} from the socket.
      * 
+     * Bytes are received in large reads into a buffer, and the packet is
+     * decoded from memory once its whole frame has arrived.
+     * 
      * @return {@link Packet} the packet that was read.
      * @throws IOException 
      */
     public Packet read() throws IOException
     {
-        synchronized(read)
+        if (isSelectable())
         {
-            if (!readHead())
-            {
-                Logger.getLogger(Socket.class.getName()).log(
-                    Level.SEVERE, "readHead() failed."
-                );
-            }
+            throw new IllegalBlockingModeException();
+        }
 
-            if (!readIndex())
-            {
-                Logger.getLogger(Socket.class.getName()).log(
-                    Level.SEVERE, "readIndex() failed."
-                );
-            }
+        read.lock();
 
-            Packet packet = readPacket();
+        try
+        {
+            Packet packet;
 
-            if (!readTail())
+            while ((packet = poll()) == null)
             {
-                Logger.getLogger(Socket.class.getName()).log(
-                    Level.SEVERE, "readTail() failed."
-                );
+                if (successor != null)
+                {
+                    throw new SocketException("The connection was handed over to a resumed socket.");
+                }
+
+                if (fill() < 0)
+                {
+                    throw new EOFException();
+                }
             }
             
             return packet;
         }
+        finally
+        {
+            read.unlock();
+        }
     }
 
     /**
@@ -501,7 +2968,23 @@ public class Socket
      */
     public void close() throws IOException
     {
+        if (token != 0)
+        {
+            Resumable.remove(token, this);
+        }
+
         socket.close();
+
+        write.lock();
+
+        try
+        {
+            outbound.close();
+        }
+        finally
+        {
+            write.unlock();
+        }
     }
     
     /**
@@ -548,6 +3031,43 @@ public class Socket
     /*\**********************************************************************\*/
     /*\                             Classes                                  \*/
     /*\**********************************************************************\*/
-    
-    
+    /**
+     * A packet waiting to be written, and the outcome once it has been.
+     */
+    private static class Write
+    {
+        private final Packet packet;
+
+        private final CompletableFuture<Void> future;
+
+        private volatile boolean done = false;
+
+        private Exception failure;
+
+        /**
+         * If the frame was kept for resending, so that it is not lost if the
+         * flush fails.
+         */
+        private boolean kept = false;
+
+        /**
+         * The number of bytes the write is counted as while it is queued,
+         * which is an estimate until it has been encoded.
+         */
+        private int size;
+
+        /**
+         * {@link CALL} or {@link REPLY} if the packet is part of a call.
+         */
+        private byte kind = 0;
+
+        private int call = 0;
+
+        private Write(Packet packet, CompletableFuture<Void> future)
+        {
+            this.packet = packet;
+
+            this.future = future;
+        }
+    }
 }
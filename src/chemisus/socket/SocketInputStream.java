@@ -6,8 +6,12 @@
 package chemisus.socket;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 
 
 /**
@@ -41,9 +45,66 @@ public class SocketInputStream
     /*\**********************************************************************\*/
     private final DataInputStream input;
 
+    /**
+     * The stream that the data stream reads from.
+     */
+    private final InputStream source;
+
+    /**
+     * If sizes were written as varints rather than in four bytes.
+     */
+    private boolean compact = false;
+
+    /**
+     * The largest byte array or string that will be read.
+     */
+    private int limit = Integer.MAX_VALUE;
+
     /*\**********************************************************************\*/
     /*\                             Properties                               \*/
     /*\**********************************************************************\*/
+    /**
+     * Get if the sizes of byte arrays and strings are read as varints, which
+     * is the case while a {@link Socket} reads a compact frame.
+     * 
+     * @return {@link boolean} true if sizes are compact.
+     */
+    public boolean isCompact()
+    {
+        return compact;
+    }
+
+    /**
+     * Set if the sizes of byte arrays and strings are read as varints.
+     * 
+     * @param compact true if sizes are compact.
+     */
+    void setCompact(boolean compact)
+    {
+        this.compact = compact;
+    }
+
+    /**
+     * Get the largest byte array or string that will be read.
+     * 
+     * @return {@link int} the number of bytes.
+     */
+    public int getMaxPayload()
+    {
+        return limit;
+    }
+
+    /**
+     * Set the largest byte array or string that will be read. A larger size
+     * read from the stream fails before anything is allocated for it.
+     * 
+     * @param limit The number of bytes.
+     */
+    public void setMaxPayload(int limit)
+    {
+        this.limit = limit;
+    }
+
     /**
      * Get the amount of bytes available in the stream for reading.
      * 
@@ -84,12 +145,36 @@ public class SocketInputStream
     public SocketInputStream(InputStream input)
     {
         this.input = new DataInputStream(input);
+
+        this.source = input;
     }
 
     /*\**********************************************************************\*/
     /*\                             Private Methods                          \*/
     /*\**********************************************************************\*/
+    /**
+     * Reads the size of a byte array or string, which is a varint if the
+     * stream is compact.
+     * 
+     * @return {@link int} the size.
+     * @throws IOException 
+     */
+    private int readSize() throws IOException
+    {
+        int size = compact ? readUnsignedVarIntValue() : readIntValue();
+
+        if (size < 0 || size > limit)
+        {
+            throw new IOException("Invalid size " + size + ", the limit is " + limit + ".");
+        }
 
+        if (source instanceof BufferInputStream && size > source.available())
+        {
+            throw new EOFException();
+        }
+
+        return size;
+    }
 
     /*\**********************************************************************\*/
     /*\                             Protected Methods                        \*/
@@ -116,8 +201,21 @@ public class SocketInputStream
      * 
      * @return {@link Boolean} the value of the Boolean read from the stream.
      * @throws IOException 
+     * @deprecated Use {@link readBooleanValue()}, which does not box the value.
      */
+    @Deprecated
     public Boolean readBoolean() throws IOException
+    {
+        return readBooleanValue();
+    }
+
+    /**
+     * Reads a {@link boolean} from the stream.
+     * 
+     * @return {@link boolean} the value of the boolean read from the stream.
+     * @throws IOException 
+     */
+    public boolean readBooleanValue() throws IOException
     {
         return input.readBoolean();
     }
@@ -127,8 +225,21 @@ public class SocketInputStream
      * 
      * @return {@link Byte} the value of the Byte read from the stream.
      * @throws IOException 
+     * @deprecated Use {@link readByteValue()}, which does not box the value.
      */
+    @Deprecated
     public Byte readByte() throws IOException
+    {
+        return readByteValue();
+    }
+
+    /**
+     * Reads a {@link byte} from the stream.
+     * 
+     * @return {@link byte} the value of the byte read from the stream.
+     * @throws IOException 
+     */
+    public byte readByteValue() throws IOException
     {
         return input.readByte();
     }
@@ -139,26 +250,111 @@ public class SocketInputStream
      * Since {@link SocketOutputStream} will send the size of the byte array 
      * before the bytes themselves, this function will automatically read in
      * that size <i>n</i> first, then read in the following <i>n</i> bytes.
+     * A size above {@link getMaxPayload()}, or one larger than the rest of a
+     * frame, fails before the array is allocated.
      * 
      * @return {@link byte[]} the value of the byte[] read from the stream.
      * @throws IOException 
      */
     public byte[] readBytes() throws IOException
     {
-        byte[] bytes = new byte[readInt()];
+        byte[] bytes = new byte[readSize()];
 
         input.readFully(bytes, 0, bytes.length);
         
         return bytes;
     }
+
+    /**
+     * Reads a {@link byte[]} from the stream into an array, without
+     * allocating one.
+     * 
+     * @param bytes The array to read into.
+     * @param offset The index in the array to start at.
+     * @return {@link int} the number of bytes read.
+     * @throws IOException if the bytes do not fit in the array.
+     */
+    public int readBytes(byte[] bytes, int offset) throws IOException
+    {
+        int size = readSize();
+
+        if (size > bytes.length - offset)
+        {
+            throw new IOException(size + " bytes do not fit in the array.");
+        }
+
+        input.readFully(bytes, offset, size);
+
+        return size;
+    }
+
+    /**
+     * Reads a {@link byte[]} from the stream into a buffer, such as one from
+     * {@link BufferPool}, without allocating an array. The bytes are put at
+     * the position of the buffer, which is moved past them.
+     * 
+     * @param buffer The buffer to read into.
+     * @return {@link int} the number of bytes read.
+     * @throws IOException if the bytes do not fit in the buffer.
+     */
+    public int readBytes(ByteBuffer buffer) throws IOException
+    {
+        int size = readSize();
+
+        if (size > buffer.remaining())
+        {
+            throw new IOException(size + " bytes do not fit in the buffer.");
+        }
+
+        if (source instanceof BufferInputStream)
+        {
+            ((BufferInputStream)source).read(buffer, size);
+        }
+        else if (buffer.hasArray())
+        {
+            input.readFully(buffer.array(), buffer.arrayOffset() + buffer.position(), size);
+
+            buffer.position(buffer.position() + size);
+        }
+        else
+        {
+            byte[] chunk = new byte[Math.min(size, 8192)];
+
+            for (int remaining = size; remaining > 0; )
+            {
+                int n = Math.min(chunk.length, remaining);
+
+                input.readFully(chunk, 0, n);
+
+                buffer.put(chunk, 0, n);
+
+                remaining -= n;
+            }
+        }
+
+        return size;
+    }
     
     /**
      * Reads a {@link Character} from the stream.
      * 
      * @return {@link Character} the value of the Character read from the stream.
      * @throws IOException 
+     * @deprecated Use {@link readCharValue()}, which does not box the value.
      */
+    @Deprecated
     public Character readChar() throws IOException
+    {
+        return readCharValue();
+    }
+
+    /**
+     * Reads a {@link char} from the stream.
+     * 
+     * @return {@link char} the value of the char read from the stream.
+     * @throws IOException 
+     */
+    public char readCharValue() throws IOException
     {
         return input.readChar();
     }
@@ -168,19 +364,130 @@ public class SocketInputStream
      * 
      * @return {@link Double} the value of the Double read from the stream.
      * @throws IOException 
+     * @deprecated Use {@link readDoubleValue()}, which does not box the value.
      */
+    @Deprecated
     public Double readDouble() throws IOException
+    {
+        return readDoubleValue();
+    }
+
+    /**
+     * Reads a {@link double} from the stream.
+     * 
+     * @return {@link double} the value of the double read from the stream.
+     * @throws IOException 
+     */
+    public double readDoubleValue() throws IOException
     {
         return input.readDouble();
     }
     
+    /**
+     * Reads a region of a file from the stream into a file.
+     * 
+     * Since {@link SocketOutputStream} will send the size of the region
+     * before the region itself, this function will read in that size
+     * <i>n</i> first, then write the following <i>n</i> bytes to the file.
+     * When the stream reads from a {@link Socket}, the bytes are streamed
+     * into the file instead of being held in memory.
+     * 
+     * @param file The file to write to.
+     * @param position The position in the file to write at.
+     * @return {@link long} the number of bytes written to the file.
+     * @throws IOException 
+     */
+    public long readFile(FileChannel file, long position) throws IOException
+    {
+        long count = readFileSize();
+
+        readFile(file, position, count);
+
+        return count;
+    }
+
+    /**
+     * Reads the size of a region of a file, which is followed by the region
+     * itself.
+     * 
+     * When the stream reads from a {@link Socket} that can not stream the
+     * region, this throws {@link EOFException} until the whole region has
+     * been received, so that nothing needs to be opened for it before then.
+     * 
+     * @return {@link long} the number of bytes in the region.
+     * @throws IOException 
+     */
+    public long readFileSize() throws IOException
+    {
+        long count = readLongValue();
+
+        if (source instanceof BufferInputStream)
+        {
+            ((BufferInputStream)source).expectRegion(count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Reads a region of a file, whose size has already been read with
+     * {@link readFileSize()}, into a file.
+     * 
+     * @param file The file to write to.
+     * @param position The position in the file to write at.
+     * @param count The number of bytes in the region.
+     * @throws IOException 
+     */
+    public void readFile(FileChannel file, long position, long count) throws IOException
+    {
+        if (source instanceof BufferInputStream)
+        {
+            ((BufferInputStream)source).transfer(file, position, count);
+
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(count, 8192));
+
+        for (long remaining = count; remaining > 0; )
+        {
+            int n = (int)Math.min(buffer.capacity(), remaining);
+
+            input.readFully(buffer.array(), 0, n);
+
+            buffer.clear();
+
+            buffer.limit(n);
+
+            while (buffer.hasRemaining())
+            {
+                position += file.write(buffer, position);
+            }
+
+            remaining -= n;
+        }
+    }
+
     /**
      * Reads a {@link Float} from the stream.
      * 
      * @return {@link Float} the value of the Float read from the stream.
      * @throws IOException 
+     * @deprecated Use {@link readFloatValue()}, which does not box the value.
      */
+    @Deprecated
     public Float readFloat() throws IOException
+    {
+        return readFloatValue();
+    }
+
+    /**
+     * Reads a {@link float} from the stream.
+     * 
+     * @return {@link float} the value of the float read from the stream.
+     * @throws IOException 
+     */
+    public float readFloatValue() throws IOException
     {
         return input.readFloat();
     }
@@ -190,8 +497,21 @@ public class SocketInputStream
      * 
      * @return {@link Integer} the value of the Integer read from the stream.
      * @throws IOException 
+     * @deprecated Use {@link readIntValue()}, which does not box the value.
      */
+    @Deprecated
     public Integer readInt() throws IOException
+    {
+        return readIntValue();
+    }
+
+    /**
+     * Reads a {@link int} from the stream.
+     * 
+     * @return {@link int} the value of the int read from the stream.
+     * @throws IOException 
+     */
+    public int readIntValue() throws IOException
     {
         return input.readInt();
     }
@@ -201,8 +521,21 @@ public class SocketInputStream
      * 
      * @return {@link Long} the value of the Long read from the stream.
      * @throws IOException 
+     * @deprecated Use {@link readLongValue()}, which does not box the value.
      */
+    @Deprecated
     public Long readLong() throws IOException
+    {
+        return readLongValue();
+    }
+
+    /**
+     * Reads a {@link long} from the stream.
+     * 
+     * @return {@link long} the value of the long read from the stream.
+     * @throws IOException 
+     */
+    public long readLongValue() throws IOException
     {
         return input.readLong();
     }
@@ -212,8 +545,21 @@ public class SocketInputStream
      * 
      * @return {@link Short} the value of the Short read from the stream.
      * @throws IOException 
+     * @deprecated Use {@link readShortValue()}, which does not box the value.
      */
+    @Deprecated
     public Short readShort() throws IOException
+    {
+        return readShortValue();
+    }
+
+    /**
+     * Reads a {@link short} from the stream.
+     * 
+     * @return {@link short} the value of the short read from the stream.
+     * @throws IOException 
+     */
+    public short readShortValue() throws IOException
     {
         return input.readShort();
     }
@@ -221,17 +567,99 @@ public class SocketInputStream
     /**
      * Reads a {@link String} from the stream.
      * 
-     * This function returns a new string by calling
-     * {@link new String(readBytes())}. Since {@link SocketOutputStream}
+     * The string is decoded from UTF-8. Since {@link SocketOutputStream}
      * will send the size of the string before the string itself, this function
-     * will automatically read in that size first.
+     * will automatically read in that size first. When the stream reads from
+     * a {@link Socket}, the string is decoded straight from the receive
+     * buffer.
      * 
      * @return {@link String} the value of the String read from the stream.
      * @throws IOException 
      */
     public String readString() throws IOException
     {
-        return new String(readBytes());
+        if (source instanceof BufferInputStream)
+        {
+            return ((BufferInputStream)source).readUtf8(readSize());
+        }
+
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a {@link int} that was written as an unsigned LEB128 varint.
+     * 
+     * @return {@link int} the value of the int read from the stream.
+     * @throws IOException 
+     */
+    public int readUnsignedVarIntValue() throws IOException
+    {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            byte b = input.readByte();
+
+            value |= (b & 0x7f) << shift;
+
+            if (b >= 0)
+            {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed varint.");
+    }
+
+    /**
+     * Reads a {@link long} that was written as an unsigned LEB128 varint.
+     * 
+     * @return {@link long} the value of the long read from the stream.
+     * @throws IOException 
+     */
+    public long readUnsignedVarLongValue() throws IOException
+    {
+        long value = 0;
+
+        for (int shift = 0; shift < 70; shift += 7)
+        {
+            byte b = input.readByte();
+
+            value |= (long)(b & 0x7f) << shift;
+
+            if (b >= 0)
+            {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed varint.");
+    }
+
+    /**
+     * Reads a {@link int} that was written as a zigzag varint.
+     * 
+     * @return {@link int} the value of the int read from the stream.
+     * @throws IOException 
+     */
+    public int readVarIntValue() throws IOException
+    {
+        int value = readUnsignedVarIntValue();
+
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a {@link long} that was written as a zigzag varint.
+     * 
+     * @return {@link long} the value of the long read from the stream.
+     * @throws IOException 
+     */
+    public long readVarLongValue() throws IOException
+    {
+        long value = readUnsignedVarLongValue();
+
+        return (value >>> 1) ^ -(value & 1);
     }
     
     /**
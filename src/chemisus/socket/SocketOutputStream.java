@@ -6,8 +6,12 @@
 package chemisus.socket;
 
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 
 
 /**
@@ -41,6 +45,16 @@ public class SocketOutputStream
     /*\                             Fields                                   \*/
     /*\**********************************************************************\*/
     private final DataOutputStream output;
+
+    /**
+     * The stream that the data stream writes to.
+     */
+    private final OutputStream sink;
+
+    /**
+     * If sizes are written as varints rather than in four bytes.
+     */
+    private boolean compact = false;
     
     /*\**********************************************************************\*/
     /*\                             Properties                               \*/
@@ -50,17 +64,58 @@ public class SocketOutputStream
         return output.size();
     }
 
+    /**
+     * Get if the sizes of byte arrays and strings are written as varints,
+     * which is the case while a {@link Socket} writes a compact frame.
+     * 
+     * @return {@link boolean} true if sizes are compact.
+     */
+    public boolean isCompact()
+    {
+        return compact;
+    }
+
+    /**
+     * Set if the sizes of byte arrays and strings are written as varints.
+     * 
+     * @param compact true if sizes are compact.
+     */
+    void setCompact(boolean compact)
+    {
+        this.compact = compact;
+    }
+
     /*\**********************************************************************\*/
     /*\                             Constructors                             \*/
     /*\**********************************************************************\*/
     public SocketOutputStream(OutputStream output)
     {
         this.output = new DataOutputStream(output);
+
+        this.sink = output;
     }
 
     /*\**********************************************************************\*/
     /*\                             Private Methods                          \*/
     /*\**********************************************************************\*/
+    /**
+     * Writes the size of a byte array or string, as a varint if the stream
+     * is compact.
+     * 
+     * @param size The size.
+     * @throws IOException 
+     */
+    private void writeSize(int size) throws IOException
+    {
+        if (compact)
+        {
+            writeUnsignedVarInt(size);
+        }
+        else
+        {
+            writeInt(size);
+        }
+    }
 
 
     /*\**********************************************************************\*/
@@ -90,8 +145,9 @@ public class SocketOutputStream
      * Writes several bytes to the stream.
      * 
      * This function calls {@link writeInt(value.length)} before writing
-     * the bytes to the stream. This extra {@link int} is automatically read by
-     * the {@link SocketInputStream.readInt()} on the other end of the
+     * the bytes to the stream, or {@link writeUnsignedVarInt(int)} if the
+     * stream is compact. This extra size is automatically read by
+     * {@link SocketInputStream.readBytes()} on the other end of the
      * stream.
      * 
      * @param value The array of bytes to write from.
@@ -102,7 +158,7 @@ public class SocketOutputStream
     @Override
     public void write(byte[] value, int offset, int length) throws IOException
     {
-        writeInt(value.length);
+        writeSize(value.length);
         
         output.write(value, 0, value.length);
     }
@@ -126,8 +182,22 @@ public class SocketOutputStream
      * 
      * @param value The {@link Boolean} value to write to the stream.
      * @throws IOException 
+     * @deprecated Use {@link writeBoolean(boolean)}, which does not box the
+     * value.
      */
+    @Deprecated
     public void writeBoolean(Boolean value) throws IOException
+    {
+        writeBoolean(value.booleanValue());
+    }
+
+    /**
+     * Writes a {@link boolean} to the stream.
+     * 
+     * @param value The {@link boolean} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeBoolean(boolean value) throws IOException
     {
         output.writeBoolean(value);
     }
@@ -137,8 +207,22 @@ public class SocketOutputStream
      * 
      * @param value The {@link Byte} value to write to the stream.
      * @throws IOException 
+     * @deprecated Use {@link writeByte(byte)}, which does not box the
+     * value.
      */
+    @Deprecated
     public void writeByte(Byte value) throws IOException
+    {
+        writeByte(value.byteValue());
+    }
+
+    /**
+     * Writes a {@link byte} to the stream.
+     * 
+     * @param value The {@link byte} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeByte(byte value) throws IOException
     {
         output.writeByte(value);
     }
@@ -159,14 +243,44 @@ public class SocketOutputStream
     {
         write(value);
     }
+
+    /**
+     * Writes part of a {@link byte[]} to the stream, to be read as a whole
+     * array by {@link SocketInputStream#readBytes()}.
+     * 
+     * @param value The array of bytes to write from.
+     * @param offset The index of the byte in the array to start from.
+     * @param length The number of bytes to write to the stream.
+     * @throws IOException 
+     */
+    public void writeBytes(byte[] value, int offset, int length) throws IOException
+    {
+        writeSize(length);
+
+        output.write(value, offset, length);
+    }
     
     /**
      * Writes a {@link Character} to the stream.
      * 
      * @param value The {@link Character} value to write to the stream.
      * @throws IOException 
+     * @deprecated Use {@link writeChar(char)}, which does not box the
+     * value.
      */
+    @Deprecated
     public void writeChar(Character value) throws IOException
+    {
+        writeChar(value.charValue());
+    }
+
+    /**
+     * Writes a {@link char} to the stream.
+     * 
+     * @param value The {@link char} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeChar(char value) throws IOException
     {
         output.writeChar(value);
     }
@@ -176,19 +290,96 @@ public class SocketOutputStream
      * 
      * @param value The {@link Double} value to write to the stream.
      * @throws IOException 
+     * @deprecated Use {@link writeDouble(double)}, which does not box the
+     * value.
      */
+    @Deprecated
     public void writeDouble(Double value) throws IOException
+    {
+        writeDouble(value.doubleValue());
+    }
+
+    /**
+     * Writes a {@link double} to the stream.
+     * 
+     * @param value The {@link double} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeDouble(double value) throws IOException
     {
         output.writeDouble(value);
     }
 
+    /**
+     * Writes a region of a file to the stream.
+     * 
+     * The size of the region is written first, and will be read by
+     * {@link SocketInputStream#readFile(FileChannel, long)}. When the stream
+     * writes to a {@link Socket}, the region is not copied into memory, but
+     * is sent with {@link FileChannel#transferTo} when the frame is flushed,
+     * so the file must stay open until the write has completed. The region
+     * must be the last thing a packet writes.
+     * 
+     * @param file The file to send from.
+     * @param position The position in the file to start at.
+     * @param count The number of bytes to send.
+     * @throws IOException 
+     */
+    public void writeFile(FileChannel file, long position, long count) throws IOException
+    {
+        writeLong(count);
+
+        if (sink instanceof BufferOutputStream)
+        {
+            ((BufferOutputStream)sink).transfer(file, position, count);
+
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(count, 8192));
+
+        while (count > 0)
+        {
+            buffer.clear();
+
+            buffer.limit((int)Math.min(buffer.capacity(), count));
+
+            int n = file.read(buffer, position);
+
+            if (n < 0)
+            {
+                throw new EOFException("The file ended before its region.");
+            }
+
+            output.write(buffer.array(), 0, n);
+
+            position += n;
+
+            count -= n;
+        }
+    }
+
     /**
      * Writes a {@link Float} to the stream.
      * 
      * @param value The {@link Float} value to write to the stream.
      * @throws IOException 
+     * @deprecated Use {@link writeFloat(float)}, which does not box the
+     * value.
      */
+    @Deprecated
     public void writeFloat(Float value) throws IOException
+    {
+        writeFloat(value.floatValue());
+    }
+
+    /**
+     * Writes a {@link float} to the stream.
+     * 
+     * @param value The {@link float} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeFloat(float value) throws IOException
     {
         output.writeFloat(value);
     }
@@ -198,8 +389,22 @@ public class SocketOutputStream
      * 
      * @param value The {@link Integer} value to write to the stream.
      * @throws IOException 
+     * @deprecated Use {@link writeInt(int)}, which does not box the
+     * value.
      */
+    @Deprecated
     public void writeInt(Integer value) throws IOException
+    {
+        writeInt(value.intValue());
+    }
+
+    /**
+     * Writes a {@link int} to the stream.
+     * 
+     * @param value The {@link int} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeInt(int value) throws IOException
     {
         output.writeInt(value);
     }
@@ -209,8 +414,22 @@ public class SocketOutputStream
      * 
      * @param value The {@link Long} value to write to the stream.
      * @throws IOException 
+     * @deprecated Use {@link writeLong(long)}, which does not box the
+     * value.
      */
+    @Deprecated
     public void writeLong(Long value) throws IOException
+    {
+        writeLong(value.longValue());
+    }
+
+    /**
+     * Writes a {@link long} to the stream.
+     * 
+     * @param value The {@link long} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeLong(long value) throws IOException
     {
         output.writeLong(value);
     }
@@ -220,8 +439,22 @@ public class SocketOutputStream
      * 
      * @param value The {@link Short} value to write to the stream.
      * @throws IOException 
+     * @deprecated Use {@link writeShort(short)}, which does not box the
+     * value.
      */
+    @Deprecated
     public void writeShort(Short value) throws IOException
+    {
+        writeShort(value.shortValue());
+    }
+
+    /**
+     * Writes a {@link short} to the stream.
+     * 
+     * @param value The {@link short} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeShort(short value) throws IOException
     {
         output.writeShort(value);
     }
@@ -229,18 +462,89 @@ public class SocketOutputStream
     /**
      * Writes a {@link String} to the stream.
      * 
-     * This function calls {@link writeBytes(value.getBytes())}, which
-     * means that the size of the string will be written to the stream before
-     * the actual bytes of the string. This extra {@link int} will be
-     * automatically read by the {@link SocketInputStream} when using
-     * {@link readString()}.
+     * The string is written in UTF-8, after its size in bytes, just as
+     * {@link writeBytes(byte[])} would write its bytes. This extra size will
+     * be automatically read by the {@link SocketInputStream} when using
+     * {@link readString()}. When the stream writes to a {@link Socket}, the
+     * string is encoded straight into the send buffer.
      * 
      * @param value The {@link String} value to write to the stream.
      * @throws IOException 
      */
     public void writeString(String value) throws IOException
     {
-        writeBytes(value.getBytes());
+        if (sink instanceof BufferOutputStream)
+        {
+            writeSize(BufferOutputStream.Utf8Length(value));
+
+            ((BufferOutputStream)sink).writeUtf8(value);
+
+            return;
+        }
+
+        writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a {@link int} to the stream as an unsigned LEB128 varint, seven
+     * bits to a byte, so that small values take a single byte. Negative
+     * values take five bytes.
+     * 
+     * @param value The {@link int} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeUnsignedVarInt(int value) throws IOException
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            output.writeByte((value & 0x7f) | 0x80);
+
+            value >>>= 7;
+        }
+
+        output.writeByte(value);
+    }
+
+    /**
+     * Writes a {@link long} to the stream as an unsigned LEB128 varint.
+     * Negative values take ten bytes.
+     * 
+     * @param value The {@link long} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeUnsignedVarLong(long value) throws IOException
+    {
+        while ((value & ~0x7fL) != 0)
+        {
+            output.writeByte((int)(value & 0x7f) | 0x80);
+
+            value >>>= 7;
+        }
+
+        output.writeByte((int)value);
+    }
+
+    /**
+     * Writes a {@link int} to the stream as a zigzag varint, which keeps
+     * values close to zero short whether they are positive or negative.
+     * 
+     * @param value The {@link int} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeVarInt(int value) throws IOException
+    {
+        writeUnsignedVarInt((value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Writes a {@link long} to the stream as a zigzag varint.
+     * 
+     * @param value The {@link long} value to write to the stream.
+     * @throws IOException 
+     */
+    public void writeVarLong(long value) throws IOException
+    {
+        writeUnsignedVarLong((value << 1) ^ (value >> 63));
     }
     
     /**
@@ -0,0 +1,107 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * {@link Threads} creates the {@link ThreadFactory}s used by {@link Server}
+ * and {@link Session} to run their accept and receive loops.
+ *
+ * <pre>
+ * Session.SetThreadFactory(Threads.Virtual("session"));
+ * </pre>
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public final class Threads
+{
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Creates a factory of platform threads. Each thread will be named
+     * `name-N`, where N counts up from 0.
+     *
+     * @param name The prefix of the thread names.
+     * @return {@link ThreadFactory} the factory.
+     */
+    public static ThreadFactory Platform(String name)
+    {
+        return Platform(name, false);
+    }
+
+    /**
+     * Creates a factory of platform threads. Each thread will be named
+     * `name-N`, where N counts up from 0.
+     *
+     * @param name The prefix of the thread names.
+     * @param daemon If the threads should not keep the JVM running.
+     * @return {@link ThreadFactory} the factory.
+     */
+    public static ThreadFactory Platform(final String name, final boolean daemon)
+    {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name+"-"+count.getAndIncrement());
+
+                thread.setDaemon(daemon);
+
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Creates a factory of virtual threads. Each thread will be named
+     * `name-N`, where N counts up from 0.
+     *
+     * Virtual threads let the blocking receive loops scale to very large
+     * numbers of connections. If the running JVM does not support virtual
+     * threads, a factory of platform threads is returned instead.
+     *
+     * @param name The prefix of the thread names.
+     * @return {@link ThreadFactory} the factory.
+     */
+    public static ThreadFactory Virtual(String name)
+    {
+        try
+        {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+            Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            virtual = builder.getMethod("name", String.class, long.class)
+                .invoke(virtual, name+"-", 0L);
+
+            return (ThreadFactory)builder.getMethod("factory").invoke(virtual);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            Logger.getLogger(Threads.class.getName()).log(
+                Level.WARNING, "Virtual threads are not supported, using platform threads."
+            );
+        }
+
+        return Platform(name);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Constructors                             \*/
+    /*\**********************************************************************\*/
+    private Threads()
+    {
+    }
+}
@@ -0,0 +1,415 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * {@link Topics} keeps which {@link Session}s are subscribed to which
+ * topics, so that a packet published to a topic is only sent to the sessions
+ * that want it.
+ *
+ * Topics are made of levels separated by dots, such as
+ * <code>prices.nasdaq.aapl</code>. A subscription is a topic, or a pattern
+ * where a level of <code>*</code> matches any one level, and a last level of
+ * <code>#</code> matches any number of levels, even none. So
+ * <code>prices.*.aapl</code> matches <code>prices.nasdaq.aapl</code>, and
+ * <code>prices.#</code> matches <code>prices</code> and every topic under
+ * it.
+ *
+ * The subscriptions are kept in a tree with a node for each level, so that
+ * matching a topic only visits the levels of the topic and of the wildcards
+ * along the way, however many subscriptions there are. Matching does not
+ * lock, and may run while subscriptions change.
+ *
+ * <pre>
+ * server.getTopics().attach(session);
+ * server.getTopics().subscribe(session, "prices.nasdaq.*");
+ * server.publish("prices.nasdaq.aapl", new PricePacket(price));
+ * </pre>
+ *
+ * A session that is attached can subscribe itself, with
+ * {@link Session#subscribe(String)} on the other side, once one of the sides
+ * has called {@link Socket#negotiate()}. A session's subscriptions end when
+ * it stops.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public final class Topics
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    /**
+     * Separates the levels of a topic.
+     */
+    public static final char SEPARATOR = '.';
+
+    /**
+     * A level that matches any one level.
+     */
+    public static final String ONE = "*";
+
+    /**
+     * A last level that matches any number of levels.
+     */
+    public static final String ANY = "#";
+
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Splits a topic into its levels.
+     *
+     * @param topic The topic.
+     * @return {@link String[]} the levels.
+     */
+    private static String[] Split(String topic)
+    {
+        ArrayList<String> levels = new ArrayList<String>();
+
+        int start = 0;
+
+        for (int i = 0; i < topic.length(); i++)
+        {
+            if (topic.charAt(i) == SEPARATOR)
+            {
+                levels.add(topic.substring(start, i));
+
+                start = i + 1;
+            }
+        }
+
+        levels.add(topic.substring(start));
+
+        return levels.toArray(new String[levels.size()]);
+    }
+
+    /**
+     * Splits a subscription into its levels, checking that wildcards are
+     * only used as whole levels, and {@link ANY} only as the last.
+     *
+     * @param pattern The topic or pattern.
+     * @return {@link String[]} the levels.
+     * @throws IllegalArgumentException if the pattern is not valid.
+     */
+    static String[] Pattern(String pattern)
+    {
+        String[] levels = Split(pattern);
+
+        for (int i = 0; i < levels.length; i++)
+        {
+            String level = levels[i];
+
+            if (level.equals(ANY) ? i != levels.length - 1 : !level.equals(ONE) && (level.indexOf('*') >= 0 || level.indexOf('#') >= 0))
+            {
+                throw new IllegalArgumentException("The pattern is not valid: " + pattern);
+            }
+        }
+
+        return levels;
+    }
+
+    /**
+     * Splits a topic that is published to into its levels.
+     *
+     * @param topic The topic.
+     * @return {@link String[]} the levels.
+     * @throws IllegalArgumentException if the topic has wildcards.
+     */
+    static String[] Topic(String topic)
+    {
+        if (topic.indexOf('*') >= 0 || topic.indexOf('#') >= 0)
+        {
+            throw new IllegalArgumentException("A topic can not have wildcards: " + topic);
+        }
+
+        return Split(topic);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private final Node root = new Node();
+
+    /**
+     * The subscriptions of each session, to end them when it stops.
+     */
+    private final ConcurrentHashMap<Session, Set<String>> subscriptions = new ConcurrentHashMap<Session, Set<String>>();
+
+    /**
+     * Added to every session with subscriptions, to end them when it stops.
+     */
+    private final Session.Callback tracker = new Session.Handler() {
+        @Override
+        public void onStopped(Session session) {
+            unsubscribe(session);
+        }
+    };
+
+    /*\**********************************************************************\*/
+    /*\                             Properties                               \*/
+    /*\**********************************************************************\*/
+    /**
+     * Get the subscriptions of a session.
+     *
+     * @param session The session.
+     * @return {@link Set} the topics and patterns the session is subscribed
+     * to.
+     */
+    public synchronized Set<String> getSubscriptions(Session session)
+    {
+        Set<String> patterns = subscriptions.get(session);
+
+        return patterns == null
+            ? Collections.<String>emptySet()
+            : Collections.unmodifiableSet(new HashSet<String>(patterns));
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Adds the sessions subscribed to a topic, from a node down.
+     *
+     * @param node The node of the levels matched so far.
+     * @param levels The levels of the topic.
+     * @param index The level to match next.
+     * @param sessions The sessions found so far.
+     */
+    private static void match(Node node, String[] levels, int index, Set<Session> sessions)
+    {
+        Node any = node.children.get(ANY);
+
+        if (any != null)
+        {
+            sessions.addAll(any.sessions);
+        }
+
+        if (index == levels.length)
+        {
+            sessions.addAll(node.sessions);
+
+            return;
+        }
+
+        Node child = node.children.get(levels[index]);
+
+        if (child != null)
+        {
+            match(child, levels, index + 1, sessions);
+        }
+
+        Node one = node.children.get(ONE);
+
+        if (one != null)
+        {
+            match(one, levels, index + 1, sessions);
+        }
+    }
+
+    /**
+     * Removes a session from the node of a pattern, and removes the nodes
+     * that are left with no sessions and no children.
+     *
+     * @param session The session.
+     * @param levels The levels of the pattern.
+     */
+    private void remove(Session session, String[] levels)
+    {
+        Node[] path = new Node[levels.length + 1];
+
+        path[0] = root;
+
+        for (int i = 0; i < levels.length; i++)
+        {
+            path[i + 1] = path[i].children.get(levels[i]);
+
+            if (path[i + 1] == null)
+            {
+                return;
+            }
+        }
+
+        path[levels.length].sessions.remove(session);
+
+        for (int i = levels.length; i > 0; i--)
+        {
+            if (!path[i].sessions.isEmpty() || !path[i].children.isEmpty())
+            {
+                break;
+            }
+
+            path[i - 1].children.remove(levels[i - 1]);
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Let a session subscribe and unsubscribe itself, with
+     * {@link Session#subscribe(String)} on the other side.
+     *
+     * @param session The session.
+     */
+    public void attach(Session session)
+    {
+        session.setTopics(this);
+    }
+
+    /**
+     * Stop a session from subscribing itself, and end its subscriptions.
+     *
+     * @param session The session.
+     */
+    public void detach(Session session)
+    {
+        session.setTopics(null);
+
+        unsubscribe(session);
+    }
+
+    /**
+     * Subscribe a session to a topic or pattern.
+     *
+     * @param session The session.
+     * @param pattern The topic or pattern.
+     * @return {@link boolean} true if the session was not already subscribed
+     * to the pattern.
+     * @throws IllegalArgumentException if the pattern is not valid.
+     */
+    public synchronized boolean subscribe(Session session, String pattern)
+    {
+        String[] levels = Pattern(pattern);
+
+        Set<String> patterns = subscriptions.get(session);
+
+        if (patterns == null)
+        {
+            patterns = new HashSet<String>();
+
+            subscriptions.put(session, patterns);
+
+            session.addCallback(tracker);
+        }
+
+        if (!patterns.add(pattern))
+        {
+            return false;
+        }
+
+        Node node = root;
+
+        for (String level : levels)
+        {
+            Node child = node.children.get(level);
+
+            if (child == null)
+            {
+                child = new Node();
+
+                node.children.put(level, child);
+            }
+
+            node = child;
+        }
+
+        node.sessions.add(session);
+
+        return true;
+    }
+
+    /**
+     * Unsubscribe a session from a topic or pattern.
+     *
+     * @param session The session.
+     * @param pattern The topic or pattern, as it was subscribed to.
+     * @return {@link boolean} true if the session was subscribed to the
+     * pattern.
+     */
+    public synchronized boolean unsubscribe(Session session, String pattern)
+    {
+        Set<String> patterns = subscriptions.get(session);
+
+        if (patterns == null || !patterns.remove(pattern))
+        {
+            return false;
+        }
+
+        remove(session, Split(pattern));
+
+        if (patterns.isEmpty())
+        {
+            subscriptions.remove(session);
+
+            session.removeCallback(tracker);
+        }
+
+        return true;
+    }
+
+    /**
+     * End every subscription of a session.
+     *
+     * @param session The session.
+     */
+    public synchronized void unsubscribe(Session session)
+    {
+        Set<String> patterns = subscriptions.remove(session);
+
+        if (patterns == null)
+        {
+            return;
+        }
+
+        for (String pattern : patterns)
+        {
+            remove(session, Split(pattern));
+        }
+
+        session.removeCallback(tracker);
+    }
+
+    /**
+     * Find the sessions subscribed to a topic, by the topic itself or by a
+     * pattern that matches it. Each session is found once, however many of
+     * its subscriptions match.
+     *
+     * @param topic The topic, without wildcards.
+     * @return {@link Set} the sessions.
+     * @throws IllegalArgumentException if the topic has wildcards.
+     */
+    public Set<Session> match(String topic)
+    {
+        Set<Session> sessions = new HashSet<Session>();
+
+        match(root, Topic(topic), 0, sessions);
+
+        return sessions;
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Classes                                  \*/
+    /*\**********************************************************************\*/
+    /**
+     * A level of the tree, with the sessions subscribed to the levels that
+     * lead to it.
+     */
+    private static class Node
+    {
+        private final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+
+        private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    }
+}
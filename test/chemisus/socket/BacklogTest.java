@@ -0,0 +1,156 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.util.ArrayList;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests {@link Backlog}.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class BacklogTest
+{
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    private static byte[] Frame(long index)
+    {
+        return new byte[] {(byte)index};
+    }
+
+    private static void Add(Backlog backlog, long from, long to)
+    {
+        for (long i = from; i < to; i++)
+        {
+            backlog.add(i, Frame(i));
+        }
+    }
+
+    private static void AssertFrames(ArrayList<byte[]> frames, long from, long to)
+    {
+        assertNotNull(frames);
+
+        assertEquals(to - from, frames.size());
+
+        for (long i = from; i < to; i++)
+        {
+            assertArrayEquals(Frame(i), frames.get((int)(i - from)));
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    @Test
+    public void testFrom()
+    {
+        Backlog backlog = new Backlog(4, 0);
+
+        Add(backlog, 0, 3);
+
+        AssertFrames(backlog.from(0), 0, 3);
+
+        AssertFrames(backlog.from(2), 2, 3);
+
+        AssertFrames(backlog.from(3), 3, 3);
+
+        assertNull(backlog.from(4));
+    }
+
+    @Test
+    public void testWrapAround()
+    {
+        Backlog backlog = new Backlog(4, 0);
+
+        Add(backlog, 0, 10);
+
+        AssertFrames(backlog.from(6), 6, 10);
+
+        AssertFrames(backlog.from(8), 8, 10);
+
+        assertNull(backlog.from(5));
+
+        assertNull(backlog.from(0));
+    }
+
+    @Test
+    public void testStartsAtIndex()
+    {
+        Backlog backlog = new Backlog(3, 1000);
+
+        assertNull(backlog.from(999));
+
+        AssertFrames(backlog.from(1000), 1000, 1000);
+
+        Add(backlog, 1000, 1005);
+
+        AssertFrames(backlog.from(1002), 1002, 1005);
+
+        assertNull(backlog.from(1001));
+    }
+
+    @Test
+    public void testRelease()
+    {
+        Backlog backlog = new Backlog(4, 0);
+
+        Add(backlog, 0, 6);
+
+        backlog.release(4);
+
+        assertNull(backlog.from(3));
+
+        AssertFrames(backlog.from(4), 4, 6);
+
+        backlog.release(100);
+
+        AssertFrames(backlog.from(6), 6, 6);
+
+        assertNull(backlog.from(5));
+
+        Add(backlog, 6, 8);
+
+        AssertFrames(backlog.from(6), 6, 8);
+    }
+
+    @Test
+    public void testGap()
+    {
+        Backlog backlog = new Backlog(4, 0);
+
+        Add(backlog, 0, 2);
+
+        backlog.add(5, Frame(5));
+
+        assertNull(backlog.from(0));
+
+        AssertFrames(backlog.from(5), 5, 6);
+    }
+
+    @Test
+    public void testFrameNotKept()
+    {
+        Backlog backlog = new Backlog(4, 0);
+
+        Add(backlog, 0, 2);
+
+        backlog.add(2, null);
+
+        Add(backlog, 3, 4);
+
+        assertNull(backlog.from(0));
+
+        assertNull(backlog.from(2));
+
+        AssertFrames(backlog.from(3), 3, 4);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests {@link BufferPool}.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class BufferPoolTest
+{
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    @Test
+    public void testSizeClasses()
+    {
+        int[][] cases = {
+            {0, 4096},
+            {1, 4096},
+            {4096, 4096},
+            {4097, 16384},
+            {16384, 16384},
+            {16385, 65536},
+            {65536, 65536},
+            {1 << 20, 65536},
+        };
+
+        for (int[] c : cases)
+        {
+            ByteBuffer buffer = BufferPool.Acquire(c[0]);
+
+            assertEquals("size " + c[0], c[1], buffer.capacity());
+
+            assertTrue(buffer.isDirect());
+
+            BufferPool.Release(buffer);
+        }
+    }
+
+    @Test
+    public void testReleasedBuffersAreCleared()
+    {
+        ByteBuffer buffer = BufferPool.Acquire(16384);
+
+        buffer.putLong(42);
+
+        buffer.flip();
+
+        BufferPool.Release(buffer);
+
+        for (int i = 0; i < 512; i++)
+        {
+            ByteBuffer next = BufferPool.Acquire(16384);
+
+            assertEquals(0, next.position());
+
+            assertEquals(next.capacity(), next.limit());
+
+            if (next == buffer)
+            {
+                return;
+            }
+        }
+
+        fail("The released buffer was not reused.");
+    }
+
+    @Test
+    public void testForeignBuffersAreIgnored()
+    {
+        ByteBuffer foreign = ByteBuffer.allocateDirect(100);
+
+        BufferPool.Release(foreign);
+
+        for (int i = 0; i < 512; i++)
+        {
+            assertNotSame(foreign, BufferPool.Acquire(1));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.util.function.Supplier;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests {@link Registry}.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class RegistryTest
+{
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    @Test
+    public void testFactoryCreatesPackets() throws Exception
+    {
+        Supplier<Packet> factory = Registry.Factory(Open.class);
+
+        Packet first = factory.get();
+
+        Packet second = factory.get();
+
+        assertTrue(first instanceof Open);
+
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void testFactoryOfPrivateConstructor() throws Exception
+    {
+        Supplier<Packet> factory = Registry.Factory(Hidden.class);
+
+        assertTrue(factory.get() instanceof Hidden);
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void testFactoryOfOtherClass() throws Exception
+    {
+        Registry.Factory(String.class);
+    }
+
+    @Test(expected = NoSuchMethodException.class)
+    public void testFactoryWithoutConstructor() throws Exception
+    {
+        Registry.Factory(Sized.class);
+    }
+
+    @Test
+    public void testIndexes()
+    {
+        Registry registry = new Registry();
+
+        int[] indexes = {0, 1, 7, 65535, 65536, 1 << 30, -1, -65535, -65536, Integer.MIN_VALUE};
+
+        for (int index : indexes)
+        {
+            registry.put(index, Open.class, new Factory(index));
+        }
+
+        for (int index : indexes)
+        {
+            assertTrue(registry.contains(index));
+
+            assertEquals(index, ((Factory)registry.get(index)).index);
+        }
+
+        assertNull(registry.get(2));
+
+        assertNull(registry.get(-2));
+
+        assertNull(registry.get(65537));
+
+        assertNull(registry.get(-65537));
+
+        assertFalse(registry.contains(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testAdd()
+    {
+        Registry registry = new Registry();
+
+        assertTrue(registry.add(1, Open.class, new Factory(1)));
+
+        assertFalse(registry.add(1, Hidden.class, new Factory(2)));
+
+        assertFalse(registry.add(2, Open.class, new Factory(3)));
+
+        assertTrue(registry.add(2, Hidden.class, new Factory(4)));
+
+        assertEquals(1, ((Factory)registry.get(1)).index);
+
+        assertEquals(4, ((Factory)registry.get(2)).index);
+
+        assertTrue(registry.contains(Open.class));
+
+        assertFalse(registry.contains(Sized.class));
+    }
+
+    @Test
+    public void testPutReplaces()
+    {
+        Registry registry = new Registry();
+
+        registry.put(3, Open.class, new Factory(1));
+
+        registry.put(3, Open.class, new Factory(2));
+
+        assertEquals(2, ((Factory)registry.get(3)).index);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Classes                                  \*/
+    /*\**********************************************************************\*/
+    public static class Open
+        extends Packet
+    {
+        @Override
+        public int getPacketIndex()
+        {
+            return 1;
+        }
+
+        @Override
+        protected void write()
+        {
+        }
+
+        @Override
+        protected void read()
+        {
+        }
+    }
+
+    private static class Hidden
+        extends Open
+    {
+        private Hidden()
+        {
+        }
+    }
+
+    public static class Sized
+        extends Open
+    {
+        public Sized(int size)
+        {
+        }
+    }
+
+    /**
+     * A factory that only records the index it was registered for.
+     */
+    private static class Factory
+        implements Supplier<Packet>
+    {
+        private final int index;
+
+        Factory(int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public Packet get()
+        {
+            return null;
+        }
+    }
+}
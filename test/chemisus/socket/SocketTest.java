@@ -0,0 +1,532 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests that packets written by a {@link Socket} are read back the same, in
+ * each kind of frame, and when their frames arrive a few bytes at a time.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class SocketTest
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    private static final int COUNT = 20;
+
+    private static final int SIZE = 4096;
+
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    /**
+     * Makes the bytes of a probe, which repeat often enough to compress.
+     */
+    private static byte[] Payload(int number, int size)
+    {
+        byte[] bytes = new byte[size];
+
+        for (int i = 0; i < size; i++)
+        {
+            bytes[i] = (byte)(number + i % 16);
+        }
+
+        return bytes;
+    }
+
+    private static void AssertProbe(int number, int size, Packet packet)
+    {
+        assertNotNull(packet);
+
+        assertEquals(number, ((Probe)packet).number);
+
+        assertArrayEquals(Payload(number, size), ((Probe)packet).bytes);
+    }
+
+    @BeforeClass
+    public static void setUpClass()
+    {
+        Packet.Register(Probe.class);
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private ServerSocket server;
+
+    private final ArrayList<java.net.Socket> sockets = new ArrayList<java.net.Socket>();
+
+    /**
+     * The bytes on their way from {@link a} to {@link b}.
+     */
+    private Relay relay;
+
+    private Socket a;
+
+    private Socket b;
+
+    private Reactor reactor;
+
+    /*\**********************************************************************\*/
+    /*\                             Private Methods                          \*/
+    /*\**********************************************************************\*/
+    /**
+     * Opens a connection, and gives back both of its ends.
+     */
+    private java.net.Socket[] pair() throws IOException
+    {
+        java.net.Socket near = new java.net.Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+
+        java.net.Socket far = server.accept();
+
+        near.setTcpNoDelay(true);
+
+        far.setTcpNoDelay(true);
+
+        sockets.add(near);
+
+        sockets.add(far);
+
+        return new java.net.Socket[] {near, far};
+    }
+
+    /**
+     * Connects {@link a} to {@link b} through a relay that passes on at
+     * most a chunk of bytes at a time.
+     */
+    private void connect(int chunk) throws IOException
+    {
+        java.net.Socket[] left = pair();
+
+        java.net.Socket[] right = pair();
+
+        a = new Socket(left[0]);
+
+        b = new Socket(right[1]);
+
+        relay = new Relay(left[1].getInputStream(), right[0].getOutputStream(), chunk);
+
+        new Relay(right[0].getInputStream(), left[1].getOutputStream(), SIZE).start();
+
+        relay.start();
+    }
+
+    /**
+     * Has {@link a} negotiate, and waits until both sides have heard each
+     * other.
+     */
+    private void negotiate() throws IOException
+    {
+        a.negotiate();
+
+        a.write(new Probe(-1, 0));
+
+        AssertProbe(-1, 0, b.read());
+
+        b.write(new Probe(-2, 0));
+
+        AssertProbe(-2, 0, a.read());
+
+        assertEquals(Socket.VERSION, a.getVersion());
+
+        assertEquals(Socket.VERSION, b.getVersion());
+    }
+
+    private void send(int from, int to, int size) throws IOException
+    {
+        for (int i = from; i < to; i++)
+        {
+            a.write(new Probe(i, size));
+        }
+    }
+
+    private void receive(int from, int to, int size) throws IOException
+    {
+        for (int i = from; i < to; i++)
+        {
+            AssertProbe(i, size, b.read());
+        }
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        if (reactor != null)
+        {
+            reactor.stop();
+        }
+
+        for (java.net.Socket socket : sockets)
+        {
+            socket.close();
+        }
+
+        server.close();
+    }
+
+    @Test
+    public void testVersion1() throws IOException
+    {
+        connect(SIZE);
+
+        send(0, COUNT, SIZE);
+
+        receive(0, COUNT, SIZE);
+
+        assertEquals(1, a.getVersion());
+
+        assertEquals(COUNT, b.getInCount());
+    }
+
+    @Test
+    public void testVersion2() throws IOException
+    {
+        connect(SIZE);
+
+        negotiate();
+
+        send(0, COUNT, SIZE);
+
+        receive(0, COUNT, SIZE);
+    }
+
+    @Test
+    public void testCompact() throws IOException
+    {
+        connect(SIZE);
+
+        a.setCompact(true);
+
+        b.setCompact(true);
+
+        negotiate();
+
+        send(0, COUNT, SIZE);
+
+        receive(0, COUNT, SIZE);
+
+        send(COUNT, 2 * COUNT, 0);
+
+        receive(COUNT, 2 * COUNT, 0);
+    }
+
+    @Test
+    public void testCompressed() throws IOException
+    {
+        connect(SIZE);
+
+        a.setCompression(new Compression());
+
+        b.setCompression(new Compression());
+
+        negotiate();
+
+        long before = relay.count();
+
+        send(0, COUNT, SIZE);
+
+        receive(0, COUNT, SIZE);
+
+        assertTrue(relay.count() - before < COUNT * SIZE / 4);
+    }
+
+    @Test
+    public void testSplitVersion1() throws IOException
+    {
+        connect(1);
+
+        send(0, COUNT, SIZE);
+
+        receive(0, COUNT, SIZE);
+    }
+
+    @Test
+    public void testSplitCompact() throws IOException
+    {
+        connect(3);
+
+        a.setCompact(true);
+
+        b.setCompact(true);
+
+        negotiate();
+
+        send(0, COUNT, SIZE);
+
+        receive(0, COUNT, SIZE);
+    }
+
+    @Test
+    public void testSplitCompressed() throws IOException
+    {
+        connect(1);
+
+        a.setCompression(new Compression());
+
+        b.setCompression(new Compression());
+
+        negotiate();
+
+        send(0, COUNT, SIZE);
+
+        receive(0, COUNT, SIZE);
+    }
+
+    @Test
+    public void testSplitReactor() throws Exception
+    {
+        reactor = new Reactor(1);
+
+        reactor.start();
+
+        java.net.Socket[] left = pair();
+
+        Session session = reactor.connect(
+            InetAddress.getLoopbackAddress().getHostAddress(), server.getLocalPort()
+        );
+
+        java.net.Socket far = server.accept();
+
+        sockets.add(far);
+
+        a = new Socket(left[0]);
+
+        relay = new Relay(left[1].getInputStream(), far.getOutputStream(), 1);
+
+        new Relay(far.getInputStream(), left[1].getOutputStream(), SIZE).start();
+
+        relay.start();
+
+        final LinkedBlockingQueue<Packet> received = new LinkedBlockingQueue<Packet>();
+
+        session.addCallback(new Session.Handler()
+        {
+            @Override
+            public void onReceived(Session source, Packet packet)
+            {
+                received.add(packet);
+            }
+        });
+
+        session.setCompact(true);
+
+        session.start();
+
+        a.setCompact(true);
+
+        a.negotiate();
+
+        a.write(new Probe(-1, 0));
+
+        AssertProbe(-1, 0, received.poll(10, TimeUnit.SECONDS));
+
+        session.write(new Probe(-2, 0));
+
+        AssertProbe(-2, 0, a.read());
+
+        send(0, COUNT, SIZE);
+
+        for (int i = 0; i < COUNT; i++)
+        {
+            AssertProbe(i, SIZE, received.poll(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception
+    {
+        java.net.Socket[] first = pair();
+
+        a = new Socket(first[0]);
+
+        b = new Socket(first[1]);
+
+        a.setResumable(64);
+
+        b.setResumable(64);
+
+        negotiate();
+
+        assertTrue(a.isResumable());
+
+        assertTrue(b.isResumable());
+
+        send(0, COUNT / 2, SIZE);
+
+        receive(0, COUNT / 2, SIZE);
+
+        first[0].close();
+
+        send(COUNT / 2, COUNT, SIZE);
+
+        Thread carrier = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    java.net.Socket accepted = server.accept();
+
+                    sockets.add(accepted);
+
+                    new Socket(accepted).read();
+                }
+                catch (SocketException ex)
+                {
+                }
+                catch (IOException ex)
+                {
+                    fail(ex.toString());
+                }
+            }
+        };
+
+        carrier.start();
+
+        java.net.Socket second = new java.net.Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+
+        sockets.add(second);
+
+        a.resume(second);
+
+        carrier.join(10000);
+
+        receive(COUNT / 2, COUNT, SIZE);
+
+        b.write(new Probe(-3, 0));
+
+        AssertProbe(-3, 0, a.read());
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Classes                                  \*/
+    /*\**********************************************************************\*/
+    public static class Probe
+        extends Packet
+    {
+        private int number;
+
+        private byte[] bytes;
+
+        public Probe()
+        {
+        }
+
+        private Probe(int number, int size)
+        {
+            this.number = number;
+
+            this.bytes = Payload(number, size);
+        }
+
+        @Override
+        public int getPacketIndex()
+        {
+            return 1;
+        }
+
+        @Override
+        protected void write() throws IOException
+        {
+            writeInt(number);
+
+            writeBytes(bytes);
+        }
+
+        @Override
+        protected void read() throws IOException
+        {
+            number = readIntValue();
+
+            bytes = readBytes();
+        }
+    }
+
+    /**
+     * Copies bytes from one connection to another, at most a chunk at a
+     * time, and counts them.
+     */
+    private static class Relay
+        extends Thread
+    {
+        private final InputStream input;
+
+        private final OutputStream output;
+
+        private final int chunk;
+
+        private final AtomicLong count = new AtomicLong();
+
+        private Relay(InputStream input, OutputStream output, int chunk)
+        {
+            this.input = input;
+
+            this.output = output;
+
+            this.chunk = chunk;
+
+            setDaemon(true);
+        }
+
+        private long count()
+        {
+            return count.get();
+        }
+
+        @Override
+        public void run()
+        {
+            byte[] buffer = new byte[chunk];
+
+            try
+            {
+                int read;
+
+                while ((read = input.read(buffer)) >= 0)
+                {
+                    output.write(buffer, 0, read);
+
+                    output.flush();
+
+                    count.addAndGet(read);
+                }
+            }
+            catch (IOException ex)
+            {
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests {@link Topics}.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class TopicsTest
+{
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    private static Set<Session> Sessions(Session... sessions)
+    {
+        return new HashSet<Session>(Arrays.asList(sessions));
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Fields                                   \*/
+    /*\**********************************************************************\*/
+    private ServerSocket server;
+
+    private java.net.Socket[] sockets;
+
+    private Session a;
+
+    private Session b;
+
+    private Session c;
+
+    private Topics topics;
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+
+        sockets = new java.net.Socket[6];
+
+        for (int i = 0; i < sockets.length; i += 2)
+        {
+            sockets[i] = new java.net.Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+
+            sockets[i + 1] = server.accept();
+        }
+
+        a = new Session(sockets[0]);
+
+        b = new Session(sockets[2]);
+
+        c = new Session(sockets[4]);
+
+        topics = new Topics();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        for (java.net.Socket socket : sockets)
+        {
+            socket.close();
+        }
+
+        server.close();
+    }
+
+    @Test
+    public void testExact()
+    {
+        topics.subscribe(a, "prices.nasdaq.aapl");
+
+        topics.subscribe(b, "prices.nasdaq.msft");
+
+        assertEquals(Sessions(a), topics.match("prices.nasdaq.aapl"));
+
+        assertEquals(Sessions(b), topics.match("prices.nasdaq.msft"));
+
+        assertEquals(Sessions(), topics.match("prices.nasdaq"));
+
+        assertEquals(Sessions(), topics.match("prices.nasdaq.aapl.bid"));
+    }
+
+    @Test
+    public void testOneLevel()
+    {
+        topics.subscribe(a, "prices.*.aapl");
+
+        topics.subscribe(b, "prices.nasdaq.*");
+
+        assertEquals(Sessions(a, b), topics.match("prices.nasdaq.aapl"));
+
+        assertEquals(Sessions(a), topics.match("prices.nyse.aapl"));
+
+        assertEquals(Sessions(b), topics.match("prices.nasdaq.msft"));
+
+        assertEquals(Sessions(), topics.match("prices.aapl"));
+
+        assertEquals(Sessions(), topics.match("prices.nasdaq.aapl.bid"));
+    }
+
+    @Test
+    public void testAnyLevels()
+    {
+        topics.subscribe(a, "prices.#");
+
+        topics.subscribe(b, "#");
+
+        topics.subscribe(c, "prices.*.#");
+
+        assertEquals(Sessions(a, b), topics.match("prices"));
+
+        assertEquals(Sessions(a, b, c), topics.match("prices.nasdaq"));
+
+        assertEquals(Sessions(a, b, c), topics.match("prices.nasdaq.aapl.bid"));
+
+        assertEquals(Sessions(b), topics.match("trades"));
+    }
+
+    @Test
+    public void testMatchedOnce()
+    {
+        topics.subscribe(a, "prices.nasdaq.aapl");
+
+        topics.subscribe(a, "prices.*.aapl");
+
+        topics.subscribe(a, "prices.#");
+
+        assertEquals(Sessions(a), topics.match("prices.nasdaq.aapl"));
+    }
+
+    @Test
+    public void testSubscriptions()
+    {
+        assertTrue(topics.subscribe(a, "prices.#"));
+
+        assertFalse(topics.subscribe(a, "prices.#"));
+
+        assertTrue(topics.subscribe(a, "trades.*"));
+
+        assertEquals(
+            new HashSet<String>(Arrays.asList("prices.#", "trades.*")),
+            topics.getSubscriptions(a)
+        );
+
+        assertEquals(Collections.<String>emptySet(), topics.getSubscriptions(b));
+    }
+
+    @Test
+    public void testUnsubscribe()
+    {
+        topics.subscribe(a, "prices.*.aapl");
+
+        topics.subscribe(b, "prices.*.aapl");
+
+        assertTrue(topics.unsubscribe(a, "prices.*.aapl"));
+
+        assertFalse(topics.unsubscribe(a, "prices.*.aapl"));
+
+        assertFalse(topics.unsubscribe(c, "prices.*.aapl"));
+
+        assertEquals(Sessions(b), topics.match("prices.nasdaq.aapl"));
+
+        assertEquals(Collections.<String>emptySet(), topics.getSubscriptions(a));
+
+        topics.unsubscribe(b, "prices.*.aapl");
+
+        assertEquals(Sessions(), topics.match("prices.nasdaq.aapl"));
+    }
+
+    @Test
+    public void testUnsubscribeAll()
+    {
+        topics.subscribe(a, "prices.#");
+
+        topics.subscribe(a, "trades.*");
+
+        topics.subscribe(b, "trades.*");
+
+        topics.unsubscribe(a);
+
+        assertEquals(Sessions(), topics.match("prices.nasdaq"));
+
+        assertEquals(Sessions(b), topics.match("trades.nasdaq"));
+
+        assertEquals(Collections.<String>emptySet(), topics.getSubscriptions(a));
+    }
+
+    @Test
+    public void testInvalidPatterns()
+    {
+        String[] patterns = {"prices.#.aapl", "prices.aa*", "prices.a#", "*a.prices"};
+
+        for (String pattern : patterns)
+        {
+            try
+            {
+                topics.subscribe(a, pattern);
+
+                fail(pattern);
+            }
+            catch (IllegalArgumentException ex)
+            {
+            }
+        }
+
+        assertEquals(Collections.<String>emptySet(), topics.getSubscriptions(a));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTopicWithWildcard()
+    {
+        topics.match("prices.*");
+    }
+}
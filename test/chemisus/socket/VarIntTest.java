@@ -0,0 +1,162 @@
+/**
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @copyright   Copyright (c) 2012, Terrence Howard
+ * @package     chemisus.socket;
+ */
+package chemisus.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests the varints of {@link SocketOutputStream} and
+ * {@link SocketInputStream}.
+ *
+ * @author      Terrence Howard <chemisus@gmail.com>
+ * @version     0.1
+ * @since       0.1
+ */
+public class VarIntTest
+{
+    /*\**********************************************************************\*/
+    /*\                             Constants                                \*/
+    /*\**********************************************************************\*/
+    private static final int[] INTS = {
+        0, 1, -1, 63, -64, 64, -65, 127, 128, 16383, 16384,
+        Integer.MAX_VALUE, Integer.MIN_VALUE, 0x12345678, -0x12345678,
+    };
+
+    private static final long[] LONGS = {
+        0, 1, -1, 127, 128, Integer.MAX_VALUE, Integer.MIN_VALUE,
+        1L << 35, -(1L << 35), Long.MAX_VALUE, Long.MIN_VALUE,
+    };
+
+    /*\**********************************************************************\*/
+    /*\                             Static Methods                           \*/
+    /*\**********************************************************************\*/
+    private static SocketInputStream Input(byte[] bytes)
+    {
+        return new SocketInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static byte[] UnsignedInt(int value) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        SocketOutputStream output = new SocketOutputStream(bytes);
+
+        output.writeUnsignedVarInt(value);
+
+        output.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] SignedInt(int value) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        SocketOutputStream output = new SocketOutputStream(bytes);
+
+        output.writeVarInt(value);
+
+        output.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /*\**********************************************************************\*/
+    /*\                             Public Methods                           \*/
+    /*\**********************************************************************\*/
+    @Test
+    public void testUnsignedIntRoundTrip() throws IOException
+    {
+        for (int value : INTS)
+        {
+            assertEquals(value, Input(UnsignedInt(value)).readUnsignedVarIntValue());
+        }
+    }
+
+    @Test
+    public void testSignedIntRoundTrip() throws IOException
+    {
+        for (int value : INTS)
+        {
+            assertEquals(value, Input(SignedInt(value)).readVarIntValue());
+        }
+    }
+
+    @Test
+    public void testLongRoundTrip() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        SocketOutputStream output = new SocketOutputStream(bytes);
+
+        for (long value : LONGS)
+        {
+            output.writeUnsignedVarLong(value);
+
+            output.writeVarLong(value);
+        }
+
+        output.flush();
+
+        SocketInputStream input = Input(bytes.toByteArray());
+
+        for (long value : LONGS)
+        {
+            assertEquals(value, input.readUnsignedVarLongValue());
+
+            assertEquals(value, input.readVarLongValue());
+        }
+    }
+
+    @Test
+    public void testUnsignedSizes() throws IOException
+    {
+        assertEquals(1, UnsignedInt(0).length);
+
+        assertEquals(1, UnsignedInt(127).length);
+
+        assertEquals(2, UnsignedInt(128).length);
+
+        assertEquals(2, UnsignedInt(16383).length);
+
+        assertEquals(3, UnsignedInt(16384).length);
+
+        assertEquals(5, UnsignedInt(Integer.MAX_VALUE).length);
+
+        assertEquals(5, UnsignedInt(-1).length);
+    }
+
+    @Test
+    public void testZigZagSizes() throws IOException
+    {
+        assertEquals(1, SignedInt(0).length);
+
+        assertEquals(1, SignedInt(-1).length);
+
+        assertEquals(1, SignedInt(63).length);
+
+        assertEquals(1, SignedInt(-64).length);
+
+        assertEquals(2, SignedInt(64).length);
+
+        assertEquals(2, SignedInt(-65).length);
+
+        assertEquals(5, SignedInt(Integer.MIN_VALUE).length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformed() throws IOException
+    {
+        byte[] bytes = {(byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 0};
+
+        Input(bytes).readUnsignedVarIntValue();
+    }
+}